@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** 索引写入, 删除与各类查询的单线程耗时 */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexedMapBenchmark {
+
+  @Param({"1000", "100000", "1000000"})
+  int size;
+
+  @Param({"roaring", "sharded", "copyOnWrite"})
+  String type;
+
+  @Param({"256", "0"})
+  int queryCacheSize;
+
+  private TagIndexedMap<Integer, Integer> indexedMap;
+  private List<Map<String, String>> andQueries;
+  private List<Map<String, String>> orQueries;
+  private List<TagQuery> expressions;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    indexedMap = Workloads.newIndexedMap(type, queryCacheSize);
+    Workloads.fill(indexedMap, size);
+    andQueries = new ArrayList<>();
+    orQueries = new ArrayList<>();
+    expressions = new ArrayList<>();
+    for (int zone = 0; zone < Workloads.ZONES; zone++) {
+      for (String serverType : Workloads.TYPES) {
+        andQueries.add(Map.of("zone", Workloads.zone(zone), "type", serverType));
+      }
+      orQueries.add(
+          Map.of(
+              "zone", Workloads.zone(zone),
+              "server", "server-" + zone));
+      expressions.add(
+          TagQuery.and(
+              TagQuery.eq("zone", Workloads.zone(zone)),
+              TagQuery.in("type", "game", "chat"),
+              TagQuery.not(TagQuery.eq("version", "1.0"))));
+    }
+  }
+
+  /** 已有条目更新 tag */
+  @Benchmark
+  public Integer put() {
+    int key = ThreadLocalRandom.current().nextInt(size);
+    return indexedMap.put(key, key, Workloads.tags(key + size));
+  }
+
+  /** 删除后以相同 tag 重新写入, 模拟断线重连 */
+  @Benchmark
+  public Integer removeAndPut() {
+    int key = ThreadLocalRandom.current().nextInt(size);
+    indexedMap.remove(key);
+    return indexedMap.put(key, key, Workloads.tags(key));
+  }
+
+  @Benchmark
+  public Integer get() {
+    return indexedMap.get(ThreadLocalRandom.current().nextInt(size));
+  }
+
+  @Benchmark
+  public int queryAnd() {
+    return indexedMap.query(random(andQueries), IndexedMap.QueryOps.AND).size();
+  }
+
+  @Benchmark
+  public void queryAndForEach(Blackhole blackhole) {
+    indexedMap.forEach(random(andQueries), IndexedMap.QueryOps.AND, blackhole::consume);
+  }
+
+  @Benchmark
+  public int queryOr() {
+    return indexedMap.query(random(orQueries), IndexedMap.QueryOps.OR).size();
+  }
+
+  @Benchmark
+  public int queryExpression() {
+    return indexedMap.query(random(expressions)).size();
+  }
+
+  @Benchmark
+  public List<Integer> queryPage() {
+    return indexedMap.query(random(andQueries), IndexedMap.QueryOps.AND, 10, 20);
+  }
+
+  private static <T> T random(List<T> queries) {
+    return queries.get(ThreadLocalRandom.current().nextInt(queries.size()));
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * {@link LongRoaringBitmapIndexedMap} 的耗时与分配
+ *
+ * <p>tag 与值预先生成, 只统计索引本身的分配, 运行时加 {@code -prof gc} 查看 gc.alloc.rate.norm.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LongIndexedMapBenchmark {
+
+  @Param({"1000", "100000"})
+  int size;
+
+  private LongRoaringBitmapIndexedMap<Integer> indexedMap;
+  private Map<String, String>[] tags;
+  private Integer[] values;
+  private List<Map<String, String>> andQueries;
+
+  @Setup(Level.Trial)
+  @SuppressWarnings("unchecked")
+  public void setup() {
+    indexedMap = new LongRoaringBitmapIndexedMap<>();
+    tags = new Map[size];
+    values = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      tags[i] = Workloads.tags(i);
+      values[i] = i;
+      indexedMap.put(key(i), values[i], tags[i]);
+    }
+    andQueries = new ArrayList<>();
+    for (int zone = 0; zone < Workloads.ZONES; zone++) {
+      for (String serverType : Workloads.TYPES) {
+        andQueries.add(Map.of("zone", Workloads.zone(zone), "type", serverType));
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Result {
+    final RoaringBitmap bitmap = new RoaringBitmap();
+    final List<Integer> values = new ArrayList<>();
+  }
+
+  @Benchmark
+  public Integer get() {
+    return indexedMap.get(key(ThreadLocalRandom.current().nextInt(size)));
+  }
+
+  /** 以相同 tag 重新写入, 模拟心跳刷新 */
+  @Benchmark
+  public Integer putSameTags() {
+    int id = ThreadLocalRandom.current().nextInt(size);
+    return indexedMap.put(key(id), values[id], tags[id]);
+  }
+
+  /** 已有条目换成另一组 tag */
+  @Benchmark
+  public Integer putMovedTags() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int id = random.nextInt(size);
+    return indexedMap.put(key(id), values[id], tags[random.nextInt(size)]);
+  }
+
+  /** 结果写入复用的位图后遍历 */
+  @Benchmark
+  public void queryInto(Result result, Blackhole blackhole) {
+    Map<String, String> query =
+        andQueries.get(ThreadLocalRandom.current().nextInt(andQueries.size()));
+    indexedMap.query(query, IndexedMap.QueryOps.AND, result.bitmap);
+    indexedMap.forEach(result.bitmap, blackhole::consume);
+  }
+
+  /** 结果加入复用的 List, AND 查询不生成结果位图 */
+  @Benchmark
+  public int querySink(Result result) {
+    Map<String, String> query =
+        andQueries.get(ThreadLocalRandom.current().nextInt(andQueries.size()));
+    result.values.clear();
+    return indexedMap.query(query, IndexedMap.QueryOps.AND, result.values);
+  }
+
+  @Benchmark
+  public int queryList() {
+    Map<String, String> query =
+        andQueries.get(ThreadLocalRandom.current().nextInt(andQueries.size()));
+    return indexedMap.query(query, IndexedMap.QueryOps.AND).size();
+  }
+
+  /** 分布在 long 高位, 确认主键不装箱 */
+  private static long key(int id) {
+    return ((long) id << 32) | id;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 查询与写入并发, 比较单锁, 分片, 写时复制与 long 主键索引
+ *
+ * <p>{@code mixed} 是 9 个查询线程与 1 个写入线程, 写入线程持续写入. {@code readMostly} 的 4 个线程各自按 90/10
+ * 的比例随机执行查询与写入, 吞吐量是两者合计的操作数.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class MixedIndexedMapBenchmark {
+
+  @Param({"100000"})
+  int size;
+
+  @Param({"roaring", "sharded", "copyOnWrite", "long"})
+  String type;
+
+  private IndexedMap<Long, Integer, Map<String, String>> indexedMap;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    indexedMap = Workloads.newLongKeyedMap(type);
+    Workloads.fill(indexedMap, size, Long::valueOf);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(9)
+  public int query() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Map<String, String> tags =
+        Map.of(
+            "zone", Workloads.zone(random.nextInt(Workloads.ZONES)),
+            "type", Workloads.TYPES[random.nextInt(Workloads.TYPES.length)]);
+    return indexedMap.query(tags, IndexedMap.QueryOps.AND).size();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public Integer put() {
+    int key = ThreadLocalRandom.current().nextInt(size);
+    return indexedMap.put((long) key, key, Workloads.tags(key + size));
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(4)
+  public void readMostly(Blackhole blackhole) {
+    if (ThreadLocalRandom.current().nextInt(10) == 0) {
+      blackhole.consume(put());
+    } else {
+      blackhole.consume(query());
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** 索引快照写入与加载耗时 */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+  private static final KeyCodec<Integer> KEY_CODEC =
+      new KeyCodec<>() {
+        @Override
+        public byte[] encode(Integer key) {
+          return ByteBuffer.allocate(Integer.BYTES).putInt(key).array();
+        }
+
+        @Override
+        public Integer decode(byte[] bytes) {
+          return ByteBuffer.wrap(bytes).getInt();
+        }
+      };
+
+  @Param({"100000"})
+  int size;
+
+  private RoaringBitmapIndexedMap<Integer, Integer> indexedMap;
+  private Path file;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    indexedMap = new RoaringBitmapIndexedMap<>();
+    for (int i = 0; i < size; i++) {
+      indexedMap.put(i, i, Workloads.tags(i));
+    }
+    file = Files.createTempFile("doodle-index", ".snapshot");
+    indexedMap.writeSnapshot(file, KEY_CODEC);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    indexedMap.writeSnapshot(file, KEY_CODEC);
+  }
+
+  @Benchmark
+  public int load() throws IOException {
+    return new RoaringBitmapIndexedMap<Integer, Integer>().loadSnapshot(file, KEY_CODEC);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.agrona.collections.Object2ObjectHashMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** {@link Table} 行列访问耗时 */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TableBenchmark {
+
+  @Param({"16", "256"})
+  int rows;
+
+  @Param({"64", "4096"})
+  int columns;
+
+  @Param({"hash", "agrona"})
+  String backing;
+
+  private Table<String, CharSequence, Integer> table;
+  private String[] rowKeys;
+  private String[] columnKeys;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    table =
+        "agrona".equals(backing)
+            ? new Table<>(new Object2ObjectHashMap<>(), Object2ObjectHashMap::new)
+            : new Table<>(new HashMap<>(), HashMap::new);
+    rowKeys = new String[rows];
+    columnKeys = new String[columns];
+    for (int row = 0; row < rows; row++) {
+      rowKeys[row] = "row-" + row;
+    }
+    for (int column = 0; column < columns; column++) {
+      columnKeys[column] = "column-" + column;
+    }
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        table.put(rowKeys[row], columnKeys[column], row * columns + column);
+      }
+    }
+  }
+
+  @Benchmark
+  public Integer get() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return table.get(rowKeys[random.nextInt(rows)], columnKeys[random.nextInt(columns)]);
+  }
+
+  @Benchmark
+  public Integer getMissing() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return table.get(rowKeys[random.nextInt(rows)], "missing");
+  }
+
+  @Benchmark
+  public boolean contains() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return table.contains(rowKeys[random.nextInt(rows)], columnKeys[random.nextInt(columns)]);
+  }
+
+  @Benchmark
+  public Integer put() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int row = random.nextInt(rows);
+    int column = random.nextInt(columns);
+    return table.put(rowKeys[row], columnKeys[column], row * columns + column);
+  }
+
+  @Benchmark
+  public Integer removeAndPut() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int row = random.nextInt(rows);
+    int column = random.nextInt(columns);
+    table.remove(rowKeys[row], columnKeys[column]);
+    return table.put(rowKeys[row], columnKeys[column], row * columns + column);
+  }
+
+  @Benchmark
+  public void scanRow(Blackhole blackhole) {
+    Map<CharSequence, Integer> row =
+        table.row(rowKeys[ThreadLocalRandom.current().nextInt(rows)]);
+    for (Map.Entry<CharSequence, Integer> entry : row.entrySet()) {
+      blackhole.consume(entry.getValue());
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.Map;
+import java.util.function.IntFunction;
+import lombok.experimental.UtilityClass;
+
+/**
+ * 模拟路由索引的 tag 分布
+ *
+ * <p>zone 均匀分布, type 按 60/25/10/5 倾斜, version 按几何分布集中在少数版本, server 每 32 个条目一组.
+ */
+@UtilityClass
+class Workloads {
+  static final int ZONES = 16;
+  static final String[] TYPES = {"game", "chat", "login", "gm"};
+  private static final int[] TYPE_PERCENTS = {60, 85, 95, 100};
+  private static final int VERSIONS = 8;
+  private static final int SERVER_GROUP = 32;
+  private static final String[] ZONE_VALUES = new String[ZONES];
+  private static final String[] VERSION_VALUES = new String[VERSIONS];
+
+  static {
+    for (int i = 0; i < ZONES; i++) {
+      ZONE_VALUES[i] = "zone-" + i;
+    }
+    for (int i = 0; i < VERSIONS; i++) {
+      VERSION_VALUES[i] = "1." + i;
+    }
+  }
+
+  static String zone(int zone) {
+    return ZONE_VALUES[zone];
+  }
+
+  static Map<String, String> tags(int id) {
+    int hash = mix(id);
+    int percent = Integer.remainderUnsigned(hash >>> 8, 100);
+    int type = 0;
+    while (percent >= TYPE_PERCENTS[type]) {
+      type++;
+    }
+    int version = Integer.numberOfTrailingZeros((hash >>> 16) | (1 << (VERSIONS - 1)));
+    return Map.of(
+        "zone", ZONE_VALUES[Integer.remainderUnsigned(hash, ZONES)],
+        "type", TYPES[type],
+        "version", VERSION_VALUES[version],
+        "server", "server-" + id / SERVER_GROUP);
+  }
+
+  static <K> TagIndexedMap<K, Integer> newIndexedMap(String type, int queryCacheSize) {
+    return switch (type) {
+      case "roaring" -> new RoaringBitmapIndexedMap<>(queryCacheSize);
+      case "sharded" -> new ShardedRoaringBitmapIndexedMap<>(
+          Runtime.getRuntime().availableProcessors(), queryCacheSize);
+      // 写时复制索引没有查询缓存
+      case "copyOnWrite" -> new CopyOnWriteRoaringBitmapIndexedMap<>();
+      default -> throw new IllegalArgumentException("未知的索引类型: " + type);
+    };
+  }
+
+  /** 在 {@link #newIndexedMap(String, int)} 的类型之外, {@code long} 对应 long 主键索引, 不使用查询缓存 */
+  static IndexedMap<Long, Integer, Map<String, String>> newLongKeyedMap(String type) {
+    return "long".equals(type) ? new LongRoaringBitmapIndexedMap<>() : newIndexedMap(type, 0);
+  }
+
+  static void fill(TagIndexedMap<Integer, Integer> indexedMap, int size) {
+    fill(indexedMap, size, Integer::valueOf);
+  }
+
+  static <K> void fill(
+      IndexedMap<K, Integer, Map<String, String>> indexedMap, int size, IntFunction<K> keys) {
+    if (indexedMap instanceof CopyOnWriteRoaringBitmapIndexedMap<K, Integer> copyOnWrite) {
+      copyOnWrite.write(
+          writer -> {
+            for (int i = 0; i < size; i++) {
+              writer.put(keys.apply(i), i, tags(i), Map.of());
+            }
+          });
+      return;
+    }
+    for (int i = 0; i < size; i++) {
+      indexedMap.put(keys.apply(i), i, tags(i));
+    }
+  }
+
+  /** murmur3 fmix32 */
+  private static int mix(int value) {
+    int hash = value;
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.hashids;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Hashids 编码与解码吞吐 */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashidsBenchmark {
+  private static final int SAMPLES = 1024;
+  private static final String ALPHABET =
+      "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
+
+  @Param({"0", "16"})
+  int minHashLength;
+
+  private Hashids hashids;
+  private Hashids cachedHashids;
+  private HashidsRegistry registry;
+  private long[] numbers;
+  private String[] hashes;
+  private String[] multiHashes;
+  private String[] garbage;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    hashids = new Hashids("doodle", minHashLength);
+    cachedHashids = new Hashids("doodle", minHashLength, ALPHABET, SAMPLES);
+    registry = new HashidsRegistry(SAMPLES);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    numbers = new long[SAMPLES];
+    hashes = new String[SAMPLES];
+    multiHashes = new String[SAMPLES];
+    garbage = new String[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) {
+      numbers[i] = random.nextLong(Hashids.MAX_NUMBER);
+      hashes[i] = hashids.encode(numbers[i]);
+      multiHashes[i] = hashids.encode(i, numbers[i], random.nextLong(1 << 20));
+      // 暴力尝试的编码: 长度与真实编码相同, 只包含合法字符
+      char[] chars = new char[hashes[i].length()];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+      }
+      garbage[i] = new String(chars);
+    }
+  }
+
+  @Benchmark
+  public String encode() {
+    return hashids.encode(numbers[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+  }
+
+  @Benchmark
+  public String encodeMultiple() {
+    int i = ThreadLocalRandom.current().nextInt(SAMPLES);
+    return hashids.encode(i, numbers[i], numbers[(i + 1) % SAMPLES] >>> 20);
+  }
+
+  /** 与 {@link #encode()} 比较, 每次调用编码 {@link #SAMPLES} 个连续数字 */
+  @Benchmark
+  @OperationsPerInvocation(SAMPLES)
+  public void encodeRange(Blackhole blackhole) {
+    hashids.encodeRange(numbers[0], SAMPLES, blackhole::consume);
+  }
+
+  /** 每次按不同的盐构造实例, 与 {@link #registryGet()} 比较 */
+  @Benchmark
+  public Hashids construct() {
+    return new Hashids("doodle-" + ThreadLocalRandom.current().nextInt(SAMPLES), minHashLength);
+  }
+
+  @Benchmark
+  public Hashids registryGet() {
+    return registry.get("doodle-" + ThreadLocalRandom.current().nextInt(SAMPLES), minHashLength);
+  }
+
+  @Benchmark
+  public long[] decode() {
+    return hashids.decode(hashes[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+  }
+
+  @Benchmark
+  public long[] decodeMultiple() {
+    return hashids.decode(multiHashes[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+  }
+
+  @Benchmark
+  public long[] decodeCached() {
+    return cachedHashids.decode(hashes[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+  }
+
+  @Benchmark
+  public long[] decodeInvalid() {
+    return hashids.decode("not+a-hash");
+  }
+
+  @Benchmark
+  public long[] decodeGarbage() {
+    return hashids.decode(garbage[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+  }
+}
@@ -0,0 +1,619 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * 写时复制的位图索引
+ *
+ * <p>读操作只读取一个不可变快照, 不加锁; 写操作在锁内基于快照生成新版本, 然后原子发布. 主键表与 tag 表都是持久化哈希表,
+ * 位图也只复制被修改的容器, 新旧版本共享其余部分, 单次写入的复制量不随条目总数线性增长. 适用于读多写少的场景.
+ */
+public class CopyOnWriteRoaringBitmapIndexedMap<K, V> implements TagIndexedMap<K, V> {
+  private final Object writeLock = new Object();
+  private volatile Snapshot<K, V> snapshot = Snapshot.empty();
+  private int internalIndex;
+
+  @Override
+  public V get(K key) {
+    Entry<V> entry = snapshot.keyToEntry.get(key);
+    return Objects.nonNull(entry) ? entry.value() : null;
+  }
+
+  @Override
+  public V put(K key, V value, Map<String, String> tags) {
+    return put(key, value, tags, Collections.emptyMap());
+  }
+
+  @Override
+  public V put(
+      K key,
+      V value,
+      Map<String, String> tags,
+      Map<String, ? extends Collection<String>> multiTags) {
+    Set<Map.Entry<String, String>> tagSet = RoaringBitmaps.toTagSet(tags, multiTags);
+    synchronized (writeLock) {
+      Mutation<K, V> mutation = new Mutation<>(snapshot);
+      V previous = put(mutation, key, value, tagSet);
+      snapshot = mutation.publish();
+      return previous;
+    }
+  }
+
+  @Override
+  public V remove(K key) {
+    synchronized (writeLock) {
+      if (!snapshot.keyToEntry.containsKey(key) && !snapshot.pendingEntries.containsKey(key)) {
+        return null;
+      }
+      Mutation<K, V> mutation = new Mutation<>(snapshot);
+      V previous = remove(mutation, key);
+      snapshot = mutation.publish();
+      return previous;
+    }
+  }
+
+  /**
+   * 仅当主键当前绑定的值等于 value 时删除, 避免误删同一主键之后写入的新值
+   *
+   * @param key 主键
+   * @param value 期望的当前值
+   * @return 是否删除
+   */
+  public boolean remove(K key, V value) {
+    synchronized (writeLock) {
+      Entry<V> entry = snapshot.keyToEntry.get(key);
+      if (Objects.isNull(entry) || !Objects.equals(entry.value(), value)) {
+        return false;
+      }
+      remove(key);
+      return true;
+    }
+  }
+
+  /**
+   * 批量写入, 整批只复制并发布一次快照; 回调抛出异常时整批都不生效
+   *
+   * @param updates 在锁内执行的写操作
+   */
+  public void write(Consumer<? super Writer<K, V>> updates) {
+    synchronized (writeLock) {
+      Mutation<K, V> mutation = new Mutation<>(snapshot);
+      updates.accept(new MutationWriter(mutation));
+      snapshot = mutation.publish();
+    }
+  }
+
+  private V put(Mutation<K, V> mutation, K key, V value, Set<Map.Entry<String, String>> tagSet) {
+    Entry<V> previous = mutation.keyToEntry.get(key);
+    if (Objects.isNull(previous)) {
+      previous = mutation.rebind(key);
+    }
+    int index = Objects.nonNull(previous) ? previous.index() : ++internalIndex;
+    Entry<V> entry = new Entry<>(index, value, tagSet);
+    mutation.keyToEntry.put(key, entry);
+    mutation.indexToEntry.put(index, entry);
+    mutation.addLive(index);
+    if (Objects.nonNull(previous) && !previous.tags().isEmpty()) {
+      mutation.removeTags(index, previous.tags(), tagSet);
+    }
+    mutation.addTags(index, tagSet);
+    return Objects.nonNull(previous) ? previous.value() : null;
+  }
+
+  private V remove(Mutation<K, V> mutation, K key) {
+    Entry<V> previous = mutation.keyToEntry.remove(key);
+    if (Objects.isNull(previous)) {
+      previous = mutation.rebind(key);
+    }
+    if (Objects.isNull(previous)) {
+      return null;
+    }
+    mutation.indexToEntry.remove(previous.index());
+    mutation.removeLive(previous.index());
+    mutation.removeTags(previous.index(), previous.tags(), Collections.emptySet());
+    return previous.value();
+  }
+
+  @Override
+  public int size() {
+    return snapshot.keyToEntry.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return snapshot.keyToEntry.isEmpty();
+  }
+
+  @Override
+  public void clear() {
+    synchronized (writeLock) {
+      snapshot = Snapshot.empty();
+      internalIndex = 0;
+    }
+  }
+
+  /**
+   * 将主键, tag 与 tag 位图写入快照文件, 值不写入
+   *
+   * @param file 快照文件
+   * @param keyCodec 主键编解码
+   * @throws IOException 写入失败
+   */
+  public void writeSnapshot(Path file, KeyCodec<K> keyCodec) throws IOException {
+    Snapshot<K, V> current;
+    int maxIndex;
+    synchronized (writeLock) {
+      current = snapshot;
+      maxIndex = internalIndex;
+    }
+    List<IndexedMapSnapshotFile.Entry> entries =
+        new ArrayList<>(current.keyToEntry.size() + current.pendingEntries.size());
+    for (Map<K, Entry<V>> keyToEntry : List.of(current.keyToEntry, current.pendingEntries)) {
+      for (Map.Entry<K, Entry<V>> entry : keyToEntry.entrySet()) {
+        entries.add(
+            new IndexedMapSnapshotFile.Entry(
+                entry.getValue().index(),
+                keyCodec.encode(entry.getKey()),
+                entry.getValue().tags()));
+      }
+    }
+    IndexedMapSnapshotFile.write(
+        file, new IndexedMapSnapshotFile.Contents(maxIndex, entries, current.tagIndexes));
+  }
+
+  /**
+   * 从快照文件加载主键, tag 与 tag 位图, 替换当前全部条目
+   *
+   * <p>加载的条目处于待绑定状态, 不出现在查询结果中, 同一主键再次 {@link #put(Object, Object, Map)}
+   * 时复用原内部索引.
+   *
+   * @param file 快照文件
+   * @param keyCodec 主键编解码
+   * @return 加载的条目数量
+   * @throws IOException 读取失败或文件格式版本不兼容
+   */
+  public int loadSnapshot(Path file, KeyCodec<K> keyCodec) throws IOException {
+    IndexedMapSnapshotFile.Contents contents = IndexedMapSnapshotFile.read(file);
+    PersistentHashMap.Editor<K, Entry<V>> pendingEntries =
+        PersistentHashMap.<K, Entry<V>>empty().edit();
+    RoaringBitmap pending = new RoaringBitmap();
+    for (IndexedMapSnapshotFile.Entry entry : contents.entries()) {
+      pendingEntries.put(
+          keyCodec.decode(entry.key()), new Entry<>(entry.index(), null, entry.tags()));
+      pending.add(entry.index());
+    }
+    Table<String, CharSequence, RoaringBitmap> tagIndexes = persistent(contents.tagIndexes());
+    synchronized (writeLock) {
+      snapshot =
+          new Snapshot<>(
+              PersistentHashMap.empty(),
+              PersistentHashMap.empty(),
+              tagIndexes,
+              new RoaringBitmap(),
+              pendingEntries.publish(),
+              pending);
+      internalIndex = contents.maxIndex();
+    }
+    return pendingEntries.size();
+  }
+
+  /**
+   * 移除所有仍未重新绑定值的快照条目
+   *
+   * @return 移除的条目数量
+   */
+  public int evictPending() {
+    synchronized (writeLock) {
+      if (snapshot.pendingEntries.isEmpty()) {
+        return 0;
+      }
+      Mutation<K, V> mutation = new Mutation<>(snapshot);
+      for (Entry<V> entry : snapshot.pendingEntries.values()) {
+        mutation.removeTags(entry.index(), entry.tags(), Collections.emptySet());
+      }
+      int evicted = snapshot.pendingEntries.size();
+      mutation.clearPending();
+      snapshot = mutation.publish();
+      return evicted;
+    }
+  }
+
+  @Override
+  public Collection<V> values() {
+    return new SnapshotValues<>(snapshot);
+  }
+
+  /**
+   * 遍历当前快照中已绑定值的条目, 不包含待绑定的快照条目
+   *
+   * @param action 主键与值的消费者
+   */
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    for (Map.Entry<K, Entry<V>> entry : snapshot.keyToEntry.entrySet()) {
+      action.accept(entry.getKey(), entry.getValue().value());
+    }
+  }
+
+  @Override
+  public List<V> query(Map<String, String> tags, QueryOps queryOps) {
+    Snapshot<K, V> current = snapshot;
+    if (tags == null || tags.isEmpty()) {
+      return new RoaringBitmapList<>(current.live, current::value);
+    }
+    return queryOps == QueryOps.AND ? queryAnd(current, tags) : queryOr(current, tags);
+  }
+
+  private List<V> queryOr(Snapshot<K, V> current, Map<String, String> tags) {
+    RoaringBitmap result = null;
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      RoaringBitmap bitmap = current.tagIndexes.get(tag.getKey(), tag.getValue());
+      if (Objects.isNull(bitmap)) {
+        continue;
+      }
+      if (Objects.isNull(result)) {
+        result = bitmap;
+      } else {
+        result = RoaringBitmap.or(result, bitmap);
+      }
+    }
+
+    if (Objects.isNull(result)) {
+      return Collections.emptyList();
+    }
+    result = current.bound(result);
+    if (result.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    return new RoaringBitmapList<>(result, current::value);
+  }
+
+  private List<V> queryAnd(Snapshot<K, V> current, Map<String, String> tags) {
+    RoaringBitmap[] operands = new RoaringBitmap[tags.size()];
+    int length = 0;
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      RoaringBitmap bitmap = current.tagIndexes.get(tag.getKey(), tag.getValue());
+      if (Objects.isNull(bitmap)) {
+        return Collections.emptyList();
+      }
+      operands[length++] = bitmap;
+    }
+    RoaringBitmap result = current.bound(RoaringBitmaps.and(operands, length));
+    return result.isEmpty()
+        ? Collections.emptyList()
+        : new RoaringBitmapList<>(result, current::value);
+  }
+
+  @Override
+  public List<V> query(TagQuery query) {
+    Snapshot<K, V> current = snapshot;
+    RoaringBitmap result =
+        current.bound(
+            RoaringBitmaps.evaluate(query, current.tagIndexes, () -> current.live, false));
+    return result.isEmpty()
+        ? Collections.emptyList()
+        : new RoaringBitmapList<>(result, current::value);
+  }
+
+  private record Entry<V>(int index, V value, Set<Map.Entry<String, String>> tags) {}
+
+  /**
+   * 不可变快照, 发布后其中的集合与位图都不再修改
+   *
+   * <p>tag 表的行与每一行都是 {@link PersistentHashMap}.
+   */
+  private static final class Snapshot<K, V> {
+    final PersistentHashMap<K, Entry<V>> keyToEntry;
+    final PersistentHashMap<Integer, Entry<V>> indexToEntry;
+    final Table<String, CharSequence, RoaringBitmap> tagIndexes;
+    final RoaringBitmap live;
+    /** 从快照文件加载, 尚未重新绑定值的条目, 只出现在 tag 位图中 */
+    final PersistentHashMap<K, Entry<V>> pendingEntries;
+    final RoaringBitmap pending;
+
+    Snapshot(
+        PersistentHashMap<K, Entry<V>> keyToEntry,
+        PersistentHashMap<Integer, Entry<V>> indexToEntry,
+        Table<String, CharSequence, RoaringBitmap> tagIndexes,
+        RoaringBitmap live,
+        PersistentHashMap<K, Entry<V>> pendingEntries,
+        RoaringBitmap pending) {
+      this.keyToEntry = keyToEntry;
+      this.indexToEntry = indexToEntry;
+      this.tagIndexes = tagIndexes;
+      this.live = live;
+      this.pendingEntries = pendingEntries;
+      this.pending = pending;
+    }
+
+    static <K, V> Snapshot<K, V> empty() {
+      return new Snapshot<>(
+          PersistentHashMap.empty(),
+          PersistentHashMap.empty(),
+          new Table<>(PersistentHashMap.empty(), PersistentHashMap::empty),
+          new RoaringBitmap(),
+          PersistentHashMap.empty(),
+          new RoaringBitmap());
+    }
+
+    /** 去掉待绑定的条目 */
+    RoaringBitmap bound(RoaringBitmap result) {
+      return pending.isEmpty() ? result : RoaringBitmap.andNot(result, pending);
+    }
+
+    V value(int index) {
+      Entry<V> entry = indexToEntry.get(index);
+      return Objects.nonNull(entry) ? entry.value() : null;
+    }
+  }
+
+  /** 把快照文件读出的 tag 表转为持久化哈希表 */
+  private static Table<String, CharSequence, RoaringBitmap> persistent(
+      Table<String, CharSequence, RoaringBitmap> tagIndexes) {
+    PersistentHashMap.Editor<String, Map<CharSequence, RoaringBitmap>> rows =
+        PersistentHashMap.<String, Map<CharSequence, RoaringBitmap>>empty().edit();
+    for (Map.Entry<String, Map<CharSequence, RoaringBitmap>> row :
+        tagIndexes.rowMap().entrySet()) {
+      rows.put(row.getKey(), PersistentHashMap.copyOf(row.getValue()));
+    }
+    return new Table<>(rows.publish(), PersistentHashMap::empty);
+  }
+
+  /** 批量写操作, 只能在 {@link #write(Consumer)} 的回调内使用 */
+  public interface Writer<K, V> {
+
+    V put(
+        K key,
+        V value,
+        Map<String, String> tags,
+        Map<String, ? extends Collection<String>> multiTags);
+
+    V remove(K key);
+
+    /** 仅当主键当前绑定的值等于 value 时删除 */
+    boolean remove(K key, V value);
+  }
+
+  private final class MutationWriter implements Writer<K, V> {
+    private final Mutation<K, V> mutation;
+
+    MutationWriter(Mutation<K, V> mutation) {
+      this.mutation = mutation;
+    }
+
+    @Override
+    public V put(
+        K key,
+        V value,
+        Map<String, String> tags,
+        Map<String, ? extends Collection<String>> multiTags) {
+      return CopyOnWriteRoaringBitmapIndexedMap.this.put(
+          mutation, key, value, RoaringBitmaps.toTagSet(tags, multiTags));
+    }
+
+    @Override
+    public V remove(K key) {
+      return CopyOnWriteRoaringBitmapIndexedMap.this.remove(mutation, key);
+    }
+
+    @Override
+    public boolean remove(K key, V value) {
+      Entry<V> entry = mutation.keyToEntry.get(key);
+      if (Objects.isNull(entry) || !Objects.equals(entry.value(), value)) {
+        return false;
+      }
+      remove(key);
+      return true;
+    }
+  }
+
+  /** 基于当前快照的一次写操作, 只在写锁内使用 */
+  private static final class Mutation<K, V> {
+    final PersistentHashMap.Editor<K, Entry<V>> keyToEntry;
+    final PersistentHashMap.Editor<Integer, Entry<V>> indexToEntry;
+    final PersistentHashMap.Editor<K, Entry<V>> pendingEntries;
+    private final PersistentHashMap.Editor<String, Map<CharSequence, RoaringBitmap>> rows;
+    private final Map<String, PersistentHashMap.Editor<CharSequence, RoaringBitmap>> editedRows =
+        new HashMap<>();
+    /** 本次写操作新建或完整复制的位图, 可以原地修改 */
+    private final Set<RoaringBitmap> owned = Collections.newSetFromMap(new IdentityHashMap<>(4));
+    /** 与快照共享容器的位图, 不能原地修改 */
+    private final Set<RoaringBitmap> derived = Collections.newSetFromMap(new IdentityHashMap<>(4));
+    private RoaringBitmap live;
+    private RoaringBitmap pending;
+
+    @SuppressWarnings("unchecked")
+    Mutation(Snapshot<K, V> snapshot) {
+      this.keyToEntry = snapshot.keyToEntry.edit();
+      this.indexToEntry = snapshot.indexToEntry.edit();
+      this.pendingEntries = snapshot.pendingEntries.edit();
+      this.rows =
+          ((PersistentHashMap<String, Map<CharSequence, RoaringBitmap>>)
+                  snapshot.tagIndexes.rowMap())
+              .edit();
+      this.live = snapshot.live;
+      this.pending = snapshot.pending;
+    }
+
+    /** 取出待绑定的条目, 沿用其内部索引与 tag */
+    Entry<V> rebind(K key) {
+      Entry<V> entry = pendingEntries.remove(key);
+      if (Objects.nonNull(entry)) {
+        pending = update(pending, entry.index(), false);
+      }
+      return entry;
+    }
+
+    void clearPending() {
+      pendingEntries.clear();
+      pending = new RoaringBitmap();
+    }
+
+    void addLive(int index) {
+      if (!live.contains(index)) {
+        live = update(live, index, true);
+      }
+    }
+
+    void removeLive(int index) {
+      if (live.contains(index)) {
+        live = update(live, index, false);
+      }
+    }
+
+    void addTags(int index, Set<Map.Entry<String, String>> tags) {
+      for (Map.Entry<String, String> tag : tags) {
+        RoaringBitmap bitmap = tag(tag.getKey(), tag.getValue());
+        if (Objects.isNull(bitmap)) {
+          bitmap = new RoaringBitmap();
+          bitmap.add(index);
+          owned.add(bitmap);
+          row(tag.getKey()).put(tag.getValue(), bitmap);
+        } else if (!bitmap.contains(index)) {
+          RoaringBitmap updated = update(bitmap, index, true);
+          if (updated != bitmap) {
+            row(tag.getKey()).put(tag.getValue(), updated);
+          }
+        }
+      }
+    }
+
+    void removeTags(
+        int index,
+        Set<Map.Entry<String, String>> removed,
+        Set<Map.Entry<String, String>> reserved) {
+      for (Map.Entry<String, String> tag : removed) {
+        if (!reserved.contains(tag)) {
+          RoaringBitmap bitmap = tag(tag.getKey(), tag.getValue());
+          if (Objects.nonNull(bitmap) && bitmap.contains(index)) {
+            if (bitmap.getCardinality() == 1) {
+              row(tag.getKey()).remove(tag.getValue());
+            } else {
+              RoaringBitmap updated = update(bitmap, index, false);
+              if (updated != bitmap) {
+                row(tag.getKey()).put(tag.getValue(), updated);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * 修改位图, 返回修改后的位图
+     *
+     * <p>本次写操作新建的位图原地修改; 快照中的位图第一次修改时只复制一个容器, 同一位图再次修改说明是批量写入, 完整复制一次后原地修改.
+     */
+    private RoaringBitmap update(RoaringBitmap bitmap, int index, boolean add) {
+      if (!owned.contains(bitmap)) {
+        if (!derived.contains(bitmap)) {
+          RoaringBitmap updated =
+              add ? RoaringBitmaps.with(bitmap, index) : RoaringBitmaps.without(bitmap, index);
+          derived.add(updated);
+          return updated;
+        }
+        bitmap = bitmap.clone();
+        owned.add(bitmap);
+      }
+      if (add) {
+        bitmap.add(index);
+      } else {
+        bitmap.remove(index);
+      }
+      return bitmap;
+    }
+
+    private RoaringBitmap tag(String rowKey, String columnKey) {
+      PersistentHashMap.Editor<CharSequence, RoaringBitmap> edited = editedRows.get(rowKey);
+      if (Objects.nonNull(edited)) {
+        return edited.get(columnKey);
+      }
+      Map<CharSequence, RoaringBitmap> row = rows.get(rowKey);
+      return Objects.nonNull(row) ? row.get(columnKey) : null;
+    }
+
+    /** 本次写操作第一次修改某一行时才开始编辑该行 */
+    @SuppressWarnings("unchecked")
+    private PersistentHashMap.Editor<CharSequence, RoaringBitmap> row(String rowKey) {
+      return editedRows.computeIfAbsent(
+          rowKey,
+          key -> {
+            Map<CharSequence, RoaringBitmap> row = rows.get(key);
+            return Objects.nonNull(row)
+                ? ((PersistentHashMap<CharSequence, RoaringBitmap>) row).edit()
+                : PersistentHashMap.<CharSequence, RoaringBitmap>empty().edit();
+          });
+    }
+
+    Snapshot<K, V> publish() {
+      for (RoaringBitmap bitmap : owned) {
+        bitmap.runOptimize();
+      }
+      for (Map.Entry<String, PersistentHashMap.Editor<CharSequence, RoaringBitmap>> row :
+          editedRows.entrySet()) {
+        PersistentHashMap<CharSequence, RoaringBitmap> columns = row.getValue().publish();
+        if (columns.isEmpty()) {
+          rows.remove(row.getKey());
+        } else {
+          rows.put(row.getKey(), columns);
+        }
+      }
+      return new Snapshot<>(
+          keyToEntry.publish(),
+          indexToEntry.publish(),
+          new Table<>(rows.publish(), PersistentHashMap::empty),
+          live,
+          pendingEntries.publish(),
+          pending);
+    }
+  }
+
+  private static final class SnapshotValues<V> extends AbstractCollection<V> {
+    private final Snapshot<?, V> snapshot;
+
+    SnapshotValues(Snapshot<?, V> snapshot) {
+      this.snapshot = snapshot;
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+      Iterator<Entry<V>> entries = snapshot.keyToEntry.values().iterator();
+      return new Iterator<>() {
+        @Override
+        public boolean hasNext() {
+          return entries.hasNext();
+        }
+
+        @Override
+        public V next() {
+          return entries.next().value();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return snapshot.keyToEntry.size();
+    }
+  }
+}
@@ -17,6 +17,9 @@ package org.doodle.design.bitmap;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface IndexedMap<K, V, TAG> {
   enum QueryOps {
@@ -41,4 +44,43 @@ public interface IndexedMap<K, V, TAG> {
   Collection<V> values();
 
   List<V> query(TAG tag, QueryOps queryOps);
+
+  /**
+   * 分页查询, 位图实现只在分页边界定位一次, 只取出本页的值
+   *
+   * @param tag 查询 tag
+   * @param queryOps 集合查询操作类型
+   * @param offset 跳过的结果数量
+   * @param limit 最多返回的结果数量
+   * @return 分页结果
+   */
+  default List<V> query(TAG tag, QueryOps queryOps, int offset, int limit) {
+    List<V> found = query(tag, queryOps);
+    int from = Math.min(Math.max(offset, 0), found.size());
+    int to = (int) Math.min((long) from + Math.max(limit, 0), found.size());
+    return found.subList(from, to);
+  }
+
+  /**
+   * 遍历查询结果, 不生成中间集合
+   *
+   * @param tag 查询 tag
+   * @param queryOps 集合查询操作类型
+   * @param consumer 结果消费者
+   */
+  default void forEach(TAG tag, QueryOps queryOps, Consumer<? super V> consumer) {
+    query(tag, queryOps).forEach(consumer);
+  }
+
+  /**
+   * 查询结果流, 写时复制实现按 container 切分; 读写锁实现在读锁内把值复制到数组, 按区间切分. 都支持并行
+   *
+   * @param tag 查询 tag
+   * @param queryOps 集合查询操作类型
+   * @param parallel 是否并行
+   * @return 结果流
+   */
+  default Stream<V> stream(TAG tag, QueryOps queryOps, boolean parallel) {
+    return StreamSupport.stream(query(tag, queryOps).spliterator(), parallel);
+  }
 }
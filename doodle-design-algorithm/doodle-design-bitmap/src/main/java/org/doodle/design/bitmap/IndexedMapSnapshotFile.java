@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import lombok.experimental.UtilityClass;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * 位图索引快照文件
+ *
+ * <pre>
+ * int magic, int version, int maxIndex
+ * int tagCount, (string key, string value) * tagCount
+ * int entryCount
+ * entry: int index, bytes key, int count, int tagId * count
+ * int rowCount
+ * row: string key, int columnCount, (string value, bytes bitmap) * columnCount
+ * </pre>
+ *
+ * tag 键值对只写入一次, 条目通过 tagId 引用. bytes 与 string 均为 int 长度前缀, string 使用 UTF-8,
+ * bitmap 使用 Roaring 跨语言序列化格式. 读取时整个文件以只读方式内存映射.
+ */
+@UtilityClass
+class IndexedMapSnapshotFile {
+  static final int MAGIC = 0x44445849;
+  static final int VERSION = 1;
+
+  /**
+   * 快照中的一个条目
+   *
+   * @param index 内部索引
+   * @param key 编码后的主键
+   * @param tags tag 集合
+   */
+  record Entry(int index, byte[] key, Set<Map.Entry<String, String>> tags) {}
+
+  /**
+   * 快照内容
+   *
+   * @param maxIndex 已分配的最大内部索引
+   * @param entries 全部条目
+   * @param tagIndexes tag 位图
+   */
+  record Contents(
+      int maxIndex, List<Entry> entries, Table<String, CharSequence, RoaringBitmap> tagIndexes) {}
+
+  static void write(Path file, Contents contents) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel =
+            FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(contents.maxIndex());
+      Map<Map.Entry<String, String>, Integer> tagIds = new LinkedHashMap<>();
+      for (Entry entry : contents.entries()) {
+        for (Map.Entry<String, String> tag : entry.tags()) {
+          tagIds.putIfAbsent(tag, tagIds.size());
+        }
+      }
+      out.writeInt(tagIds.size());
+      for (Map.Entry<String, String> tag : tagIds.keySet()) {
+        writeString(out, tag.getKey());
+        writeString(out, tag.getValue());
+      }
+      out.writeInt(contents.entries().size());
+      for (Entry entry : contents.entries()) {
+        out.writeInt(entry.index());
+        out.writeInt(entry.key().length);
+        out.write(entry.key());
+        out.writeInt(entry.tags().size());
+        for (Map.Entry<String, String> tag : entry.tags()) {
+          out.writeInt(tagIds.get(tag));
+        }
+      }
+      Map<String, Map<CharSequence, RoaringBitmap>> rows = contents.tagIndexes().rowMap();
+      out.writeInt(rows.size());
+      for (Map.Entry<String, Map<CharSequence, RoaringBitmap>> row : rows.entrySet()) {
+        writeString(out, row.getKey());
+        out.writeInt(row.getValue().size());
+        for (Map.Entry<CharSequence, RoaringBitmap> column : row.getValue().entrySet()) {
+          writeString(out, column.getKey().toString());
+          out.writeInt(column.getValue().serializedSizeInBytes());
+          column.getValue().serialize(out);
+        }
+      }
+      // 重命名前落盘, 避免掉电后快照文件指向未写入的数据
+      out.flush();
+      channel.force(true);
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * 计数与长度都先和剩余字节数比较, 截断或损坏的文件统一抛出 {@link IOException}
+   *
+   * @param file 快照文件
+   * @return 快照内容
+   * @throws IOException 读取失败, 文件损坏或版本不兼容
+   */
+  static Contents read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+        throw new IOException("不是位图索引快照文件: " + file);
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("不支持的位图索引快照版本: " + version);
+      }
+      return read(buffer);
+    } catch (BufferUnderflowException
+        | IndexOutOfBoundsException
+        | IllegalArgumentException e) {
+      throw new IOException("位图索引快照文件已损坏: " + file, e);
+    }
+  }
+
+  private static Contents read(ByteBuffer buffer) throws IOException {
+    int maxIndex = buffer.getInt();
+    if (maxIndex < 0) {
+      throw new IOException("位图索引快照最大索引越界: " + maxIndex);
+    }
+    // tag 至少两个长度前缀
+    int tagCount = readCount(buffer, 8);
+    List<Map.Entry<String, String>> tagIds = new ArrayList<>(tagCount);
+    for (int i = 0; i < tagCount; i++) {
+      tagIds.add(Map.entry(readString(buffer), readString(buffer)));
+    }
+    // 条目至少包含 index, 主键长度与 tag 数量
+    int entryCount = readCount(buffer, 12);
+    List<Entry> entries = new ArrayList<>(entryCount);
+    for (int i = 0; i < entryCount; i++) {
+      int index = buffer.getInt();
+      if (index < 1 || index > maxIndex) {
+        throw new IOException("位图索引快照条目索引越界: " + index + ", 最大索引 " + maxIndex);
+      }
+      byte[] key = readBytes(buffer);
+      int count = readCount(buffer, 4);
+      Set<Map.Entry<String, String>> tags = new HashSet<>(count * 2);
+      for (int j = 0; j < count; j++) {
+        tags.add(tagIds.get(buffer.getInt()));
+      }
+      entries.add(new Entry(index, key, Collections.unmodifiableSet(tags)));
+    }
+    Table<String, CharSequence, RoaringBitmap> tagIndexes =
+        new Table<>(new HashMap<>(), HashMap::new);
+    // 行至少包含键长度与列数量, 列至少包含值长度与位图长度
+    int rowCount = readCount(buffer, 8);
+    for (int i = 0; i < rowCount; i++) {
+      String rowKey = readString(buffer);
+      int columnCount = readCount(buffer, 8);
+      for (int j = 0; j < columnCount; j++) {
+        String columnKey = readString(buffer);
+        int length = readCount(buffer, 1);
+        tagIndexes.put(rowKey, columnKey, readBitmap(buffer.slice(buffer.position(), length)));
+        buffer.position(buffer.position() + length);
+      }
+    }
+    return new Contents(maxIndex, entries, tagIndexes);
+  }
+
+  /**
+   * 读取计数或长度, 校验剩余字节足够容纳
+   *
+   * @param minBytes 每个元素至少占用的字节数
+   */
+  private static int readCount(ByteBuffer buffer, int minBytes) throws IOException {
+    int count = buffer.getInt();
+    if (count < 0 || count > buffer.remaining() / minBytes) {
+      throw new IOException("位图索引快照计数越界: " + count + ", 剩余 " + buffer.remaining() + " 字节");
+    }
+    return count;
+  }
+
+  /** 损坏的位图数据可能抛出任意运行时异常, 例如负数组长度 */
+  private static RoaringBitmap readBitmap(ByteBuffer bytes) throws IOException {
+    RoaringBitmap bitmap = new RoaringBitmap();
+    try {
+      bitmap.deserialize(bytes);
+    } catch (RuntimeException e) {
+      throw new IOException("位图索引快照中的位图已损坏", e);
+    }
+    return bitmap;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) throws IOException {
+    byte[] bytes = new byte[readCount(buffer, 1)];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static String readString(ByteBuffer buffer) throws IOException {
+    return new String(readBytes(buffer), StandardCharsets.UTF_8);
+  }
+}
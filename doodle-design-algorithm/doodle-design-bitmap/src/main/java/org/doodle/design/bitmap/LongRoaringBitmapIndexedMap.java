@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import org.agrona.collections.Int2ObjectHashMap;
+import org.agrona.collections.Long2LongHashMap;
+import org.agrona.collections.Object2ObjectHashMap;
+import org.roaringbitmap.IntIteratorFlyweight;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * long 主键的位图索引
+ *
+ * <p>主键与内部索引都使用 agrona 原始类型集合, {@link #get(long)}, {@link #put(long, Object, Map)},
+ * {@link #remove(long)} 不装箱. {@link #query(Map, QueryOps, RoaringBitmap)} 将结果写入调用方复用的位图,
+ * 配合 {@link #forEach(RoaringBitmap, Consumer)} 遍历, 只分配结果位图的 container. {@link #query(Map,
+ * QueryOps, Collection)} 将结果加入调用方复用的集合, AND 查询不生成结果位图, 不分配.
+ *
+ * <p>AND 查询都按 {@link RoaringBitmaps#plan(RoaringBitmap[], int)} 从基数最小的 tag 位图开始求交.
+ */
+public class LongRoaringBitmapIndexedMap<V> implements IndexedMap<Long, V, Map<String, String>> {
+  private static final long MISSING_INDEX = -1;
+  private static final int OPERANDS = 8;
+  private static final AndScratch NO_SCRATCH = new AndScratch(0);
+  private static final RoaringBitmap EMPTY = new RoaringBitmap();
+
+  /** AND 查询的 tag 位图与迭代器, 每个线程复用; 使用期间取走, 结果集合回调中再次查询时另外分配 */
+  private static final ThreadLocal<AndScratch> AND_SCRATCH =
+      ThreadLocal.withInitial(() -> new AndScratch(OPERANDS));
+
+  /** 有写入排队时新的读取会等待, StampedLock 的读锁可以插队, 查询不断时写入会饿死 */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private int internalIndex;
+  private final Long2LongHashMap keyToIndex;
+  private final Int2ObjectHashMap<V> indexToValue;
+  private final Int2ObjectHashMap<Map<String, String>> indexToTags;
+  private final Table<String, CharSequence, RoaringBitmap> tagIndexes;
+
+  public LongRoaringBitmapIndexedMap() {
+    this.keyToIndex = new Long2LongHashMap(MISSING_INDEX);
+    this.indexToValue = new Int2ObjectHashMap<>();
+    this.indexToTags = new Int2ObjectHashMap<>();
+    this.tagIndexes = new Table<>(new Object2ObjectHashMap<>(), Object2ObjectHashMap::new);
+  }
+
+  @Override
+  public V get(Long key) {
+    return get(key.longValue());
+  }
+
+  public V get(long key) {
+    lock.readLock().lock();
+    try {
+      long index = keyToIndex.get(key);
+      return index != MISSING_INDEX ? indexToValue.get((int) index) : null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public V put(Long key, V value, Map<String, String> tags) {
+    return put(key.longValue(), value, tags);
+  }
+
+  public V put(long key, V value, Map<String, String> tags) {
+    lock.writeLock().lock();
+    try {
+      long found = keyToIndex.get(key);
+      int index;
+      if (found == MISSING_INDEX) {
+        index = ++internalIndex;
+        keyToIndex.put(key, index);
+      } else {
+        index = (int) found;
+      }
+      V previousValue = indexToValue.put(index, value);
+      Map<String, String> previousTags = indexToTags.put(index, tags);
+      if (Objects.nonNull(previousTags) && !previousTags.isEmpty()) {
+        removeTags(index, previousTags, tags);
+      }
+      addTags(index, tags);
+      return previousValue;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public V remove(Long key) {
+    return remove(key.longValue());
+  }
+
+  public V remove(long key) {
+    lock.writeLock().lock();
+    try {
+      long index = keyToIndex.remove(key);
+      if (index == MISSING_INDEX) {
+        return null;
+      }
+      V previousValue = indexToValue.remove((int) index);
+      Map<String, String> tags = indexToTags.remove((int) index);
+      if (Objects.nonNull(tags)) {
+        removeTags((int) index, tags, Collections.emptyMap());
+      }
+      return previousValue;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void addTags(int index, Map<String, String> tags) {
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
+      if (Objects.isNull(bitmap)) {
+        bitmap = new RoaringBitmap();
+        tagIndexes.put(tag.getKey(), tag.getValue(), bitmap);
+      }
+      bitmap.add(index);
+    }
+  }
+
+  private void removeTags(int index, Map<String, String> removed, Map<String, String> reserved) {
+    for (Map.Entry<String, String> tag : removed.entrySet()) {
+      String previousValue = reserved.get(tag.getKey());
+      if (Objects.isNull(previousValue) || !previousValue.equals(tag.getValue())) {
+        RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
+        if (Objects.nonNull(bitmap)) {
+          bitmap.remove(index);
+          if (bitmap.isEmpty()) {
+            tagIndexes.remove(tag.getKey(), tag.getValue());
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return indexToValue.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      keyToIndex.clear();
+      indexToValue.clear();
+      indexToTags.clear();
+      tagIndexes.clear();
+      internalIndex = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Collection<V> values() {
+    return valueList();
+  }
+
+  private List<V> valueList() {
+    lock.readLock().lock();
+    try {
+      List<V> values = new ArrayList<>(indexToValue.size());
+      indexToValue.forEachInt((index, value) -> values.add(value));
+      return values;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<V> query(Map<String, String> tags, QueryOps queryOps) {
+    if (Objects.isNull(tags) || tags.isEmpty()) {
+      return valueList();
+    }
+    lock.readLock().lock();
+    try {
+      if (queryOps == QueryOps.AND) {
+        return queryAnd(tags);
+      }
+      RoaringBitmap result = new RoaringBitmap();
+      int found = doQuery(tags, queryOps, result);
+      if (found == 0) {
+        return Collections.emptyList();
+      }
+      List<V> values = new ArrayList<>(found);
+      doForEach(result, values::add);
+      return values;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private List<V> queryAnd(Map<String, String> tags) {
+    AndScratch scratch = takeScratch(tags.size());
+    try {
+      int length = collect(tags, scratch.operands);
+      if (length == 0) {
+        return Collections.emptyList();
+      }
+      RoaringBitmap result = RoaringBitmaps.and(scratch.operands, length);
+      int found = result.getCardinality();
+      if (found == 0) {
+        return Collections.emptyList();
+      }
+      List<V> values = new ArrayList<>(found);
+      doForEach(result, values::add);
+      return values;
+    } finally {
+      releaseScratch(scratch);
+    }
+  }
+
+  /**
+   * 查询结果加入调用方复用的集合, 在同一次读锁内完成
+   *
+   * <p>AND 查询用复用的迭代器从基数最小的 tag 位图开始跳跃求交, 不生成结果位图, 集合容量足够时不分配. OR
+   * 查询仍然先合并出结果位图.
+   *
+   * @param tags 查询 tag 键值对, 为空时加入全部值
+   * @param queryOps 集合查询操作类型
+   * @param sink 结果集合, 查询前不会被清空
+   * @return 加入的结果数量
+   */
+  public int query(Map<String, String> tags, QueryOps queryOps, Collection<? super V> sink) {
+    lock.readLock().lock();
+    try {
+      if (Objects.isNull(tags) || tags.isEmpty()) {
+        int found = indexToValue.size();
+        for (V value : indexToValue.values()) {
+          sink.add(value);
+        }
+        return found;
+      }
+      if (queryOps == QueryOps.OR) {
+        RoaringBitmap result = new RoaringBitmap();
+        doQuery(tags, queryOps, result);
+        int before = sink.size();
+        doForEach(result, sink::add);
+        return sink.size() - before;
+      }
+      return queryAnd(tags, sink);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int queryAnd(Map<String, String> tags, Collection<? super V> sink) {
+    AndScratch scratch = takeScratch(tags.size());
+    try {
+      RoaringBitmap[] operands = scratch.operands;
+      int length = collect(tags, operands);
+      if (length == 0) {
+        return 0;
+      }
+      RoaringBitmaps.plan(operands, length);
+      IntIteratorFlyweight[] iterators = scratch.iterators;
+      for (int i = 0; i < length; i++) {
+        iterators[i].wrap(operands[i]);
+      }
+      // 基数最小的位图给出候选, 其余位图跳到候选处, 不相等时候选直接跳到更大的值
+      IntIteratorFlyweight lead = iterators[0];
+      int found = 0;
+      while (lead.hasNext()) {
+        int candidate = lead.next();
+        int i = 1;
+        for (; i < length; i++) {
+          IntIteratorFlyweight iterator = iterators[i];
+          iterator.advanceIfNeeded(candidate);
+          if (!iterator.hasNext()) {
+            return found;
+          }
+          int next = iterator.peekNext();
+          if (next != candidate) {
+            lead.advanceIfNeeded(next);
+            break;
+          }
+        }
+        if (i == length) {
+          V value = indexToValue.get(candidate);
+          if (Objects.nonNull(value)) {
+            sink.add(value);
+            found++;
+          }
+        }
+      }
+      return found;
+    } finally {
+      releaseScratch(scratch);
+    }
+  }
+
+  private static AndScratch takeScratch(int size) {
+    AndScratch scratch = AND_SCRATCH.get();
+    AND_SCRATCH.set(NO_SCRATCH);
+    return scratch.operands.length < size ? new AndScratch(Math.max(size, OPERANDS)) : scratch;
+  }
+
+  /** 清空位图引用后放回, 不让线程持有已删除的 tag 位图 */
+  private static void releaseScratch(AndScratch scratch) {
+    Arrays.fill(scratch.operands, null);
+    for (IntIteratorFlyweight iterator : scratch.iterators) {
+      iterator.wrap(EMPTY);
+    }
+    AND_SCRATCH.set(scratch);
+  }
+
+  /** 取出 AND 的全部 tag 位图, 有 tag 没有任何条目时返回 0 */
+  private int collect(Map<String, String> tags, RoaringBitmap[] operands) {
+    int length = 0;
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
+      if (Objects.isNull(bitmap)) {
+        return 0;
+      }
+      operands[length++] = bitmap;
+    }
+    return length;
+  }
+
+  /**
+   * 查询结果写入调用方复用的位图
+   *
+   * @param tags 查询 tag 键值对, 不能为空
+   * @param queryOps 集合查询操作类型
+   * @param result 结果位图, 查询前会被清空
+   * @return 结果数量
+   */
+  public int query(Map<String, String> tags, QueryOps queryOps, RoaringBitmap result) {
+    lock.readLock().lock();
+    try {
+      return doQuery(tags, queryOps, result);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * 遍历 {@link #query(Map, QueryOps, RoaringBitmap)} 的结果, 已删除的条目会被跳过
+   *
+   * @param result 查询结果位图
+   * @param consumer 结果消费者
+   */
+  public void forEach(RoaringBitmap result, Consumer<? super V> consumer) {
+    lock.readLock().lock();
+    try {
+      doForEach(result, consumer);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int doQuery(Map<String, String> tags, QueryOps queryOps, RoaringBitmap result) {
+    result.clear();
+    if (queryOps == QueryOps.OR) {
+      for (Map.Entry<String, String> tag : tags.entrySet()) {
+        RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
+        if (Objects.nonNull(bitmap)) {
+          result.or(bitmap);
+        }
+      }
+      return result.getCardinality();
+    }
+    AndScratch scratch = takeScratch(tags.size());
+    try {
+      RoaringBitmap[] operands = scratch.operands;
+      int length = collect(tags, operands);
+      if (length == 0) {
+        return 0;
+      }
+      RoaringBitmaps.plan(operands, length);
+      result.or(operands[0]);
+      for (int i = 1; i < length && !result.isEmpty(); i++) {
+        result.and(operands[i]);
+      }
+      return result.getCardinality();
+    } finally {
+      releaseScratch(scratch);
+    }
+  }
+
+  private void doForEach(RoaringBitmap result, Consumer<? super V> consumer) {
+    for (long next = result.nextValue(0); next >= 0; next = result.nextValue((int) next + 1)) {
+      V value = indexToValue.get((int) next);
+      if (Objects.nonNull(value)) {
+        consumer.accept(value);
+      }
+    }
+  }
+
+  /** AND 查询复用的 tag 位图数组与迭代器 */
+  private static final class AndScratch {
+    private final RoaringBitmap[] operands;
+    private final IntIteratorFlyweight[] iterators;
+
+    AndScratch(int size) {
+      this.operands = new RoaringBitmap[size];
+      this.iterators = new IntIteratorFlyweight[size];
+      for (int i = 0; i < size; i++) {
+        iterators[i] = new IntIteratorFlyweight();
+      }
+    }
+  }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * 持久化哈希表 (HAMT)
+ *
+ * <p>每个版本都不可变, 修改只复制从根到目标的路径, 其余节点在新旧版本间共享, 单次写入 O(log32 n). 同一个 {@link Editor}
+ * 内的连续修改原地更新自己复制出的节点, 批量写入不会重复复制路径. 不支持 null 键与 null 值.
+ */
+final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+  private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+  private static final Object[] EMPTY_ARRAY = new Object[0];
+  private static final int BITS = 5;
+  /** 32 位哈希每层取 5 位, 位图节点最多 7 层, 再加一层冲突节点 */
+  private static final int MAX_DEPTH = 8;
+
+  private final Node root;
+  private final int size;
+
+  private PersistentHashMap(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentHashMap<K, V> empty() {
+    return (PersistentHashMap<K, V>) EMPTY;
+  }
+
+  static <K, V> PersistentHashMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+    Editor<K, V> editor = PersistentHashMap.<K, V>empty().edit();
+    map.forEach(editor::put);
+    return editor.publish();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    return Objects.isNull(key) || Objects.isNull(root) ? null : (V) root.find(0, hash(key), key);
+  }
+
+  /** 整数键查找, 不装箱 */
+  @SuppressWarnings("unchecked")
+  V get(int key) {
+    return Objects.isNull(root) ? null : (V) root.findInt(0, spread(key), key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return Objects.nonNull(get(key));
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    if (Objects.nonNull(root)) {
+      root.forEach((BiConsumer<Object, Object>) action);
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /** 以当前版本为基础开始一批修改 */
+  Editor<K, V> edit() {
+    return new Editor<>(root, size);
+  }
+
+  private static int hash(Object key) {
+    return spread(key.hashCode());
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & 0x1f);
+  }
+
+  /**
+   * 一批修改, 只能单线程使用
+   *
+   * <p>修改过程中新建的节点归本批所有, 可以原地更新; {@link #publish()} 之后换一个所有权标记, 已发布的节点不再修改.
+   */
+  static final class Editor<K, V> {
+    private Object token = new Object();
+    private Node root;
+    private int size;
+    /** 单次修改的结果: 旧值, 以及条目数量是否变化 */
+    private Object previous;
+    private boolean changed;
+
+    private Editor(Node root, int size) {
+      this.root = root;
+      this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+      return Objects.isNull(key) || Objects.isNull(root) ? null : (V) root.find(0, hash(key), key);
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(K key, V value) {
+      Objects.requireNonNull(key);
+      Objects.requireNonNull(value);
+      previous = null;
+      changed = false;
+      Node current = Objects.isNull(root) ? new BitmapNode(token, 0, EMPTY_ARRAY) : root;
+      root = current.put(this, 0, hash(key), key, value);
+      if (changed) {
+        size++;
+      }
+      return (V) previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(Object key) {
+      if (Objects.isNull(key) || Objects.isNull(root)) {
+        return null;
+      }
+      previous = null;
+      changed = false;
+      root = root.remove(this, 0, hash(key), key);
+      if (changed) {
+        size--;
+      }
+      return (V) previous;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void clear() {
+      root = null;
+      size = 0;
+    }
+
+    /** 发布当前内容, 之后的修改从复制路径开始, 不影响已发布的版本 */
+    PersistentHashMap<K, V> publish() {
+      token = new Object();
+      return size == 0 ? empty() : new PersistentHashMap<>(root, size);
+    }
+  }
+
+  /** 节点数组按键值对存放, 位图节点中键为 null 的槽位存放子节点 */
+  private abstract static class Node {
+    final Object token;
+    Object[] array;
+
+    Node(Object token, Object[] array) {
+      this.token = token;
+      this.array = array;
+    }
+
+    abstract Object find(int shift, int hash, Object key);
+
+    abstract Object findInt(int shift, int hash, int key);
+
+    abstract Node put(Editor<?, ?> editor, int shift, int hash, Object key, Object value);
+
+    abstract Node remove(Editor<?, ?> editor, int shift, int hash, Object key);
+
+    void forEach(BiConsumer<Object, Object> action) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (Objects.isNull(array[i])) {
+          ((Node) array[i + 1]).forEach(action);
+        } else {
+          action.accept(array[i], array[i + 1]);
+        }
+      }
+    }
+
+    /** 只剩一个键值对的节点可以提升到父节点的槽位 */
+    boolean single() {
+      return array.length == 2 && Objects.nonNull(array[0]);
+    }
+  }
+
+  private static final class BitmapNode extends Node {
+    private int bitmap;
+
+    BitmapNode(Object token, int bitmap, Object[] array) {
+      super(token, array);
+      this.bitmap = bitmap;
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      int i = index(bit);
+      Object k = array[i];
+      if (Objects.isNull(k)) {
+        return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+      }
+      return key.equals(k) ? array[i + 1] : null;
+    }
+
+    @Override
+    Object findInt(int shift, int hash, int key) {
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      int i = index(bit);
+      Object k = array[i];
+      if (Objects.isNull(k)) {
+        return ((Node) array[i + 1]).findInt(shift + BITS, hash, key);
+      }
+      return k instanceof Integer boxed && boxed == key ? array[i + 1] : null;
+    }
+
+    @Override
+    Node put(Editor<?, ?> editor, int shift, int hash, Object key, Object value) {
+      int bit = bit(hash, shift);
+      int i = index(bit);
+      if ((bitmap & bit) == 0) {
+        editor.changed = true;
+        Object[] inserted = new Object[array.length + 2];
+        System.arraycopy(array, 0, inserted, 0, i);
+        inserted[i] = key;
+        inserted[i + 1] = value;
+        System.arraycopy(array, i, inserted, i + 2, array.length - i);
+        return editable(editor, bitmap | bit, inserted);
+      }
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (Objects.isNull(k)) {
+        Node child = (Node) v;
+        Node updated = child.put(editor, shift + BITS, hash, key, value);
+        return updated == child ? this : set(editor, i, null, updated);
+      }
+      if (key.equals(k)) {
+        editor.previous = v;
+        return v == value ? this : set(editor, i, k, value);
+      }
+      editor.changed = true;
+      return set(editor, i, null, split(editor, shift + BITS, k, v, hash, key, value));
+    }
+
+    @Override
+    Node remove(Editor<?, ?> editor, int shift, int hash, Object key) {
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int i = index(bit);
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (Objects.isNull(k)) {
+        Node child = (Node) v;
+        Node updated = child.remove(editor, shift + BITS, hash, key);
+        if (updated == child) {
+          return this;
+        } else if (Objects.isNull(updated)) {
+          return without(editor, bit, i);
+        }
+        return updated.single()
+            ? set(editor, i, updated.array[0], updated.array[1])
+            : set(editor, i, null, updated);
+      }
+      if (!key.equals(k)) {
+        return this;
+      }
+      editor.previous = v;
+      editor.changed = true;
+      return without(editor, bit, i);
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1)) << 1;
+    }
+
+    private Node set(Editor<?, ?> editor, int i, Object key, Object value) {
+      BitmapNode node =
+          token == editor.token ? this : new BitmapNode(editor.token, bitmap, array.clone());
+      node.array[i] = key;
+      node.array[i + 1] = value;
+      return node;
+    }
+
+    private Node without(Editor<?, ?> editor, int bit, int i) {
+      if (bitmap == bit) {
+        return null;
+      }
+      Object[] removed = new Object[array.length - 2];
+      System.arraycopy(array, 0, removed, 0, i);
+      System.arraycopy(array, i + 2, removed, i, array.length - i - 2);
+      return editable(editor, bitmap & ~bit, removed);
+    }
+
+    private Node editable(Editor<?, ?> editor, int bitmap, Object[] array) {
+      if (token == editor.token) {
+        this.bitmap = bitmap;
+        this.array = array;
+        return this;
+      }
+      return new BitmapNode(editor.token, bitmap, array);
+    }
+
+    /** 两个键在当前层落入同一槽位, 向下一层拆分; 哈希完全相同时放入冲突节点 */
+    private static Node split(
+        Editor<?, ?> editor, int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+      int h1 = hash(k1);
+      if (h1 == h2) {
+        return new CollisionNode(editor.token, h1, new Object[] {k1, v1, k2, v2});
+      }
+      Node node = new BitmapNode(editor.token, 0, EMPTY_ARRAY);
+      node = node.put(editor, shift, h1, k1, v1);
+      return node.put(editor, shift, h2, k2, v2);
+    }
+  }
+
+  /** 哈希完全相同的键 */
+  private static final class CollisionNode extends Node {
+    private final int hash;
+
+    CollisionNode(Object token, int hash, Object[] array) {
+      super(token, array);
+      this.hash = hash;
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      if (hash == this.hash) {
+        for (int i = 0; i < array.length; i += 2) {
+          if (key.equals(array[i])) {
+            return array[i + 1];
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    Object findInt(int shift, int hash, int key) {
+      if (hash == this.hash) {
+        for (int i = 0; i < array.length; i += 2) {
+          if (array[i] instanceof Integer boxed && boxed == key) {
+            return array[i + 1];
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    Node put(Editor<?, ?> editor, int shift, int hash, Object key, Object value) {
+      if (hash != this.hash) {
+        Node node = new BitmapNode(editor.token, bit(this.hash, shift), new Object[] {null, this});
+        return node.put(editor, shift, hash, key, value);
+      }
+      int i = indexOf(key);
+      if (i >= 0) {
+        editor.previous = array[i + 1];
+        if (array[i + 1] == value) {
+          return this;
+        }
+        CollisionNode node = editable(editor, array.clone());
+        node.array[i + 1] = value;
+        return node;
+      }
+      editor.changed = true;
+      Object[] appended = Arrays.copyOf(array, array.length + 2);
+      appended[array.length] = key;
+      appended[array.length + 1] = value;
+      return editable(editor, appended);
+    }
+
+    @Override
+    Node remove(Editor<?, ?> editor, int shift, int hash, Object key) {
+      int i = hash == this.hash ? indexOf(key) : -1;
+      if (i < 0) {
+        return this;
+      }
+      editor.previous = array[i + 1];
+      editor.changed = true;
+      if (array.length == 2) {
+        return null;
+      }
+      Object[] removed = new Object[array.length - 2];
+      System.arraycopy(array, 0, removed, 0, i);
+      System.arraycopy(array, i + 2, removed, i, array.length - i - 2);
+      return editable(editor, removed);
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private CollisionNode editable(Editor<?, ?> editor, Object[] array) {
+      if (token == editor.token) {
+        this.array = array;
+        return this;
+      }
+      return new CollisionNode(editor.token, hash, array);
+    }
+  }
+
+  /** 深度优先遍历, 每层记录节点数组与下一个位置 */
+  private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+    private final Object[][] arrays = new Object[MAX_DEPTH][];
+    private final int[] positions = new int[MAX_DEPTH];
+    private int depth;
+    private Map.Entry<K, V> next;
+
+    EntryIterator(Node root) {
+      if (Objects.isNull(root)) {
+        depth = -1;
+      } else {
+        arrays[0] = root.array;
+      }
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return Objects.nonNull(next);
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (Objects.isNull(next)) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<K, V> current = next;
+      advance();
+      return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      while (depth >= 0) {
+        Object[] array = arrays[depth];
+        int i = positions[depth];
+        if (i >= array.length) {
+          depth--;
+          continue;
+        }
+        positions[depth] = i + 2;
+        if (Objects.isNull(array[i])) {
+          depth++;
+          arrays[depth] = ((Node) array[i + 1]).array;
+          positions[depth] = 0;
+        } else {
+          next = new SimpleImmutableEntry<>((K) array[i], (V) array[i + 1]);
+          return;
+        }
+      }
+      next = null;
+    }
+  }
+}
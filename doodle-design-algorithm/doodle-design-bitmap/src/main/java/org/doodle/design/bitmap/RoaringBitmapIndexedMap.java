@@ -15,66 +15,146 @@
  */
 package org.doodle.design.bitmap;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import org.agrona.collections.Int2ObjectHashMap;
 import org.agrona.collections.Object2ObjectHashMap;
 import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.PeekableIntIterator;
 import org.roaringbitmap.RoaringBitmap;
 
-public class RoaringBitmapIndexedMap<K, V> implements IndexedMap<K, V, Map<String, String>> {
+public class RoaringBitmapIndexedMap<K, V> implements TagIndexedMap<K, V> {
+  private static final int DEFAULT_QUERY_CACHE_SIZE = 256;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
   private final AtomicInteger internalIndex = new AtomicInteger();
+  /** 写操作开始和结束时各自增一次, 奇数表示正在写入 */
+  private final AtomicLong version = new AtomicLong();
+
+  private final RoaringBitmap freeIndexes = new RoaringBitmap();
+  /** 从快照加载, 尚未重新绑定值的内部索引, 不出现在查询结果中 */
+  private final RoaringBitmap pendingIndexes = new RoaringBitmap();
   private final Map<K, Integer> keyToIndex;
   private final Int2ObjectHashMap<V> indexToValue;
-  private final Int2ObjectHashMap<Map<String, String>> indexToTags;
+  private final Int2ObjectHashMap<Set<Map.Entry<String, String>>> indexToTags;
   private final Table<String, CharSequence, RoaringBitmap> tagIndexes;
+  private final int queryCacheSize;
+  private final Map<Object, CachedResult> queryCache = new ConcurrentHashMap<>();
+  private final LongAdder queryCacheHits = new LongAdder();
+  private final LongAdder queryCacheMisses = new LongAdder();
 
   public RoaringBitmapIndexedMap() {
+    this(DEFAULT_QUERY_CACHE_SIZE);
+  }
+
+  /**
+   * @param queryCacheSize 查询结果缓存的最大条目数, 0 表示不缓存
+   */
+  public RoaringBitmapIndexedMap(int queryCacheSize) {
+    this.queryCacheSize = queryCacheSize;
     this.keyToIndex = Collections.synchronizedMap(new HashMap<>());
     this.indexToValue = new Int2ObjectHashMap<>();
     this.indexToTags = new Int2ObjectHashMap<>();
     this.tagIndexes = new Table<>(new Object2ObjectHashMap<>(), Object2ObjectHashMap::new);
   }
 
+  /** agrona 集合不是线程安全的, 所有读取都持有读锁 */
   @Override
   public V get(K key) {
-    Integer index = keyToIndex.get(key);
-    return Objects.nonNull(index) ? indexToValue.get(index) : null;
+    lock.readLock().lock();
+    try {
+      Integer index = keyToIndex.get(key);
+      return Objects.nonNull(index) ? indexToValue.get(index) : null;
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   @Override
   public V put(K key, V value, Map<String, String> tags) {
+    return put(key, value, tags, Collections.emptyMap());
+  }
+
+  @Override
+  public V put(
+      K key,
+      V value,
+      Map<String, String> tags,
+      Map<String, ? extends Collection<String>> multiTags) {
+    Set<Map.Entry<String, String>> tagSet = RoaringBitmaps.toTagSet(tags, multiTags);
     V previousValue;
-    int index = keyToIndex.computeIfAbsent(key, ignored -> internalIndex.incrementAndGet());
-    synchronized (this) {
+    lock.writeLock().lock();
+    try {
+      version.incrementAndGet();
+      Integer index = keyToIndex.get(key);
+      if (Objects.isNull(index)) {
+        index = nextIndex();
+        keyToIndex.put(key, index);
+      } else {
+        pendingIndexes.remove(index);
+      }
       previousValue = indexToValue.put(index, value);
-      Map<String, String> previousTags = indexToTags.put(index, tags);
+      Set<Map.Entry<String, String>> previousTags = indexToTags.put(index, tagSet);
       if (Objects.nonNull(previousTags) && !previousTags.isEmpty()) {
-        removeTags(index, previousTags, tags);
+        removeTags(index, previousTags, tagSet);
       }
-      addTags(index, tags);
+      addTags(index, tagSet);
+      version.incrementAndGet();
+    } finally {
+      lock.writeLock().unlock();
     }
     return previousValue;
   }
 
   @Override
   public V remove(K key) {
-    Integer index = keyToIndex.remove(key);
-    if (index != null) {
-      V previousValue = indexToValue.remove(index);
-      synchronized (this) {
-        Map<String, String> tags = indexToTags.remove(index);
+    lock.writeLock().lock();
+    try {
+      Integer index = keyToIndex.remove(key);
+      if (index != null) {
+        version.incrementAndGet();
+        V previousValue = indexToValue.remove(index);
+        Set<Map.Entry<String, String>> tags = indexToTags.remove(index);
         if (Objects.nonNull(tags)) {
-          removeTags(index, tags, Collections.emptyMap());
+          removeTags(index, tags, Collections.emptySet());
         }
+        freeIndexes.add(index);
+        pendingIndexes.remove(index);
+        version.incrementAndGet();
+        return previousValue;
       }
-      return previousValue;
+      return null;
+    } finally {
+      lock.writeLock().unlock();
     }
-    return null;
   }
 
-  private void addTags(int index, Map<String, String> tags) {
-    for (Map.Entry<String, String> tag : tags.entrySet()) {
+  /** 优先复用最小的空闲索引, 保持位图中的索引稠密 */
+  private int nextIndex() {
+    if (!freeIndexes.isEmpty()) {
+      int index = freeIndexes.first();
+      freeIndexes.remove(index);
+      return index;
+    }
+    return internalIndex.incrementAndGet();
+  }
+
+  private void addTags(int index, Set<Map.Entry<String, String>> tags) {
+    for (Map.Entry<String, String> tag : tags) {
       RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
       if (Objects.isNull(bitmap)) {
         bitmap = new RoaringBitmap();
@@ -84,10 +164,10 @@ public class RoaringBitmapIndexedMap<K, V> implements IndexedMap<K, V, Map<Strin
     }
   }
 
-  private void removeTags(int index, Map<String, String> removed, Map<String, String> reserved) {
-    for (Map.Entry<String, String> tag : removed.entrySet()) {
-      String previousValue = reserved.get(tag.getKey());
-      if (Objects.isNull(previousValue) || !previousValue.equalsIgnoreCase(tag.getValue())) {
+  private void removeTags(
+      int index, Set<Map.Entry<String, String>> removed, Set<Map.Entry<String, String>> reserved) {
+    for (Map.Entry<String, String> tag : removed) {
+      if (!reserved.contains(tag)) {
         RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
         if (Objects.nonNull(bitmap)) {
           bitmap.remove(index);
@@ -101,118 +181,525 @@ public class RoaringBitmapIndexedMap<K, V> implements IndexedMap<K, V, Map<Strin
 
   @Override
   public int size() {
-    return indexToValue.size();
+    lock.readLock().lock();
+    try {
+      return indexToValue.size();
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   @Override
   public boolean isEmpty() {
-    return indexToValue.isEmpty();
+    return size() == 0;
   }
 
   @Override
   public void clear() {
-    synchronized (this) {
+    lock.writeLock().lock();
+    try {
+      version.incrementAndGet();
       keyToIndex.clear();
       indexToValue.clear();
       indexToTags.clear();
       tagIndexes.clear();
+      freeIndexes.clear();
+      pendingIndexes.clear();
       internalIndex.set(0);
+      queryCache.clear();
+      version.incrementAndGet();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * 当前索引碎片情况
+   *
+   * @return 碎片统计
+   */
+  public Fragmentation fragmentation() {
+    lock.readLock().lock();
+    try {
+      long sizeInBytes = 0;
+      for (Map<CharSequence, RoaringBitmap> row : tagIndexes.rowMap().values()) {
+        for (RoaringBitmap bitmap : row.values()) {
+          sizeInBytes += bitmap.getLongSizeInBytes();
+        }
+      }
+      return new Fragmentation(
+          indexToTags.size(), internalIndex.get(), freeIndexes.getCardinality(), sizeInBytes);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * 将存活条目重新编号到 [1, size] 的稠密区间, 并压缩所有 tag 位图
+   *
+   * <p>压缩期间阻塞所有读写, 只应在写入较少时执行.
+   *
+   * @return 压缩前后的碎片统计
+   */
+  public Compaction compact() {
+    lock.writeLock().lock();
+    try {
+      Fragmentation before = fragmentation();
+      version.incrementAndGet();
+      Int2ObjectHashMap<V> values = new Int2ObjectHashMap<>(indexToValue);
+      Int2ObjectHashMap<Set<Map.Entry<String, String>>> tags =
+          new Int2ObjectHashMap<>(indexToTags);
+      Int2ObjectHashMap<K> indexToKey = new Int2ObjectHashMap<>();
+      synchronized (keyToIndex) {
+        for (Map.Entry<K, Integer> entry : keyToIndex.entrySet()) {
+          indexToKey.put(entry.getValue().intValue(), entry.getKey());
+        }
+      }
+      RoaringBitmap live = new RoaringBitmap();
+      tags.forEachInt((liveIndex, liveTags) -> live.add(liveIndex));
+      RoaringBitmap pending = pendingIndexes.clone();
+
+      indexToValue.clear();
+      indexToTags.clear();
+      tagIndexes.clear();
+      freeIndexes.clear();
+      pendingIndexes.clear();
+      int index = 0;
+      for (IntIterator it = live.getIntIterator(); it.hasNext(); ) {
+        int previousIndex = it.next();
+        index++;
+        keyToIndex.put(indexToKey.get(previousIndex), index);
+        if (pending.contains(previousIndex)) {
+          pendingIndexes.add(index);
+        } else {
+          indexToValue.put(index, values.get(previousIndex));
+        }
+        Set<Map.Entry<String, String>> previousTags = tags.get(previousIndex);
+        if (Objects.nonNull(previousTags)) {
+          indexToTags.put(index, previousTags);
+          addTags(index, previousTags);
+        }
+      }
+      internalIndex.set(index);
+      for (Map<CharSequence, RoaringBitmap> row : tagIndexes.rowMap().values()) {
+        for (RoaringBitmap bitmap : row.values()) {
+          bitmap.runOptimize();
+        }
+      }
+      version.incrementAndGet();
+      return new Compaction(before, fragmentation());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * 后台定期检查碎片, 超过阈值时执行 {@link #compact()}
+   *
+   * @param executor 调度线程池
+   * @param period 检查间隔
+   * @param threshold 触发压缩的碎片率, 取值 [0, 1)
+   * @param listener 每次压缩完成后回调
+   * @return 调度任务, 取消即停止后台压缩
+   */
+  public ScheduledFuture<?> scheduleCompaction(
+      ScheduledExecutorService executor,
+      Duration period,
+      double threshold,
+      Consumer<Compaction> listener) {
+    long millis = period.toMillis();
+    return executor.scheduleWithFixedDelay(
+        () -> {
+          if (fragmentation().ratio() > threshold) {
+            listener.accept(compact());
+          }
+        },
+        millis,
+        millis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 将主键, tag 与 tag 位图写入快照文件, 值不写入
+   *
+   * <p>先写入同目录下的临时文件再原子替换, 写入期间不阻塞读写.
+   *
+   * @param file 快照文件
+   * @param keyCodec 主键编解码
+   * @throws IOException 写入失败
+   */
+  public void writeSnapshot(Path file, KeyCodec<K> keyCodec) throws IOException {
+    List<IndexedMapSnapshotFile.Entry> entries;
+    Table<String, CharSequence, RoaringBitmap> bitmaps =
+        new Table<>(new HashMap<>(), HashMap::new);
+    int maxIndex;
+    lock.readLock().lock();
+    try {
+      entries = new ArrayList<>(indexToTags.size());
+      synchronized (keyToIndex) {
+        for (Map.Entry<K, Integer> entry : keyToIndex.entrySet()) {
+          int index = entry.getValue();
+          entries.add(
+              new IndexedMapSnapshotFile.Entry(
+                  index, keyCodec.encode(entry.getKey()), indexToTags.get(index)));
+        }
+      }
+      for (Map.Entry<String, Map<CharSequence, RoaringBitmap>> row :
+          tagIndexes.rowMap().entrySet()) {
+        for (Map.Entry<CharSequence, RoaringBitmap> column : row.getValue().entrySet()) {
+          bitmaps.put(row.getKey(), column.getKey(), column.getValue().clone());
+        }
+      }
+      maxIndex = internalIndex.get();
+    } finally {
+      lock.readLock().unlock();
+    }
+    IndexedMapSnapshotFile.write(
+        file, new IndexedMapSnapshotFile.Contents(maxIndex, entries, bitmaps));
+  }
+
+  /**
+   * 从快照文件加载主键, tag 与 tag 位图, 替换当前全部条目
+   *
+   * <p>加载的条目处于待绑定状态, 不出现在查询结果中, 同一主键再次 {@link #put(Object, Object, Map)}
+   * 时复用原内部索引, tag 不变时不修改任何位图.
+   *
+   * @param file 快照文件
+   * @param keyCodec 主键编解码
+   * @return 加载的条目数量
+   * @throws IOException 读取失败或文件格式版本不兼容
+   */
+  public int loadSnapshot(Path file, KeyCodec<K> keyCodec) throws IOException {
+    IndexedMapSnapshotFile.Contents contents = IndexedMapSnapshotFile.read(file);
+    lock.writeLock().lock();
+    try {
+      version.incrementAndGet();
+      keyToIndex.clear();
+      indexToValue.clear();
+      indexToTags.clear();
+      tagIndexes.clear();
+      pendingIndexes.clear();
+      queryCache.clear();
+      for (IndexedMapSnapshotFile.Entry entry : contents.entries()) {
+        keyToIndex.put(keyCodec.decode(entry.key()), entry.index());
+        indexToTags.put(entry.index(), entry.tags());
+        pendingIndexes.add(entry.index());
+      }
+      for (Map.Entry<String, Map<CharSequence, RoaringBitmap>> row :
+          contents.tagIndexes().rowMap().entrySet()) {
+        for (Map.Entry<CharSequence, RoaringBitmap> column : row.getValue().entrySet()) {
+          tagIndexes.put(row.getKey(), column.getKey(), column.getValue());
+        }
+      }
+      internalIndex.set(contents.maxIndex());
+      freeIndexes.clear();
+      freeIndexes.add(1L, contents.maxIndex() + 1L);
+      freeIndexes.andNot(pendingIndexes);
+      version.incrementAndGet();
+      return contents.entries().size();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * 移除所有仍未重新绑定值的快照条目
+   *
+   * @return 移除的条目数量
+   */
+  public int evictPending() {
+    lock.writeLock().lock();
+    try {
+      if (pendingIndexes.isEmpty()) {
+        return 0;
+      }
+      version.incrementAndGet();
+      keyToIndex.values().removeIf(pendingIndexes::contains);
+      for (IntIterator it = pendingIndexes.getIntIterator(); it.hasNext(); ) {
+        int index = it.next();
+        Set<Map.Entry<String, String>> tags = indexToTags.remove(index);
+        if (Objects.nonNull(tags)) {
+          removeTags(index, tags, Collections.emptySet());
+        }
+        freeIndexes.add(index);
+      }
+      int evicted = pendingIndexes.getCardinality();
+      pendingIndexes.clear();
+      version.incrementAndGet();
+      return evicted;
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
+  /** 读锁内复制的快照, 不随之后的写入变化 */
   @Override
   public Collection<V> values() {
-    return indexToValue.values();
+    lock.readLock().lock();
+    try {
+      return new ArrayList<>(indexToValue.values());
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   @Override
   public List<V> query(Map<String, String> tags, QueryOps queryOps) {
-    if (tags == null || tags.isEmpty()) {
-      return new ArrayList<>(indexToValue.values());
-    }
-    return queryOps == QueryOps.AND ? queryAnd(tags) : queryOr(tags);
+    return readLocked(() -> result(tags, queryOps));
   }
 
-  private List<V> queryOr(Map<String, String> tags) {
-    RoaringBitmap result = null;
-    for (Map.Entry<String, String> tag : tags.entrySet()) {
-      RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
-      if (Objects.isNull(bitmap)) {
-        continue;
+  /** 读锁内从分页起点遍历结果位图, 没有待绑定条目时用 select 直接定位, 只取出本页的值 */
+  @Override
+  public List<V> query(Map<String, String> tags, QueryOps queryOps, int offset, int limit) {
+    if (limit <= 0) {
+      return Collections.emptyList();
+    }
+    lock.readLock().lock();
+    try {
+      RoaringBitmap result = result(tags, queryOps);
+      int skip = Math.max(offset, 0);
+      int cardinality = result.getCardinality();
+      if (skip >= cardinality) {
+        return Collections.emptyList();
+      }
+      PeekableIntIterator it = result.getIntIterator();
+      if (pendingIndexes.isEmpty()) {
+        it.advanceIfNeeded(result.select(skip));
+        skip = 0;
       }
-      if (Objects.isNull(result)) {
-        result = new RoaringBitmap();
+      List<V> values = new ArrayList<>(Math.min(limit, cardinality - skip));
+      while (it.hasNext() && values.size() < limit) {
+        V value = indexToValue.get(it.next());
+        if (Objects.isNull(value)) {
+          continue;
+        }
+        if (skip > 0) {
+          skip--;
+        } else {
+          values.add(value);
+        }
       }
-      result.or(bitmap);
+      return values;
+    } finally {
+      lock.readLock().unlock();
     }
+  }
 
-    if (Objects.isNull(result) || result.isEmpty()) {
-      return Collections.emptyList();
+  /** consumer 在读锁内执行, 不能写入本索引 */
+  @Override
+  public void forEach(Map<String, String> tags, QueryOps queryOps, Consumer<? super V> consumer) {
+    lock.readLock().lock();
+    try {
+      RoaringBitmap result = result(tags, queryOps);
+      for (IntIterator it = result.getIntIterator(); it.hasNext(); ) {
+        V value = indexToValue.get(it.next());
+        if (Objects.nonNull(value)) {
+          consumer.accept(value);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
     }
-
-    return new RoaringBitmapList(result);
   }
 
-  private List<V> queryAnd(Map<String, String> tags) {
-    RoaringBitmap result = null;
-    for (Map.Entry<String, String> tag : tags.entrySet()) {
-      RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
-      if (Objects.isNull(bitmap)) {
-        return Collections.emptyList();
+  /** 流在锁外消费, 值只能在读锁内解析, 先把值复制到数组, 数组按区间切分并行 */
+  @Override
+  public Stream<V> stream(Map<String, String> tags, QueryOps queryOps, boolean parallel) {
+    Object[] values;
+    lock.readLock().lock();
+    try {
+      RoaringBitmap result = result(tags, queryOps);
+      values = new Object[result.getCardinality()];
+      int size = 0;
+      for (IntIterator it = result.getIntIterator(); it.hasNext(); ) {
+        V value = indexToValue.get(it.next());
+        if (Objects.nonNull(value)) {
+          values[size++] = value;
+        }
       }
-      if (Objects.isNull(result)) {
-        result = new RoaringBitmap();
-        result.or(bitmap);
-      } else {
-        result.and(bitmap);
+      if (size < values.length) {
+        values = Arrays.copyOf(values, size);
       }
+    } finally {
+      lock.readLock().unlock();
+    }
+    @SuppressWarnings("unchecked")
+    Stream<V> stream = (Stream<V>) Arrays.stream(values);
+    return parallel ? stream.parallel() : stream;
+  }
+
+  /** 需要持有读锁 */
+  private RoaringBitmap result(Map<String, String> tags, QueryOps queryOps) {
+    if (Objects.isNull(tags) || tags.isEmpty()) {
+      return liveIndexes();
+    }
+    return queryCacheSize > 0
+        ? cachedQuery(new QueryKey(tags, queryOps), () -> query0(tags, queryOps))
+        : query0(tags, queryOps);
+  }
+
+  @Override
+  public List<V> query(TagQuery query) {
+    return queryCacheSize > 0
+        ? readLocked(() -> cachedQuery(query, () -> evaluate(query)))
+        : readLocked(() -> evaluate(query));
+  }
+
+  private RoaringBitmap evaluate(TagQuery query) {
+    return RoaringBitmaps.evaluate(query, tagIndexes, this::liveIndexes, true);
+  }
+
+  private RoaringBitmap liveIndexes() {
+    RoaringBitmap live = RoaringBitmap.bitmapOfRange(1, internalIndex.get() + 1L);
+    live.andNot(freeIndexes);
+    live.andNot(pendingIndexes);
+    return live;
+  }
+
+  /**
+   * tag 位图在写锁内原地修改, 求值和取值都在同一次读锁内完成
+   *
+   * <p>内部索引会被删除后的写入复用, 也会被 {@link #compact()} 重新编号, 结果位图不能在锁外解析, 返回的列表是值的快照,
+   * 缓存命中时也需要 O(结果数量) 的复制. 只需要部分结果时使用分页查询或 {@link #forEach(Map, QueryOps, Consumer)}.
+   *
+   * @param query 返回结果位图的查询, 待绑定的条目没有值, 会被跳过
+   */
+  private List<V> readLocked(Supplier<RoaringBitmap> query) {
+    lock.readLock().lock();
+    try {
+      RoaringBitmap result = query.get();
       if (result.isEmpty()) {
         return Collections.emptyList();
       }
+      List<V> values = new ArrayList<>(result.getCardinality());
+      for (IntIterator it = result.getIntIterator(); it.hasNext(); ) {
+        V value = indexToValue.get(it.next());
+        if (Objects.nonNull(value)) {
+          values.add(value);
+        }
+      }
+      return values;
+    } finally {
+      lock.readLock().unlock();
     }
-    return new RoaringBitmapList(result);
   }
 
-  private class RoaringBitmapList extends AbstractList<V> {
-    private final RoaringBitmap result;
-
-    public RoaringBitmapList(RoaringBitmap result) {
-      this.result = result;
+  /**
+   * @param key 不可变的缓存键, 键值对查询使用 {@link QueryKey}, 表达式查询使用 {@link TagQuery} 本身
+   */
+  private RoaringBitmap cachedQuery(Object key, Supplier<RoaringBitmap> query) {
+    long currentVersion = version.get();
+    CachedResult cached = queryCache.get(key);
+    if (Objects.nonNull(cached) && cached.version() == currentVersion) {
+      queryCacheHits.increment();
+      return cached.result();
+    }
+    queryCacheMisses.increment();
+    RoaringBitmap result = query.get();
+    // 查询期间没有发生写入, 结果才可以缓存
+    if ((currentVersion & 1) == 0 && version.get() == currentVersion) {
+      if (queryCache.size() >= queryCacheSize) {
+        queryCache.values().removeIf(entry -> entry.version() != currentVersion);
+      }
+      if (queryCache.size() < queryCacheSize) {
+        Object cacheKey =
+            key instanceof QueryKey queryKey
+                ? new QueryKey(Map.copyOf(queryKey.tags()), queryKey.queryOps())
+                : key;
+        queryCache.put(cacheKey, new CachedResult(currentVersion, result));
+      }
     }
+    return result;
+  }
+
+  private RoaringBitmap query0(Map<String, String> tags, QueryOps queryOps) {
+    return queryOps == QueryOps.AND ? queryAnd(tags) : queryOr(tags);
+  }
 
-    @Override
-    public V get(int index) {
-      int key = result.select(index);
-      return indexToValue.get(key);
+  private RoaringBitmap queryOr(Map<String, String> tags) {
+    RoaringBitmap result = new RoaringBitmap();
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
+      if (Objects.nonNull(bitmap)) {
+        result.or(bitmap);
+      }
     }
+    return result;
+  }
 
-    @Override
-    public Iterator<V> iterator() {
-      return new RoaringBitmapIterator(result.getIntIterator());
+  private RoaringBitmap queryAnd(Map<String, String> tags) {
+    RoaringBitmap[] operands = new RoaringBitmap[tags.size()];
+    int length = 0;
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      RoaringBitmap bitmap = tagIndexes.get(tag.getKey(), tag.getValue());
+      if (Objects.isNull(bitmap)) {
+        return new RoaringBitmap();
+      }
+      operands[length++] = bitmap;
     }
+    RoaringBitmap result = RoaringBitmaps.and(operands, length);
+    // 结果可能被缓存, 不能直接引用会被修改的 tag 位图
+    return result == operands[0] ? result.clone() : result;
+  }
 
-    @Override
-    public int size() {
-      return result.getCardinality();
+  /**
+   * 查询结果缓存统计
+   *
+   * @return 命中率与内存占用
+   */
+  public QueryCacheStats queryCacheStats() {
+    long sizeInBytes = 0;
+    for (CachedResult cached : queryCache.values()) {
+      sizeInBytes += cached.result().getLongSizeInBytes();
     }
+    return new QueryCacheStats(
+        queryCacheHits.sum(), queryCacheMisses.sum(), queryCache.size(), sizeInBytes);
   }
 
-  private class RoaringBitmapIterator implements Iterator<V> {
-    private final IntIterator results;
+  /**
+   * 索引碎片统计
+   *
+   * @param size 占用内部索引的条目数量, 包含待绑定的快照条目
+   * @param maxIndex 已分配的最大内部索引
+   * @param freeIndexes 空闲待复用的内部索引数量
+   * @param sizeInBytes 所有 tag 位图占用内存
+   */
+  public record Fragmentation(int size, int maxIndex, int freeIndexes, long sizeInBytes) {
 
-    public RoaringBitmapIterator(IntIterator results) {
-      this.results = results;
+    /** 未被存活条目占用的索引比例 */
+    public double ratio() {
+      return maxIndex == 0 ? 0 : 1 - (double) size / maxIndex;
     }
+  }
 
-    @Override
-    public boolean hasNext() {
-      return results.hasNext();
-    }
+  /**
+   * 一次压缩前后的碎片统计
+   *
+   * @param before 压缩前
+   * @param after 压缩后
+   */
+  public record Compaction(Fragmentation before, Fragmentation after) {}
+
+  /**
+   * 查询结果缓存统计
+   *
+   * @param hits 命中次数
+   * @param misses 未命中次数
+   * @param entries 缓存条目数量
+   * @param sizeInBytes 缓存结果位图占用内存
+   */
+  public record QueryCacheStats(long hits, long misses, int entries, long sizeInBytes) {
 
-    @Override
-    public V next() {
-      int index = results.next();
-      return indexToValue.get(index);
+    /** 缓存命中率 */
+    public double hitRatio() {
+      long total = hits + misses;
+      return total == 0 ? 0 : (double) hits / total;
     }
   }
+
+  /** tags 使用 Map 的内容相等语义, 与迭代顺序无关 */
+  private record QueryKey(Map<String, String> tags, QueryOps queryOps) {}
+
+  /** 缓存的结果位图不再修改, 可以被多个查询共享 */
+  private record CachedResult(long version, RoaringBitmap result) {}
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * 以位图中的内部索引为元素的只读列表
+ *
+ * <p>顺序遍历使用 {@link PeekableIntIterator}, 分页 {@link #subList(int, int)} 只在边界处 select 一次,
+ * {@link #spliterator()} 按 container 边界切分, 可以直接并行处理.
+ */
+final class RoaringBitmapList<V> extends AbstractList<V> {
+  private static final long END = 1L << 32;
+
+  private final RoaringBitmap result;
+  private final IntFunction<V> values;
+  private final int fromRank;
+  private final int toRank;
+
+  RoaringBitmapList(RoaringBitmap result, IntFunction<V> values) {
+    this(result, values, 0, result.getCardinality());
+  }
+
+  private RoaringBitmapList(RoaringBitmap result, IntFunction<V> values, int fromRank, int toRank) {
+    this.result = result;
+    this.values = values;
+    this.fromRank = fromRank;
+    this.toRank = toRank;
+  }
+
+  @Override
+  public V get(int index) {
+    Objects.checkIndex(index, size());
+    return values.apply(result.select(fromRank + index));
+  }
+
+  @Override
+  public int size() {
+    return toRank - fromRank;
+  }
+
+  @Override
+  public Iterator<V> iterator() {
+    PeekableIntIterator results = start();
+    return new Iterator<>() {
+      private int remaining = size();
+
+      @Override
+      public boolean hasNext() {
+        return remaining > 0;
+      }
+
+      @Override
+      public V next() {
+        if (remaining <= 0) {
+          throw new NoSuchElementException();
+        }
+        remaining--;
+        return values.apply(results.next());
+      }
+    };
+  }
+
+  @Override
+  public void forEach(Consumer<? super V> action) {
+    PeekableIntIterator results = start();
+    for (int remaining = size(); remaining > 0; remaining--) {
+      action.accept(values.apply(results.next()));
+    }
+  }
+
+  @Override
+  public List<V> subList(int fromIndex, int toIndex) {
+    Objects.checkFromToIndex(fromIndex, toIndex, size());
+    return new RoaringBitmapList<>(result, values, fromRank + fromIndex, fromRank + toIndex);
+  }
+
+  @Override
+  public Spliterator<V> spliterator() {
+    long from = fromRank == 0 ? 0 : Integer.toUnsignedLong(result.select(fromRank));
+    long to =
+        toRank == result.getCardinality() ? END : Integer.toUnsignedLong(result.select(toRank));
+    return new ContainerSpliterator(from, to);
+  }
+
+  private PeekableIntIterator start() {
+    PeekableIntIterator results = result.getIntIterator();
+    if (fromRank > 0) {
+      results.advanceIfNeeded(result.select(fromRank));
+    }
+    return results;
+  }
+
+  /** 遍历 [from, to) 范围内的内部索引, 按 container (高 16 位) 对半切分 */
+  private final class ContainerSpliterator implements Spliterator<V> {
+    private long from;
+    private final long to;
+    private PeekableIntIterator results;
+
+    ContainerSpliterator(long from, long to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super V> action) {
+      PeekableIntIterator it = results();
+      if (it.hasNext() && Integer.toUnsignedLong(it.peekNext()) < to) {
+        action.accept(values.apply(it.next()));
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super V> action) {
+      PeekableIntIterator it = results();
+      while (it.hasNext() && Integer.toUnsignedLong(it.peekNext()) < to) {
+        action.accept(values.apply(it.next()));
+      }
+    }
+
+    @Override
+    public Spliterator<V> trySplit() {
+      if (Objects.nonNull(results) || result.isEmpty()) {
+        return null;
+      }
+      long low = Math.max(from, Integer.toUnsignedLong(result.first())) >>> 16;
+      long high = Math.min(to - 1, Integer.toUnsignedLong(result.last())) >>> 16;
+      if (high <= low) {
+        return null;
+      }
+      long middle = ((low + high + 1) >>> 1) << 16;
+      ContainerSpliterator prefix = new ContainerSpliterator(from, middle);
+      this.from = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      if (Objects.isNull(results)) {
+        return result.rangeCardinality(from, to);
+      }
+      return results.hasNext()
+          ? result.rangeCardinality(Integer.toUnsignedLong(results.peekNext()), to)
+          : 0;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED;
+    }
+
+    private PeekableIntIterator results() {
+      if (Objects.isNull(results)) {
+        results = result.getIntIterator();
+        results.advanceIfNeeded((int) from);
+      }
+      return results;
+    }
+  }
+}
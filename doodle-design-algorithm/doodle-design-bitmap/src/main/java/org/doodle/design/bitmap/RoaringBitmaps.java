@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.*;
+import java.util.function.Supplier;
+import lombok.experimental.UtilityClass;
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.ContainerPointer;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+@UtilityClass
+class RoaringBitmaps {
+  private static final Comparator<RoaringBitmap> BY_CARDINALITY =
+      Comparator.comparingLong(RoaringBitmap::getLongCardinality);
+
+  /**
+   * 交集查询计划, 按基数从小到大依次求交集, 结果为空时立即返回
+   *
+   * @param operands 参与交集的位图, 会被重新排序
+   * @param length 有效的位图数量
+   * @return 交集结果, 只有一个位图时直接返回该位图本身
+   */
+  static RoaringBitmap and(RoaringBitmap[] operands, int length) {
+    if (length == 0) {
+      return new RoaringBitmap();
+    }
+    plan(operands, length);
+    if (length == 1 || operands[0].isEmpty()) {
+      return operands[0];
+    }
+    RoaringBitmap result = RoaringBitmap.and(operands[0], operands[1]);
+    for (int i = 2; i < length && !result.isEmpty(); i++) {
+      result.and(operands[i]);
+    }
+    return result;
+  }
+
+  /**
+   * 按基数从小到大排列交集的位图, 位图数量很少时原地插入排序, 不分配
+   *
+   * @param operands 参与交集的位图
+   * @param length 有效的位图数量
+   */
+  static void plan(RoaringBitmap[] operands, int length) {
+    Arrays.sort(operands, 0, length, BY_CARDINALITY);
+  }
+
+  /**
+   * 加入一个值后的新位图, 原位图不变
+   *
+   * <p>新位图与原位图共享其余容器, 只复制值所在的一个容器, 复制量不随基数增长. 共享的容器不能原地修改, 需要修改返回的位图时先
+   * {@link RoaringBitmap#clone()}.
+   *
+   * @param bitmap 原位图
+   * @param value 加入的值
+   * @return 新位图
+   */
+  static RoaringBitmap with(RoaringBitmap bitmap, int value) {
+    return copyOnWrite(bitmap, value, true);
+  }
+
+  /**
+   * 去掉一个值后的新位图, 原位图不变, 与 {@link #with(RoaringBitmap, int)} 一样共享未修改的容器
+   *
+   * @param bitmap 原位图
+   * @param value 去掉的值
+   * @return 新位图
+   */
+  static RoaringBitmap without(RoaringBitmap bitmap, int value) {
+    return copyOnWrite(bitmap, value, false);
+  }
+
+  private static RoaringBitmap copyOnWrite(RoaringBitmap bitmap, int value, boolean add) {
+    char high = (char) (value >>> 16);
+    char low = (char) value;
+    RoaringBitmap copied = new RoaringBitmap();
+    boolean absent = add;
+    ContainerPointer pointer = bitmap.getContainerPointer();
+    for (Container container; Objects.nonNull(container = pointer.getContainer()); ) {
+      char key = pointer.key();
+      if (absent && key > high) {
+        copied.append(high, new ArrayContainer().add(low));
+        absent = false;
+      }
+      if (key == high) {
+        absent = false;
+        Container updated = add ? container.clone().add(low) : container.clone().remove(low);
+        if (!updated.isEmpty()) {
+          copied.append(key, updated.runOptimize());
+        }
+      } else {
+        copied.append(key, container);
+      }
+      pointer.advance();
+    }
+    if (absent) {
+      copied.append(high, new ArrayContainer().add(low));
+    }
+    return copied;
+  }
+
+  /**
+   * 将单值 tag 与多值 tag 合并为 (键, 值) 集合
+   *
+   * @param tags 单值 tag
+   * @param multiTags 多值 tag
+   * @return 不可变的 tag 集合
+   */
+  static Set<Map.Entry<String, String>> toTagSet(
+      Map<String, String> tags, Map<String, ? extends Collection<String>> multiTags) {
+    Set<Map.Entry<String, String>> tagSet = new HashSet<>();
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      tagSet.add(Map.entry(tag.getKey(), tag.getValue()));
+    }
+    for (Map.Entry<String, ? extends Collection<String>> tag : multiTags.entrySet()) {
+      for (String value : tag.getValue()) {
+        tagSet.add(Map.entry(tag.getKey(), value));
+      }
+    }
+    return Collections.unmodifiableSet(tagSet);
+  }
+
+  /**
+   * 对 tag 位图求值布尔表达式
+   *
+   * @param query 查询表达式
+   * @param tagIndexes tag 位图索引
+   * @param universe 全部存活条目, 仅 NOT 表达式使用
+   * @param copyShared 结果直接引用索引中的位图时是否复制, 索引位图会被修改时必须复制
+   * @return 查询结果
+   */
+  static RoaringBitmap evaluate(
+      TagQuery query,
+      Table<String, CharSequence, RoaringBitmap> tagIndexes,
+      Supplier<RoaringBitmap> universe,
+      boolean copyShared) {
+    Evaluated evaluated = evaluate(query, tagIndexes, universe);
+    return copyShared && evaluated.shared() ? evaluated.bitmap().clone() : evaluated.bitmap();
+  }
+
+  private static Evaluated evaluate(
+      TagQuery query,
+      Table<String, CharSequence, RoaringBitmap> tagIndexes,
+      Supplier<RoaringBitmap> universe) {
+    if (query instanceof TagQuery.Match match) {
+      List<RoaringBitmap> found = new ArrayList<>(match.values().size());
+      for (String value : match.values()) {
+        RoaringBitmap bitmap = tagIndexes.get(match.key(), value);
+        if (Objects.nonNull(bitmap)) {
+          found.add(bitmap);
+        }
+      }
+      return union(found);
+    }
+    if (query instanceof TagQuery.Prefix prefix) {
+      Map<CharSequence, RoaringBitmap> row = tagIndexes.row(prefix.key());
+      List<RoaringBitmap> found = new ArrayList<>();
+      if (Objects.nonNull(row)) {
+        for (Map.Entry<CharSequence, RoaringBitmap> column : row.entrySet()) {
+          if (column.getKey().toString().startsWith(prefix.prefix())) {
+            found.add(column.getValue());
+          }
+        }
+      }
+      return union(found);
+    }
+    if (query instanceof TagQuery.Not not) {
+      RoaringBitmap excluded = evaluate(not.operand(), tagIndexes, universe).bitmap();
+      return new Evaluated(RoaringBitmap.andNot(universe.get(), excluded), false);
+    }
+    TagQuery.Compound compound = (TagQuery.Compound) query;
+    List<TagQuery> operands = compound.operands();
+    Evaluated first = evaluate(operands.get(0), tagIndexes, universe);
+    if (operands.size() == 1) {
+      return first;
+    }
+    switch (compound.op()) {
+      case AND -> {
+        RoaringBitmap[] bitmaps = new RoaringBitmap[operands.size()];
+        bitmaps[0] = first.bitmap();
+        for (int i = 1; i < bitmaps.length; i++) {
+          if (bitmaps[i - 1].isEmpty()) {
+            return new Evaluated(new RoaringBitmap(), false);
+          }
+          bitmaps[i] = evaluate(operands.get(i), tagIndexes, universe).bitmap();
+        }
+        // 两个以上操作数的非空交集总是新建的位图
+        RoaringBitmap result = and(bitmaps, bitmaps.length);
+        return new Evaluated(result.isEmpty() ? new RoaringBitmap() : result, false);
+      }
+      case OR -> {
+        List<RoaringBitmap> bitmaps = new ArrayList<>(operands.size());
+        bitmaps.add(first.bitmap());
+        for (int i = 1; i < operands.size(); i++) {
+          bitmaps.add(evaluate(operands.get(i), tagIndexes, universe).bitmap());
+        }
+        return new Evaluated(FastAggregation.or(bitmaps.iterator()), false);
+      }
+      case AND_NOT -> {
+        RoaringBitmap result = first.bitmap();
+        for (int i = 1; i < operands.size() && !result.isEmpty(); i++) {
+          RoaringBitmap excluded = evaluate(operands.get(i), tagIndexes, universe).bitmap();
+          result = RoaringBitmap.andNot(result, excluded);
+        }
+        return new Evaluated(result, result == first.bitmap() && first.shared());
+      }
+      default -> {
+        RoaringBitmap[] bitmaps = new RoaringBitmap[operands.size()];
+        bitmaps[0] = first.bitmap();
+        for (int i = 1; i < bitmaps.length; i++) {
+          bitmaps[i] = evaluate(operands.get(i), tagIndexes, universe).bitmap();
+        }
+        return new Evaluated(FastAggregation.xor(bitmaps), false);
+      }
+    }
+  }
+
+  private static Evaluated union(List<RoaringBitmap> bitmaps) {
+    if (bitmaps.isEmpty()) {
+      return new Evaluated(new RoaringBitmap(), false);
+    }
+    if (bitmaps.size() == 1) {
+      return new Evaluated(bitmaps.get(0), true);
+    }
+    return new Evaluated(FastAggregation.or(bitmaps.iterator()), false);
+  }
+
+  /**
+   * 子表达式的求值结果
+   *
+   * @param bitmap 结果位图, 不允许修改
+   * @param shared 是否直接引用了索引中的位图
+   */
+  private record Evaluated(RoaringBitmap bitmap, boolean shared) {}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/** 按顺序拼接多个分片查询结果的只读列表, 不复制元素 */
+final class ShardedList<V> extends AbstractList<V> {
+  private final List<List<V>> parts;
+  /** offsets[i] 为第 i 个分片结果的起始位置, 最后一项为总数 */
+  private final int[] offsets;
+
+  private ShardedList(List<List<V>> parts) {
+    this.parts = parts;
+    this.offsets = new int[parts.size() + 1];
+    for (int i = 0; i < parts.size(); i++) {
+      offsets[i + 1] = offsets[i] + parts.get(i).size();
+    }
+  }
+
+  static <V> List<V> of(List<List<V>> parts) {
+    List<List<V>> nonEmpty = new ArrayList<>(parts.size());
+    for (List<V> part : parts) {
+      if (!part.isEmpty()) {
+        nonEmpty.add(part);
+      }
+    }
+    return switch (nonEmpty.size()) {
+      case 0 -> Collections.emptyList();
+      case 1 -> nonEmpty.get(0);
+      default -> new ShardedList<>(nonEmpty);
+    };
+  }
+
+  @Override
+  public V get(int index) {
+    Objects.checkIndex(index, size());
+    int part = part(index);
+    return parts.get(part).get(index - offsets[part]);
+  }
+
+  @Override
+  public int size() {
+    return offsets[parts.size()];
+  }
+
+  @Override
+  public Iterator<V> iterator() {
+    return new Iterator<>() {
+      private int next;
+      private Iterator<V> current = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!current.hasNext() && next < parts.size()) {
+          current = parts.get(next++).iterator();
+        }
+        return current.hasNext();
+      }
+
+      @Override
+      public V next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return current.next();
+      }
+    };
+  }
+
+  @Override
+  public void forEach(Consumer<? super V> action) {
+    for (List<V> part : parts) {
+      part.forEach(action);
+    }
+  }
+
+  @Override
+  public List<V> subList(int fromIndex, int toIndex) {
+    Objects.checkFromToIndex(fromIndex, toIndex, size());
+    if (fromIndex == toIndex) {
+      return Collections.emptyList();
+    }
+    int first = part(fromIndex);
+    int last = part(toIndex - 1);
+    List<List<V>> slices = new ArrayList<>(last - first + 1);
+    for (int i = first; i <= last; i++) {
+      int from = Math.max(fromIndex, offsets[i]) - offsets[i];
+      int to = Math.min(toIndex, offsets[i + 1]) - offsets[i];
+      slices.add(parts.get(i).subList(from, to));
+    }
+    return of(slices);
+  }
+
+  @Override
+  public Spliterator<V> spliterator() {
+    return new PartSpliterator(0, parts.size());
+  }
+
+  private int part(int index) {
+    int part = Arrays.binarySearch(offsets, 0, parts.size(), index);
+    return part >= 0 ? part : -part - 2;
+  }
+
+  /** 先按分片对半切分, 只剩一个分片时交给分片结果自身切分 */
+  private final class PartSpliterator implements Spliterator<V> {
+    private int from;
+    private final int to;
+    private Spliterator<V> current;
+
+    PartSpliterator(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super V> action) {
+      while (true) {
+        if (Objects.isNull(current)) {
+          if (from >= to) {
+            return false;
+          }
+          current = parts.get(from++).spliterator();
+        }
+        if (current.tryAdvance(action)) {
+          return true;
+        }
+        current = null;
+      }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super V> action) {
+      if (Objects.nonNull(current)) {
+        current.forEachRemaining(action);
+        current = null;
+      }
+      while (from < to) {
+        parts.get(from++).forEach(action);
+      }
+    }
+
+    @Override
+    public Spliterator<V> trySplit() {
+      if (Objects.isNull(current) && to - from == 1) {
+        current = parts.get(from++).spliterator();
+      }
+      if (Objects.nonNull(current)) {
+        return from == to ? current.trySplit() : null;
+      }
+      if (to - from < 2) {
+        return null;
+      }
+      int middle = (from + to) >>> 1;
+      PartSpliterator prefix = new PartSpliterator(from, middle);
+      this.from = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      long size = Objects.nonNull(current) ? current.estimateSize() : 0;
+      return size + offsets[to] - offsets[from];
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.*;
+
+/**
+ * 按主键哈希分片的位图索引
+ *
+ * <p>每个分片是独立加锁的 {@link RoaringBitmapIndexedMap}, 不同分片的写操作互不阻塞. 同一条目只属于一个分片,
+ * 查询在每个分片上分别求值后按分片顺序拼接, 不需要合并位图.
+ */
+public class ShardedRoaringBitmapIndexedMap<K, V> implements TagIndexedMap<K, V> {
+  private static final int DEFAULT_QUERY_CACHE_SIZE = 256;
+
+  private final List<RoaringBitmapIndexedMap<K, V>> shards;
+  private final int mask;
+
+  public ShardedRoaringBitmapIndexedMap() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param shards 分片数量, 向上取整为 2 的幂
+   */
+  public ShardedRoaringBitmapIndexedMap(int shards) {
+    this(shards, DEFAULT_QUERY_CACHE_SIZE);
+  }
+
+  /**
+   * @param shards 分片数量, 向上取整为 2 的幂
+   * @param queryCacheSize 每个分片查询结果缓存的最大条目数, 0 表示不缓存
+   */
+  public ShardedRoaringBitmapIndexedMap(int shards, int queryCacheSize) {
+    if (shards <= 0) {
+      throw new IllegalArgumentException("分片数量必须大于 0: " + shards);
+    }
+    int size = shards == 1 ? 1 : Integer.highestOneBit(shards - 1) << 1;
+    List<RoaringBitmapIndexedMap<K, V>> created = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      created.add(new RoaringBitmapIndexedMap<>(queryCacheSize));
+    }
+    this.shards = Collections.unmodifiableList(created);
+    this.mask = size - 1;
+  }
+
+  private RoaringBitmapIndexedMap<K, V> shard(K key) {
+    int hash = Objects.hashCode(key);
+    return shards.get((hash ^ (hash >>> 16)) & mask);
+  }
+
+  /**
+   * 全部分片, 用于分别查看碎片与执行压缩
+   *
+   * @return 只读分片列表
+   */
+  public List<RoaringBitmapIndexedMap<K, V>> shards() {
+    return shards;
+  }
+
+  @Override
+  public V get(K key) {
+    return shard(key).get(key);
+  }
+
+  @Override
+  public V put(K key, V value, Map<String, String> tags) {
+    return shard(key).put(key, value, tags);
+  }
+
+  @Override
+  public V put(
+      K key,
+      V value,
+      Map<String, String> tags,
+      Map<String, ? extends Collection<String>> multiTags) {
+    return shard(key).put(key, value, tags, multiTags);
+  }
+
+  @Override
+  public V remove(K key) {
+    return shard(key).remove(key);
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (RoaringBitmapIndexedMap<K, V> shard : shards) {
+      size += shard.size();
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (RoaringBitmapIndexedMap<K, V> shard : shards) {
+      if (!shard.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    for (RoaringBitmapIndexedMap<K, V> shard : shards) {
+      shard.clear();
+    }
+  }
+
+  @Override
+  public Collection<V> values() {
+    return query((Map<String, String>) null, QueryOps.AND);
+  }
+
+  @Override
+  public List<V> query(Map<String, String> tags, QueryOps queryOps) {
+    List<List<V>> parts = new ArrayList<>(shards.size());
+    for (RoaringBitmapIndexedMap<K, V> shard : shards) {
+      parts.add(shard.query(tags, queryOps));
+    }
+    return ShardedList.of(parts);
+  }
+
+  @Override
+  public List<V> query(TagQuery query) {
+    List<List<V>> parts = new ArrayList<>(shards.size());
+    for (RoaringBitmapIndexedMap<K, V> shard : shards) {
+      parts.add(shard.query(query));
+    }
+    return ShardedList.of(parts);
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/** 以字符串 tag 为索引, 支持多值 tag 与布尔表达式查询 */
+public interface TagIndexedMap<K, V> extends IndexedMap<K, V, Map<String, String>> {
+
+  /**
+   * 写入条目, 一个 tag 键可以对应多个取值
+   *
+   * @param key 主键
+   * @param value 值
+   * @param tags 单值 tag
+   * @param multiTags 多值 tag
+   * @return 之前的值
+   */
+  V put(
+      K key,
+      V value,
+      Map<String, String> tags,
+      Map<String, ? extends Collection<String>> multiTags);
+
+  /**
+   * 布尔表达式查询
+   *
+   * @param query 查询表达式
+   * @return 满足表达式的值
+   */
+  List<V> query(TagQuery query);
+}
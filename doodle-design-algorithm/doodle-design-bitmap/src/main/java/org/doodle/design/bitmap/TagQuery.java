@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.bitmap;
+
+import java.util.*;
+
+/** tag 布尔查询表达式, 由位图集合运算直接求值 */
+public sealed interface TagQuery {
+  enum Op {
+    /** 交集 */
+    AND,
+    /** 并集 */
+    OR,
+    /** 差集, 第一个操作数减去其余操作数 */
+    AND_NOT,
+    /** 对称差 */
+    XOR
+  }
+
+  /** tag 键的取值属于 values 之一 */
+  record Match(String key, Set<String> values) implements TagQuery {
+    public Match {
+      Objects.requireNonNull(key);
+      values = Set.copyOf(values);
+      if (values.isEmpty()) {
+        throw new IllegalArgumentException("tag 取值不能为空");
+      }
+    }
+  }
+
+  /** tag 键的取值以 prefix 开头 */
+  record Prefix(String key, String prefix) implements TagQuery {
+    public Prefix {
+      Objects.requireNonNull(key);
+      Objects.requireNonNull(prefix);
+    }
+  }
+
+  /** 不满足 operand 的全部条目 */
+  record Not(TagQuery operand) implements TagQuery {
+    public Not {
+      Objects.requireNonNull(operand);
+    }
+  }
+
+  /** 多个子表达式的集合运算 */
+  record Compound(Op op, List<TagQuery> operands) implements TagQuery {
+    public Compound {
+      Objects.requireNonNull(op);
+      operands = List.copyOf(operands);
+      if (operands.isEmpty()) {
+        throw new IllegalArgumentException("操作数不能为空");
+      }
+    }
+  }
+
+  static TagQuery eq(String key, String value) {
+    return new Match(key, Set.of(value));
+  }
+
+  static TagQuery in(String key, String... values) {
+    return new Match(key, Set.of(values));
+  }
+
+  static TagQuery in(String key, Collection<String> values) {
+    return new Match(key, Set.copyOf(values));
+  }
+
+  static TagQuery prefix(String key, String prefix) {
+    return new Prefix(key, prefix);
+  }
+
+  static TagQuery not(TagQuery operand) {
+    return new Not(operand);
+  }
+
+  static TagQuery and(TagQuery... operands) {
+    return new Compound(Op.AND, List.of(operands));
+  }
+
+  static TagQuery or(TagQuery... operands) {
+    return new Compound(Op.OR, List.of(operands));
+  }
+
+  static TagQuery andNot(TagQuery first, TagQuery... excluded) {
+    List<TagQuery> operands = new ArrayList<>(excluded.length + 1);
+    operands.add(first);
+    operands.addAll(List.of(excluded));
+    return new Compound(Op.AND_NOT, operands);
+  }
+
+  static TagQuery xor(TagQuery... operands) {
+    return new Compound(Op.XOR, List.of(operands));
+  }
+
+  /**
+   * 将 tag 键值对查询转换为表达式
+   *
+   * @param tags tag 键值对, 不能为空
+   * @param queryOps 集合查询操作类型
+   * @return 等价的查询表达式
+   */
+  static TagQuery of(Map<String, String> tags, IndexedMap.QueryOps queryOps) {
+    List<TagQuery> operands = new ArrayList<>(tags.size());
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      operands.add(eq(tag.getKey(), tag.getValue()));
+    }
+    return new Compound(queryOps == IndexedMap.QueryOps.OR ? Op.OR : Op.AND, operands);
+  }
+}
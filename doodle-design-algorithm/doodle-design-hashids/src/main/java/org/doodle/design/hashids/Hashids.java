@@ -15,20 +15,30 @@
  */
 package org.doodle.design.hashids;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Hashids 算法实现 <a
  * href="https://github.com/yomorun/hashids-java/blob/master/src/main/java/org/hashids/Hashids.java">...</a>
+ *
+ * <p>编码与解码在线程独享的 char[] 缓冲区上完成, 不使用正则. 第一个数字使用的字母表只取决于抽签字符,
+ * 在构造时按抽签字符预先洗牌. 输出与原始实现逐字符一致.
+ *
+ * <p>解码前先查表校验字符与结构, 大部分伪造的编码不经过解码就被拒绝. 可选的 LRU 缓存保存最近解码成功的编码.
  */
 public class Hashids {
   /** Max number that can be encoded with Hashids. */
   public static final long MAX_NUMBER = 9007199254740992L;
 
-  private static final String DEFAULT_ALPHABET =
+  static final String DEFAULT_ALPHABET =
       "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
   private static final String DEFAULT_SEPS = "cfhistuCFHISTU";
   private static final String DEFAULT_SALT = "";
@@ -37,12 +47,31 @@ public class Hashids {
   private static final int MIN_ALPHABET_LENGTH = 16;
   private static final double SEP_DIV = 3.5;
   private static final int GUARD_DIV = 12;
+  private static final int HEX_CHUNK = 12;
+  /** 并行批量编码时单个任务处理的最大数量 */
+  private static final int RANGE_THRESHOLD = 8192;
+
+  private static final int ASCII = 128;
+  private static final byte CHAR_INVALID = 0;
+  private static final byte CHAR_ALPHABET = 1;
+  private static final byte CHAR_SEP = 2;
+  private static final byte CHAR_GUARD = 3;
 
-  private final String salt;
+  private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  private final char[] salt;
   private final int minHashLength;
-  private final String alphabet;
-  private final String seps;
-  private final String guards;
+  private final char[] alphabet;
+  private final char[] seps;
+  private final char[] guards;
+  /** ASCII 字符的类型, 非 ASCII 字符查找字符数组 */
+  private final byte[] charClasses = new byte[ASCII];
+  /** lotteryAlphabets[i] 为抽签字符是 alphabet[i] 时, 第一个数字使用的字母表 */
+  private final char[][] lotteryAlphabets;
+  private final int decodeCacheSize;
+  private final Map<String, long[]> decodeCache;
+  private final LongAdder decodeCacheHits = new LongAdder();
+  private final LongAdder decodeCacheMisses = new LongAdder();
 
   public Hashids() {
     this(DEFAULT_SALT);
@@ -57,7 +86,15 @@ public class Hashids {
   }
 
   public Hashids(String salt, int minHashLength, String alphabet) {
-    this.salt = salt != null ? salt : DEFAULT_SALT;
+    this(salt, minHashLength, alphabet, 0);
+  }
+
+  /**
+   * @param decodeCacheSize 缓存最近解码成功的编码数量, 0 表示不缓存
+   */
+  public Hashids(String salt, int minHashLength, String alphabet, int decodeCacheSize) {
+    salt = salt != null ? salt : DEFAULT_SALT;
+    this.salt = salt.toCharArray();
     this.minHashLength = minHashLength > 0 ? minHashLength : DEFAULT_MIN_HASH_LENGTH;
 
     final StringBuilder uniqueAlphabet = new StringBuilder();
@@ -90,9 +127,9 @@ public class Hashids {
       }
     }
 
-    alphabet = alphabet.replaceAll("\\s+", "");
-    seps = seps.replaceAll("\\s+", "");
-    seps = Hashids.consistentShuffle(seps, this.salt);
+    alphabet = Hashids.stripWhitespace(alphabet);
+    seps = Hashids.stripWhitespace(seps);
+    seps = Hashids.consistentShuffle(seps, salt);
 
     if ((seps.isEmpty()) || (((float) alphabet.length() / seps.length()) > SEP_DIV)) {
       int seps_len = (int) Math.ceil(alphabet.length() / SEP_DIV);
@@ -110,7 +147,7 @@ public class Hashids {
       }
     }
 
-    alphabet = Hashids.consistentShuffle(alphabet, this.salt);
+    alphabet = Hashids.consistentShuffle(alphabet, salt);
     // use double to round up
     final int guardCount = (int) Math.ceil((double) alphabet.length() / GUARD_DIV);
 
@@ -122,9 +159,31 @@ public class Hashids {
       guards = alphabet.substring(0, guardCount);
       alphabet = alphabet.substring(guardCount);
     }
-    this.guards = guards;
-    this.alphabet = alphabet;
-    this.seps = seps;
+    this.guards = guards.toCharArray();
+    this.alphabet = alphabet.toCharArray();
+    this.seps = seps.toCharArray();
+    Hashids.classify(this.charClasses, this.alphabet, CHAR_ALPHABET);
+    Hashids.classify(this.charClasses, this.seps, CHAR_SEP);
+    Hashids.classify(this.charClasses, this.guards, CHAR_GUARD);
+
+    this.lotteryAlphabets = new char[this.alphabet.length][];
+    final char[] shuffleSalt = new char[this.alphabet.length];
+    for (int i = 0; i < this.alphabet.length; i++) {
+      final char[] lotteryAlphabet = this.alphabet.clone();
+      shuffle(lotteryAlphabet, this.alphabet[i], shuffleSalt);
+      this.lotteryAlphabets[i] = lotteryAlphabet;
+    }
+
+    this.decodeCacheSize = Math.max(decodeCacheSize, 0);
+    this.decodeCache =
+        this.decodeCacheSize > 0
+            ? new LinkedHashMap<>(Math.min(this.decodeCacheSize, 1024), 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > Hashids.this.decodeCacheSize;
+              }
+            }
+            : null;
   }
 
   /**
@@ -146,28 +205,57 @@ public class Hashids {
         throw new IllegalArgumentException("number can not be greater than " + MAX_NUMBER + "L");
       }
     }
-    return this._encode(numbers);
+    final Scratch scratch = SCRATCH.get();
+    final int length = this._encode(numbers, scratch);
+    return new String(scratch.text, scratch.offset, length);
   }
 
   /**
    * Decode string to numbers
    *
    * @param hash the encoded string
-   * @return decoded numbers
+   * @return decoded numbers, 不是合法编码时返回空数组
    */
   public long[] decode(String hash) {
-    if (hash.isEmpty()) {
+    if (hash.isEmpty() || !this.wellFormed(hash)) {
       return new long[0];
     }
+    if (Objects.isNull(this.decodeCache)) {
+      return this._decode(hash, SCRATCH.get());
+    }
 
-    String validChars = this.alphabet + this.guards + this.seps;
-    for (int i = 0; i < hash.length(); i++) {
-      if (validChars.indexOf(hash.charAt(i)) == -1) {
-        return new long[0];
+    long[] numbers;
+    synchronized (this.decodeCache) {
+      numbers = this.decodeCache.get(hash);
+    }
+    if (Objects.nonNull(numbers)) {
+      this.decodeCacheHits.increment();
+      return numbers.clone();
+    }
+    this.decodeCacheMisses.increment();
+    numbers = this._decode(hash, SCRATCH.get());
+    if (numbers.length > 0) {
+      final long[] cached = numbers.clone();
+      synchronized (this.decodeCache) {
+        this.decodeCache.put(hash, cached);
       }
     }
+    return numbers;
+  }
 
-    return this._decode(hash, this.alphabet);
+  /**
+   * 解码缓存统计
+   *
+   * @return 命中次数与缓存条目数量
+   */
+  public DecodeCacheStats decodeCacheStats() {
+    int entries = 0;
+    if (Objects.nonNull(this.decodeCache)) {
+      synchronized (this.decodeCache) {
+        entries = this.decodeCache.size();
+      }
+    }
+    return new DecodeCacheStats(this.decodeCacheHits.sum(), this.decodeCacheMisses.sum(), entries);
   }
 
   /**
@@ -177,21 +265,22 @@ public class Hashids {
    * @return the encoded string
    */
   public String encodeHex(String hexa) {
-    if (!hexa.matches("^[0-9a-fA-F]+$")) {
+    if (hexa.isEmpty()) {
       return "";
     }
 
-    final List<Long> matched = new ArrayList<Long>();
-    final Matcher matcher = Pattern.compile("[\\w\\W]{1,12}").matcher(hexa);
-
-    while (matcher.find()) {
-      matched.add(Long.parseLong("1" + matcher.group(), 16));
-    }
-
-    // conversion
-    final long[] result = new long[matched.size()];
-    for (int i = 0; i < matched.size(); i++) {
-      result[i] = matched.get(i);
+    final long[] result = new long[(hexa.length() + HEX_CHUNK - 1) / HEX_CHUNK];
+    for (int i = 0; i < result.length; i++) {
+      long number = 1;
+      final int end = Math.min(hexa.length(), (i + 1) * HEX_CHUNK);
+      for (int j = i * HEX_CHUNK; j < end; j++) {
+        final int digit = hexDigit(hexa.charAt(j));
+        if (digit < 0) {
+          return "";
+        }
+        number = (number << 4) | digit;
+      }
+      result[i] = number;
     }
 
     return this.encode(result);
@@ -214,6 +303,108 @@ public class Hashids {
     return result.toString();
   }
 
+  /**
+   * 批量编码连续的数字 [fromId, fromId + count), 与逐个调用 {@link #encode(long...)} 结果一致
+   *
+   * <p>整个范围只校验一次, 编码复用同一份缓冲区. 传给 sink 的 {@link CharSequence} 是复用的视图,
+   * 只在回调内有效, 需要保留时调用 {@link CharSequence#toString()}.
+   *
+   * @param fromId 起始数字
+   * @param count 数量
+   * @param sink 编码结果消费者
+   */
+  public void encodeRange(long fromId, int count, Consumer<? super CharSequence> sink) {
+    Objects.requireNonNull(sink);
+    checkRange(fromId, count);
+    final Scratch scratch = new Scratch();
+    final long toId = fromId + count;
+    for (long id = fromId; id < toId; id++) {
+      sink.accept(this.encodeInto(id, scratch));
+    }
+  }
+
+  /**
+   * 批量编码连续的数字 [fromId, fromId + count), 每个编码后追加换行符
+   *
+   * <p>{@link StringBuilder} 与 {@link Writer} 直接写入 char[], 不经过中间字符串.
+   *
+   * @param fromId 起始数字
+   * @param count 数量
+   * @param out 输出目标
+   * @throws IOException 写入失败
+   */
+  public void encodeRange(long fromId, int count, Appendable out) throws IOException {
+    Objects.requireNonNull(out);
+    checkRange(fromId, count);
+    final Scratch scratch = new Scratch();
+    final long toId = fromId + count;
+    if (out instanceof StringBuilder builder) {
+      for (long id = fromId; id < toId; id++) {
+        this.encodeInto(id, scratch);
+        builder.append(scratch.text, scratch.offset, scratch.length).append('\n');
+      }
+    } else if (out instanceof Writer writer) {
+      for (long id = fromId; id < toId; id++) {
+        this.encodeInto(id, scratch);
+        writer.write(scratch.text, scratch.offset, scratch.length);
+        writer.write('\n');
+      }
+    } else {
+      for (long id = fromId; id < toId; id++) {
+        out.append(this.encodeInto(id, scratch)).append('\n');
+      }
+    }
+  }
+
+  /**
+   * 在 pool 中并行批量编码连续的数字 [fromId, fromId + count), 方法在全部编码完成后返回
+   *
+   * <p>范围按 {@value #RANGE_THRESHOLD} 个一组拆分, 每组复用一份缓冲区. sink 会被多个线程并发调用,
+   * 不保证顺序, 传入的 {@link CharSequence} 只在回调内有效.
+   *
+   * @param fromId 起始数字
+   * @param count 数量
+   * @param pool 执行编码的线程池
+   * @param sink 编码结果消费者, 需要线程安全
+   */
+  public void encodeRange(long fromId, long count, ForkJoinPool pool, CodeSink sink) {
+    Objects.requireNonNull(pool);
+    Objects.requireNonNull(sink);
+    checkRange(fromId, count);
+    if (count > 0) {
+      pool.invoke(new EncodeRangeTask(fromId, fromId + count, sink));
+    }
+  }
+
+  /**
+   * 解码缓存统计
+   *
+   * @param hits 命中次数
+   * @param misses 未命中次数, 只统计通过结构校验的编码
+   * @param entries 缓存条目数量
+   */
+  public record DecodeCacheStats(long hits, long misses, int entries) {
+
+    /** 缓存命中率 */
+    public double hitRatio() {
+      long total = hits + misses;
+      return total == 0 ? 0 : (double) hits / total;
+    }
+  }
+
+  /** 并行批量编码的结果消费者 */
+  @FunctionalInterface
+  public interface CodeSink {
+
+    /**
+     * 接收一个编码结果
+     *
+     * @param id 被编码的数字
+     * @param code 编码结果, 只在回调内有效
+     */
+    void accept(long id, CharSequence code);
+  }
+
   public static int checkedCast(long value) {
     final int result = (int) value;
     if (result != value) {
@@ -225,160 +416,383 @@ public class Hashids {
 
   /* Private methods */
 
-  private String _encode(long... numbers) {
+  /**
+   * 编码结果写入 scratch.text, 从 scratch.offset 开始
+   *
+   * @return 编码长度
+   */
+  private int _encode(long[] numbers, Scratch scratch) {
+    final int alphabetLength = this.alphabet.length;
     long numberHashInt = 0;
     for (int i = 0; i < numbers.length; i++) {
       numberHashInt += (numbers[i] % (i + 100));
     }
-    String alphabet = this.alphabet;
-    final char ret = alphabet.charAt((int) (numberHashInt % alphabet.length()));
-
-    long num;
-    long sepsIndex, guardIndex;
-    String buffer;
-    final StringBuilder ret_strB = new StringBuilder(this.minHashLength);
-    ret_strB.append(ret);
-    char guard;
-
+    final int lotteryIndex = (int) (numberHashInt % alphabetLength);
+    final char lottery = this.alphabet[lotteryIndex];
+
+    final char[] work = scratch.alphabet(alphabetLength);
+    // 每个数字最多 64 位, 加分隔符, 抽签字符与前后 guard
+    final int capacity =
+        Math.max(numbers.length * (Long.SIZE + 1) + 3, alphabetLength + this.minHashLength);
+    char[] text = scratch.text(capacity);
+    char[] other = scratch.padding(capacity);
+
+    // text[0] 留给前置 guard
+    int from = 1;
+    int end = from;
+    text[end++] = lottery;
     for (int i = 0; i < numbers.length; i++) {
-      num = numbers[i];
-      buffer = ret + this.salt + alphabet;
+      long num = numbers[i];
+      if (i == 0) {
+        System.arraycopy(this.lotteryAlphabets[lotteryIndex], 0, work, 0, alphabetLength);
+      } else {
+        shuffle(work, lottery, scratch.shuffleSalt(alphabetLength));
+      }
+      final int start = end;
+      end = Hashids.hash(num, work, alphabetLength, text, end);
 
-      alphabet = Hashids.consistentShuffle(alphabet, buffer.substring(0, alphabet.length()));
-      final String last = Hashids.hash(num, alphabet);
+      if (i + 1 < numbers.length) {
+        num %= (text[start] + i);
+        final int sepsIndex = (int) (num % this.seps.length);
+        text[end++] = this.seps[sepsIndex];
+      }
+    }
 
-      ret_strB.append(last);
+    int length = end - from;
+    if (length < this.minHashLength) {
+      int guardIndex = (int) ((numberHashInt + text[from]) % this.guards.length);
+      text[--from] = this.guards[guardIndex];
+      length++;
 
-      if (i + 1 < numbers.length) {
-        if (last.length() > 0) {
-          num %= (last.charAt(0) + i);
-          sepsIndex = (int) (num % this.seps.length());
-        } else {
-          sepsIndex = 0;
-        }
-        ret_strB.append(this.seps.charAt((int) sepsIndex));
+      if (length < this.minHashLength) {
+        guardIndex = (int) ((numberHashInt + text[from + 2]) % this.guards.length);
+        text[from + length++] = this.guards[guardIndex];
       }
     }
 
-    String ret_str = ret_strB.toString();
-    if (ret_str.length() < this.minHashLength) {
-      guardIndex = (numberHashInt + (ret_str.charAt(0))) % this.guards.length();
-      guard = this.guards.charAt((int) guardIndex);
+    final int halfLen = alphabetLength / 2;
+    final char[] shuffleSalt = scratch.shuffleSalt(alphabetLength);
+    while (length < this.minHashLength) {
+      System.arraycopy(work, 0, shuffleSalt, 0, alphabetLength);
+      Hashids.consistentShuffle(work, alphabetLength, shuffleSalt, alphabetLength);
+      System.arraycopy(work, halfLen, other, 0, alphabetLength - halfLen);
+      System.arraycopy(text, from, other, alphabetLength - halfLen, length);
+      System.arraycopy(work, 0, other, alphabetLength - halfLen + length, halfLen);
+      length += alphabetLength;
+      from = 0;
+      final int excess = length - this.minHashLength;
+      if (excess > 0) {
+        from = excess / 2;
+        length = this.minHashLength;
+      }
+      final char[] swap = text;
+      text = other;
+      other = swap;
+    }
 
-      ret_str = guard + ret_str;
+    scratch.text = text;
+    scratch.padding = other;
+    scratch.offset = from;
+    return length;
+  }
 
-      if (ret_str.length() < this.minHashLength) {
-        guardIndex = (numberHashInt + (ret_str.charAt(2))) % this.guards.length();
-        guard = this.guards.charAt((int) guardIndex);
+  private long[] _decode(String hash, Scratch scratch) {
+    final int hashLength = hash.length();
+    final int segments = Hashids.splitCount(hash, 0, hashLength, this.guards);
+    if (segments == 0) {
+      return new long[0];
+    }
 
-        ret_str += guard;
+    final int target = (segments == 3 || segments == 2) ? 1 : 0;
+    int start = 0;
+    int end = hashLength;
+    for (int i = 0, segment = 0; i < hashLength; i++) {
+      if (Hashids.contains(this.guards, hash.charAt(i))) {
+        if (segment == target) {
+          end = i;
+          break;
+        }
+        segment++;
+        start = i + 1;
       }
     }
+    if (start >= end) {
+      return new long[0];
+    }
 
-    final int halfLen = alphabet.length() / 2;
-    while (ret_str.length() < this.minHashLength) {
-      alphabet = Hashids.consistentShuffle(alphabet, alphabet);
-      ret_str = alphabet.substring(halfLen) + ret_str + alphabet.substring(0, halfLen);
-      final int excess = ret_str.length() - this.minHashLength;
-      if (excess > 0) {
-        final int start_pos = excess / 2;
-        ret_str = ret_str.substring(start_pos, start_pos + this.minHashLength);
+    final char lottery = hash.charAt(start);
+    start++;
+    final int count = Hashids.splitCount(hash, start, end, this.seps);
+    if (count == 0) {
+      return new long[0];
+    }
+
+    final int alphabetLength = this.alphabet.length;
+    final char[] work = scratch.alphabet(alphabetLength);
+    System.arraycopy(this.alphabet, 0, work, 0, alphabetLength);
+    final long[] arr = new long[count];
+    for (int k = 0; k < count; k++) {
+      int subEnd = start;
+      while (subEnd < end && !Hashids.contains(this.seps, hash.charAt(subEnd))) {
+        subEnd++;
+      }
+      final int lotteryIndex =
+          k == 0 ? Hashids.indexOf(this.alphabet, alphabetLength, lottery) : -1;
+      if (lotteryIndex >= 0) {
+        System.arraycopy(this.lotteryAlphabets[lotteryIndex], 0, work, 0, alphabetLength);
+      } else {
+        shuffle(work, lottery, scratch.shuffleSalt(alphabetLength));
       }
+      arr[k] = Hashids.unhash(hash, start, subEnd, work, alphabetLength);
+      start = subEnd + 1;
     }
 
-    return ret_str;
+    for (final long number : arr) {
+      // 超出范围的数字不可能由 encode 生成
+      if (number < 0 || number > MAX_NUMBER) {
+        return new long[0];
+      }
+    }
+    final int length = this._encode(arr, scratch);
+    if (length != hashLength) {
+      return new long[0];
+    }
+    final char[] text = scratch.text;
+    final int offset = scratch.offset;
+    for (int i = 0; i < length; i++) {
+      if (text[offset + i] != hash.charAt(i)) {
+        return new long[0];
+      }
+    }
+    return arr;
   }
 
-  private long[] _decode(String hash, String alphabet) {
-    final ArrayList<Long> ret = new ArrayList<Long>();
+  private static void checkRange(long fromId, long count) {
+    if (fromId < 0 || count < 0) {
+      throw new IllegalArgumentException("fromId and count must not be negative");
+    }
+    if (count > 0 && fromId + (count - 1) > MAX_NUMBER) {
+      throw new IllegalArgumentException("number can not be greater than " + MAX_NUMBER + "L");
+    }
+  }
 
-    int i = 0;
-    final String regexp = "[" + this.guards + "]";
-    String hashBreakdown = hash.replaceAll(regexp, " ");
-    String[] hashArray = hashBreakdown.split(" ");
+  /** 编码单个已校验的数字, 结果保存在 scratch 中 */
+  private Scratch encodeInto(long id, Scratch scratch) {
+    scratch.single[0] = id;
+    scratch.length = this._encode(scratch.single, scratch);
+    return scratch;
+  }
 
-    if (hashArray.length == 3 || hashArray.length == 2) {
-      i = 1;
+  /** 对半拆分编码范围, 直到不超过 {@link #RANGE_THRESHOLD}, 只在线程池内执行, 不会被序列化 */
+  @SuppressWarnings("serial")
+  private final class EncodeRangeTask extends RecursiveAction {
+    private final long fromId;
+    private final long toId;
+    private final CodeSink sink;
+
+    EncodeRangeTask(long fromId, long toId, CodeSink sink) {
+      this.fromId = fromId;
+      this.toId = toId;
+      this.sink = sink;
     }
 
-    if (hashArray.length > 0) {
-      hashBreakdown = hashArray[i];
-      if (!hashBreakdown.isEmpty()) {
-        final char lottery = hashBreakdown.charAt(0);
-
-        hashBreakdown = hashBreakdown.substring(1);
-        hashBreakdown = hashBreakdown.replaceAll("[" + this.seps + "]", " ");
-        hashArray = hashBreakdown.split(" ");
+    @Override
+    protected void compute() {
+      if (toId - fromId > RANGE_THRESHOLD) {
+        final long middle = (fromId + toId) >>> 1;
+        invokeAll(
+            new EncodeRangeTask(fromId, middle, sink), new EncodeRangeTask(middle, toId, sink));
+        return;
+      }
+      final Scratch scratch = new Scratch();
+      for (long id = fromId; id < toId; id++) {
+        sink.accept(id, Hashids.this.encodeInto(id, scratch));
+      }
+    }
+  }
 
-        String subHash, buffer;
-        for (final String aHashArray : hashArray) {
-          subHash = aHashArray;
-          buffer = lottery + this.salt + alphabet;
-          alphabet = Hashids.consistentShuffle(alphabet, buffer.substring(0, alphabet.length()));
-          ret.add(Hashids.unhash(subHash, alphabet));
-        }
+  /**
+   * 按 encode 输出的结构快速校验, 不满足的一定不是合法编码
+   *
+   * <ul>
+   *   <li>只包含字母表, 分隔符与 guard 字符
+   *   <li>长度不小于 2 与 minHashLength
+   *   <li>guard 最多两个, 出现 guard 时长度正好等于 minHashLength
+   *   <li>分隔符不在首尾, 不相邻, 也不与 guard 相邻
+   * </ul>
+   */
+  private boolean wellFormed(String hash) {
+    final int length = hash.length();
+    if (length < Math.max(2, this.minHashLength)) {
+      return false;
+    }
+    int guardCount = 0;
+    byte previous = CHAR_INVALID;
+    for (int i = 0; i < length; i++) {
+      final byte type = this.classOf(hash.charAt(i));
+      switch (type) {
+        case CHAR_INVALID:
+          return false;
+        case CHAR_SEP:
+          if (i == 0 || previous == CHAR_SEP || previous == CHAR_GUARD) {
+            return false;
+          }
+          break;
+        case CHAR_GUARD:
+          if (++guardCount > 2 || previous == CHAR_SEP) {
+            return false;
+          }
+          break;
+        default:
+          break;
       }
+      previous = type;
     }
+    return previous != CHAR_SEP && (guardCount == 0 || length == this.minHashLength);
+  }
 
-    // transform from List<Long> to long[]
-    long[] arr = new long[ret.size()];
-    for (int k = 0; k < arr.length; k++) {
-      arr[k] = ret.get(k);
+  private byte classOf(char c) {
+    if (c < ASCII) {
+      return this.charClasses[c];
     }
+    if (Hashids.contains(this.alphabet, c)) {
+      return CHAR_ALPHABET;
+    }
+    if (Hashids.contains(this.seps, c)) {
+      return CHAR_SEP;
+    }
+    return Hashids.contains(this.guards, c) ? CHAR_GUARD : CHAR_INVALID;
+  }
 
-    if (!this.encode(arr).equals(hash)) {
-      arr = new long[0];
+  /** 与 replaceAll("\\s+", "") 一致, 去掉 [ \t\n\x0B\f\r] */
+  private static String stripWhitespace(String input) {
+    final StringBuilder result = new StringBuilder(input.length());
+    for (int i = 0; i < input.length(); i++) {
+      final char c = input.charAt(i);
+      if (c != ' ' && (c < '\t' || c > '\r')) {
+        result.append(c);
+      }
     }
+    return result.toString();
+  }
 
-    return arr;
+  private static void classify(byte[] charClasses, char[] chars, byte type) {
+    for (final char c : chars) {
+      if (c < ASCII) {
+        charClasses[c] = type;
+      }
+    }
+  }
+
+  /** 以 lottery + salt + alphabet 的前 alphabet.length 个字符为盐洗牌 */
+  private void shuffle(char[] alphabet, char lottery, char[] shuffleSalt) {
+    final int alphabetLength = this.alphabet.length;
+    shuffleSalt[0] = lottery;
+    final int saltLength = Math.min(this.salt.length, alphabetLength - 1);
+    System.arraycopy(this.salt, 0, shuffleSalt, 1, saltLength);
+    System.arraycopy(alphabet, 0, shuffleSalt, 1 + saltLength, alphabetLength - 1 - saltLength);
+    Hashids.consistentShuffle(alphabet, alphabetLength, shuffleSalt, alphabetLength);
   }
 
   private static String consistentShuffle(String alphabet, String salt) {
-    if (salt.length() <= 0) {
-      return alphabet;
+    final char[] chars = alphabet.toCharArray();
+    Hashids.consistentShuffle(chars, chars.length, salt.toCharArray(), salt.length());
+    return new String(chars);
+  }
+
+  private static void consistentShuffle(char[] alphabet, int length, char[] salt, int saltLength) {
+    if (saltLength <= 0) {
+      return;
     }
 
     int asc_val, j;
-    final char[] tmpArr = alphabet.toCharArray();
-    for (int i = tmpArr.length - 1, v = 0, p = 0; i > 0; i--, v++) {
-      v %= salt.length();
-      asc_val = salt.charAt(v);
+    for (int i = length - 1, v = 0, p = 0; i > 0; i--, v++) {
+      v %= saltLength;
+      asc_val = salt[v];
       p += asc_val;
       j = (asc_val + v + p) % i;
-      final char tmp = tmpArr[j];
-      tmpArr[j] = tmpArr[i];
-      tmpArr[i] = tmp;
+      final char tmp = alphabet[j];
+      alphabet[j] = alphabet[i];
+      alphabet[i] = tmp;
     }
-
-    return new String(tmpArr);
   }
 
-  private static String hash(long input, String alphabet) {
-    String hash = "";
-    final int alphabetLen = alphabet.length();
+  /**
+   * 数字按字母表进制写入 target
+   *
+   * @return 写入后的结束位置
+   */
+  private static int hash(long input, char[] alphabet, int alphabetLen, char[] target, int offset) {
+    int end = offset;
+    long rest = input;
+    do {
+      end++;
+      rest /= alphabetLen;
+    } while (rest > 0);
 
+    int position = end;
     do {
-      final int index = (int) (input % alphabetLen);
-      if (index >= 0 && index < alphabet.length()) {
-        hash = alphabet.charAt(index) + hash;
-      }
+      target[--position] = alphabet[(int) (input % alphabetLen)];
       input /= alphabetLen;
     } while (input > 0);
 
-    return hash;
+    return end;
   }
 
-  private static Long unhash(String input, String alphabet) {
+  private static long unhash(String input, int from, int to, char[] alphabet, int alphabetLen) {
     long number = 0, pos;
 
-    for (int i = 0; i < input.length(); i++) {
-      pos = alphabet.indexOf(input.charAt(i));
-      number = number * alphabet.length() + pos;
+    for (int i = from; i < to; i++) {
+      pos = Hashids.indexOf(alphabet, alphabetLen, input.charAt(i));
+      number = number * alphabetLen + pos;
     }
 
     return number;
   }
 
+  /** 与 String.split 一致: 没有分隔符时只有一段, 否则去掉末尾的空段 */
+  private static int splitCount(String input, int from, int to, char[] separators) {
+    int separatorCount = 0;
+    int separatorsBeforeLast = -1;
+    for (int i = from; i < to; i++) {
+      if (Hashids.contains(separators, input.charAt(i))) {
+        separatorCount++;
+      } else {
+        separatorsBeforeLast = separatorCount;
+      }
+    }
+    if (separatorCount == 0) {
+      return 1;
+    }
+    return separatorsBeforeLast + 1;
+  }
+
+  private static boolean contains(char[] chars, char c) {
+    return Hashids.indexOf(chars, chars.length, c) >= 0;
+  }
+
+  private static int indexOf(char[] chars, int length, char c) {
+    for (int i = 0; i < length; i++) {
+      if (chars[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int hexDigit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+
   /**
    * Get Hashid algorithm version.
    *
@@ -387,4 +801,65 @@ public class Hashids {
   public String getVersion() {
     return "1.0.0";
   }
+
+  /** 编码缓冲区, 按需扩容后复用, 同时作为批量编码时最近一次结果的只读视图 */
+  private static final class Scratch implements CharSequence {
+    final long[] single = new long[1];
+    char[] alphabet = new char[64];
+    char[] shuffleSalt = new char[64];
+    char[] text = new char[128];
+    char[] padding = new char[128];
+    int offset;
+    int length;
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      Objects.checkIndex(index, length);
+      return text[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      Objects.checkFromToIndex(start, end, length);
+      return new String(text, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+      return new String(text, offset, length);
+    }
+
+    char[] alphabet(int length) {
+      if (alphabet.length < length) {
+        alphabet = new char[length];
+      }
+      return alphabet;
+    }
+
+    char[] shuffleSalt(int length) {
+      if (shuffleSalt.length < length) {
+        shuffleSalt = new char[length];
+      }
+      return shuffleSalt;
+    }
+
+    char[] text(int length) {
+      if (text.length < length) {
+        text = new char[length];
+      }
+      return text;
+    }
+
+    char[] padding(int length) {
+      if (padding.length < length) {
+        padding = new char[length];
+      }
+      return padding;
+    }
+  }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.hashids;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 (salt, minHashLength, alphabet) 复用 {@link Hashids} 实例
+ *
+ * <p>实例只保存构造时预计算的字母表与洗牌表, 请求路径直接复用, 不再重复构造. 实例数量超过上限时淘汰最久未使用的实例.
+ * 构造在锁外进行, 并发构造同一个 key 时只保留先放入的实例.
+ */
+public final class HashidsRegistry {
+  public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+  private final int maximumSize;
+  private final int decodeCacheSize;
+  private final Map<Key, Hashids> instances;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public HashidsRegistry() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  public HashidsRegistry(int maximumSize) {
+    this(maximumSize, 0);
+  }
+
+  /**
+   * @param maximumSize 最多保留的实例数量
+   * @param decodeCacheSize 每个实例的解码缓存数量, 0 表示不缓存
+   */
+  public HashidsRegistry(int maximumSize, int decodeCacheSize) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be positive");
+    }
+    this.maximumSize = maximumSize;
+    this.decodeCacheSize = decodeCacheSize;
+    this.instances =
+        new LinkedHashMap<>(Math.min(maximumSize, 64), 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, Hashids> eldest) {
+            if (size() > HashidsRegistry.this.maximumSize) {
+              evictions.increment();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  public Hashids get(String salt) {
+    return get(salt, 0);
+  }
+
+  public Hashids get(String salt, int minHashLength) {
+    return get(salt, minHashLength, Hashids.DEFAULT_ALPHABET);
+  }
+
+  /**
+   * 获取或构造实例, 参数与 {@link Hashids#Hashids(String, int, String)} 一致
+   *
+   * @param salt 盐, null 等同于空字符串
+   * @param minHashLength 最小编码长度, 不大于 0 时不限制
+   * @param alphabet 字母表
+   * @return 共享的实例
+   */
+  public Hashids get(String salt, int minHashLength, String alphabet) {
+    Key key = new Key(Objects.isNull(salt) ? "" : salt, Math.max(minHashLength, 0), alphabet);
+    Hashids hashids;
+    synchronized (instances) {
+      hashids = instances.get(key);
+    }
+    if (Objects.nonNull(hashids)) {
+      hits.increment();
+      return hashids;
+    }
+    misses.increment();
+    Hashids created =
+        new Hashids(key.salt(), key.minHashLength(), key.alphabet(), decodeCacheSize);
+    synchronized (instances) {
+      hashids = instances.putIfAbsent(key, created);
+    }
+    return Objects.nonNull(hashids) ? hashids : created;
+  }
+
+  /**
+   * 移除实例, 已经取得实例的调用方不受影响
+   *
+   * @param salt 盐
+   * @param minHashLength 最小编码长度
+   * @param alphabet 字母表
+   */
+  public void invalidate(String salt, int minHashLength, String alphabet) {
+    Key key = new Key(Objects.isNull(salt) ? "" : salt, Math.max(minHashLength, 0), alphabet);
+    synchronized (instances) {
+      instances.remove(key);
+    }
+  }
+
+  public void invalidateAll() {
+    synchronized (instances) {
+      instances.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (instances) {
+      return instances.size();
+    }
+  }
+
+  /**
+   * 实例缓存统计
+   *
+   * @return 命中, 构造与淘汰次数
+   */
+  public RegistryStats stats() {
+    return new RegistryStats(hits.sum(), misses.sum(), evictions.sum(), size());
+  }
+
+  /**
+   * 实例缓存统计
+   *
+   * @param hits 命中次数
+   * @param misses 未命中需要构造的次数
+   * @param evictions 因超过上限被淘汰的实例数量
+   * @param size 当前实例数量
+   */
+  public record RegistryStats(long hits, long misses, long evictions, int size) {
+
+    /** 缓存命中率 */
+    public double hitRatio() {
+      long total = hits + misses;
+      return total == 0 ? 0 : (double) hits / total;
+    }
+  }
+
+  private record Key(String salt, int minHashLength, String alphabet) {
+    Key {
+      Objects.requireNonNull(alphabet);
+    }
+  }
+}
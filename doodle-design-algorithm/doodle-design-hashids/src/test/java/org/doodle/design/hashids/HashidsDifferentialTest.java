@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.hashids;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 随机参数下与 {@link ReferenceHashids} 的差分测试
+ *
+ * <p>参照实现用 guards 与 seps 拼接正则字符类, 字母表中出现 {@code \ [ ] ^ - &} 时参照实现本身就会出错,
+ * 随机字母表不包含这些字符. 种子固定, 失败信息中带有用例参数.
+ */
+class HashidsDifferentialTest {
+  private static final long SEED = 0x5EED_1DL;
+  private static final String SAFE_CHARS =
+      "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_@#%=~!,;:";
+  private static final String DEFAULT_ALPHABET =
+      "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
+
+  private final Random random = new Random(SEED);
+
+  @Test
+  void encodeAndDecodeMatchReference() {
+    for (int round = 0; round < 300; round++) {
+      String salt = randomSalt();
+      int minHashLength = random.nextInt(4) == 0 ? random.nextInt(40) : 0;
+      String alphabet = random.nextInt(4) == 0 ? DEFAULT_ALPHABET : randomAlphabet();
+      Hashids hashids = new Hashids(salt, minHashLength, alphabet);
+      ReferenceHashids reference = new ReferenceHashids(salt, minHashLength, alphabet);
+      for (int i = 0; i < 50; i++) {
+        long[] numbers = randomNumbers();
+        String context = describe(salt, minHashLength, alphabet, numbers);
+        String expected = reference.encode(numbers);
+        assertEquals(expected, hashids.encode(numbers), context);
+        assertArrayEquals(reference.decode(expected), hashids.decode(expected), context);
+      }
+    }
+  }
+
+  @Test
+  void hexMatchesReference() {
+    for (int round = 0; round < 100; round++) {
+      String salt = randomSalt();
+      String alphabet = randomAlphabet();
+      Hashids hashids = new Hashids(salt, 0, alphabet);
+      ReferenceHashids reference = new ReferenceHashids(salt, 0, alphabet);
+      for (int i = 0; i < 20; i++) {
+        String hex = randomHex();
+        String context = "salt=" + salt + ", alphabet=" + alphabet + ", hex=" + hex;
+        String expected = reference.encodeHex(hex);
+        assertEquals(expected, hashids.encodeHex(hex), context);
+        assertEquals(reference.decodeHex(expected), hashids.decodeHex(expected), context);
+      }
+    }
+  }
+
+  @Test
+  void corruptedInputsDecodeLikeReference() {
+    for (int round = 0; round < 200; round++) {
+      String salt = randomSalt();
+      int minHashLength = random.nextBoolean() ? 8 + random.nextInt(24) : 0;
+      String alphabet = random.nextInt(4) == 0 ? DEFAULT_ALPHABET : randomAlphabet();
+      Hashids hashids = new Hashids(salt, minHashLength, alphabet);
+      Hashids cached = new Hashids(salt, minHashLength, alphabet, 16);
+      ReferenceHashids reference = new ReferenceHashids(salt, minHashLength, alphabet);
+      for (String input : corruptedInputs(reference, alphabet)) {
+        String context = describe(salt, minHashLength, alphabet, new long[0]) + ", input=" + input;
+        long[] expected = referenceDecode(reference, input);
+        assertArrayEquals(expected, hashids.decode(input), context);
+        // 第二次解码可能命中缓存
+        assertArrayEquals(expected, cached.decode(input), context);
+        assertArrayEquals(expected, cached.decode(input), context);
+      }
+    }
+  }
+
+  @Test
+  void decodeCacheReturnsDefensiveCopies() {
+    Hashids hashids = new Hashids("salt", 0, DEFAULT_ALPHABET, 16);
+    String hash = hashids.encode(1, 2, 3);
+
+    long[] first = hashids.decode(hash);
+    first[0] = 99;
+    long[] second = hashids.decode(hash);
+    assertArrayEquals(new long[] {1, 2, 3}, second);
+    second[1] = 99;
+    assertArrayEquals(new long[] {1, 2, 3}, hashids.decode(hash));
+    assertEquals(2, hashids.decodeCacheStats().hits());
+    assertEquals(1, hashids.decodeCacheStats().misses());
+  }
+
+  /** 参照实现回编码校验时遇到超过 MAX_NUMBER 的数会抛出异常, 这样的输入不是合法编码 */
+  private static long[] referenceDecode(ReferenceHashids reference, String input) {
+    try {
+      return reference.decode(input);
+    } catch (IllegalArgumentException e) {
+      return new long[0];
+    }
+  }
+
+  /** 随机串, 截断, guard 与 seps 互换, 去掉 guard 后短于 minHashLength 的合法编码 */
+  private List<String> corruptedInputs(ReferenceHashids reference, String alphabet) {
+    String guards = reference.guards();
+    String seps = reference.seps();
+    String valid = alphabet + guards + seps;
+    List<String> inputs = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      StringBuilder input = new StringBuilder();
+      for (int length = random.nextInt(30); length > 0; length--) {
+        input.append(valid.charAt(random.nextInt(valid.length())));
+      }
+      if (random.nextInt(4) == 0) {
+        input.insert(random.nextInt(input.length() + 1), '$');
+      }
+      inputs.add(input.toString());
+    }
+    for (int i = 0; i < 10; i++) {
+      String hash = reference.encode(randomNumbers());
+      int cut = random.nextInt(hash.length());
+      inputs.add(hash.substring(0, cut));
+      inputs.add(hash.substring(cut));
+      inputs.add(hash.substring(1, hash.length() - 1));
+      inputs.add(replaceOne(hash, guards, seps));
+      inputs.add(replaceOne(hash, seps, guards));
+      inputs.add(replaceOne(hash, guards, guards));
+      inputs.add(replaceOne(hash, seps, seps));
+      inputs.add(swap(hash));
+    }
+    return inputs;
+  }
+
+  /** 把一个属于 from 的字符换成 to 中的随机字符, 没有这样的字符时原样返回 */
+  private String replaceOne(String hash, String from, String to) {
+    List<Integer> positions = new ArrayList<>();
+    for (int i = 0; i < hash.length(); i++) {
+      if (from.indexOf(hash.charAt(i)) >= 0) {
+        positions.add(i);
+      }
+    }
+    if (positions.isEmpty() || to.isEmpty()) {
+      return hash;
+    }
+    char[] chars = hash.toCharArray();
+    chars[positions.get(random.nextInt(positions.size()))] = to.charAt(random.nextInt(to.length()));
+    return new String(chars);
+  }
+
+  private String swap(String hash) {
+    char[] chars = hash.toCharArray();
+    int i = random.nextInt(chars.length);
+    int j = random.nextInt(chars.length);
+    char c = chars[i];
+    chars[i] = chars[j];
+    chars[j] = c;
+    return new String(chars);
+  }
+
+  private String randomSalt() {
+    StringBuilder salt = new StringBuilder();
+    for (int i = random.nextInt(24); i > 0; i--) {
+      salt.append((char) (' ' + random.nextInt('~' - ' ' + 1)));
+    }
+    return salt.toString();
+  }
+
+  /** 16 个以上互不相同的安全字符, 偶尔带重复字符 */
+  private String randomAlphabet() {
+    List<Character> chars = new ArrayList<>(SAFE_CHARS.length());
+    for (char c : SAFE_CHARS.toCharArray()) {
+      chars.add(c);
+    }
+    Collections.shuffle(chars, random);
+    int length = 16 + random.nextInt(SAFE_CHARS.length() - 15);
+    StringBuilder alphabet = new StringBuilder(length + 2);
+    for (int i = 0; i < length; i++) {
+      alphabet.append(chars.get(i));
+    }
+    if (random.nextBoolean()) {
+      alphabet.append(alphabet.charAt(random.nextInt(length)));
+    }
+    return alphabet.toString();
+  }
+
+  private long[] randomNumbers() {
+    long[] numbers = new long[1 + random.nextInt(5)];
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i] =
+          switch (random.nextInt(4)) {
+            case 0 -> random.nextInt(100);
+            case 1 -> random.nextInt(Integer.MAX_VALUE);
+            case 2 -> Hashids.MAX_NUMBER - random.nextInt(1000);
+            default -> (random.nextLong() >>> 1) % (Hashids.MAX_NUMBER + 1);
+          };
+    }
+    return numbers;
+  }
+
+  private String randomHex() {
+    StringBuilder hex = new StringBuilder();
+    for (int i = 1 + random.nextInt(40); i > 0; i--) {
+      hex.append("0123456789abcdefABCDEF".charAt(random.nextInt(22)));
+    }
+    return hex.toString();
+  }
+
+  private static String describe(String salt, int minHashLength, String alphabet, long[] numbers) {
+    return "salt="
+        + salt
+        + ", minHashLength="
+        + minHashLength
+        + ", alphabet="
+        + alphabet
+        + ", numbers="
+        + Arrays.toString(numbers);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.hashids;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.junit.jupiter.api.Test;
+
+/** {@link Hashids#encodeRange} 的各个重载与逐个 {@link Hashids#encode(long...)} 一致 */
+class HashidsEncodeRangeTest {
+  /** 跨过并行拆分的 8192 个一组的边界 */
+  private static final long FROM_ID = 8192 - 100;
+
+  private static final int COUNT = 3 * 8192 + 17;
+
+  private final Hashids hashids = new Hashids("range salt", 8);
+
+  @Test
+  void consumerMatchesEncode() {
+    List<String> codes = new ArrayList<>(COUNT);
+    hashids.encodeRange(FROM_ID, COUNT, code -> codes.add(code.toString()));
+    assertEquals(expected(FROM_ID, COUNT), codes);
+  }
+
+  @Test
+  void appendableMatchesEncode() throws IOException {
+    String expected = lines(expected(FROM_ID, COUNT));
+
+    StringBuilder builder = new StringBuilder();
+    hashids.encodeRange(FROM_ID, COUNT, builder);
+    assertEquals(expected, builder.toString());
+
+    StringWriter writer = new StringWriter();
+    hashids.encodeRange(FROM_ID, COUNT, writer);
+    assertEquals(expected, writer.toString());
+
+    // 既不是 StringBuilder 也不是 Writer 时按 CharSequence 追加
+    StringBuilder target = new StringBuilder();
+    Appendable appendable =
+        new Appendable() {
+          @Override
+          public Appendable append(CharSequence csq) {
+            target.append(csq);
+            return this;
+          }
+
+          @Override
+          public Appendable append(CharSequence csq, int start, int end) {
+            target.append(csq, start, end);
+            return this;
+          }
+
+          @Override
+          public Appendable append(char c) {
+            target.append(c);
+            return this;
+          }
+        };
+    hashids.encodeRange(FROM_ID, COUNT, appendable);
+    assertEquals(expected, target.toString());
+  }
+
+  @Test
+  void forkJoinMatchesEncode() {
+    AtomicReferenceArray<String> codes = new AtomicReferenceArray<>(COUNT);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      hashids.encodeRange(
+          FROM_ID,
+          COUNT,
+          pool,
+          (id, code) -> {
+            String previous = codes.getAndSet((int) (id - FROM_ID), code.toString());
+            assertNull(previous, "重复编码 " + id);
+          });
+    } finally {
+      pool.shutdown();
+    }
+    List<String> expected = expected(FROM_ID, COUNT);
+    for (int i = 0; i < COUNT; i++) {
+      assertEquals(expected.get(i), codes.get(i), "id=" + (FROM_ID + i));
+    }
+  }
+
+  @Test
+  void rangeEndingAtMaxNumber() {
+    long fromId = Hashids.MAX_NUMBER - 9;
+    List<String> codes = new ArrayList<>();
+    hashids.encodeRange(fromId, 10, code -> codes.add(code.toString()));
+    assertEquals(expected(fromId, 10), codes);
+    assertArrayEquals(new long[] {Hashids.MAX_NUMBER}, hashids.decode(codes.get(9)));
+  }
+
+  @Test
+  void invalidRangesAreRejected() {
+    List<CharSequence> codes = new ArrayList<>();
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> hashids.encodeRange(Hashids.MAX_NUMBER - 9, 11, codes::add));
+    assertThrows(IllegalArgumentException.class, () -> hashids.encodeRange(-1, 1, codes::add));
+    assertThrows(IllegalArgumentException.class, () -> hashids.encodeRange(0, -1, codes::add));
+    assertEquals(List.of(), codes);
+
+    hashids.encodeRange(10, 0, codes::add);
+    assertEquals(List.of(), codes);
+  }
+
+  private List<String> expected(long fromId, int count) {
+    List<String> codes = new ArrayList<>(count);
+    for (long id = fromId; id < fromId + count; id++) {
+      codes.add(hashids.encode(id));
+    }
+    return codes;
+  }
+
+  private static String lines(List<String> codes) {
+    StringBuilder lines = new StringBuilder();
+    for (String code : codes) {
+      lines.append(code).append('\n');
+    }
+    return lines.toString();
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.hashids;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/** {@link HashidsRegistry} 的命中统计, 最久未使用淘汰与 key 归一化 */
+class HashidsRegistryTest {
+
+  @Test
+  void countsHitsAndMisses() {
+    HashidsRegistry registry = new HashidsRegistry(8);
+
+    Hashids first = registry.get("a");
+    assertSame(first, registry.get("a"));
+    assertSame(first, registry.get("a", 0));
+    assertNotSame(first, registry.get("a", 4));
+    registry.get("b");
+
+    assertEquals(new HashidsRegistry.RegistryStats(2, 3, 0, 3), registry.stats());
+    assertEquals(0.4, registry.stats().hitRatio());
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedAtMaximumSize() {
+    HashidsRegistry registry = new HashidsRegistry(2);
+
+    Hashids a = registry.get("a");
+    Hashids b = registry.get("b");
+    // 访问 a 后 b 成为最久未使用
+    assertSame(a, registry.get("a"));
+    registry.get("c");
+
+    assertEquals(2, registry.size());
+    assertEquals(1, registry.stats().evictions());
+    assertSame(a, registry.get("a"));
+    assertNotSame(b, registry.get("b"));
+    assertEquals(2, registry.size());
+    assertEquals(2, registry.stats().evictions());
+  }
+
+  @Test
+  void nullSaltSharesKeyWithEmptySalt() {
+    HashidsRegistry registry = new HashidsRegistry(8);
+
+    Hashids empty = registry.get("");
+    assertSame(empty, registry.get(null));
+    assertSame(empty, registry.get(null, -1, Hashids.DEFAULT_ALPHABET));
+    assertEquals(new Hashids("").encode(1, 2, 3), registry.get(null).encode(1, 2, 3));
+
+    registry.invalidate(null, 0, Hashids.DEFAULT_ALPHABET);
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  void invalidateAllKeepsIssuedInstances() {
+    HashidsRegistry registry = new HashidsRegistry(8, 16);
+
+    Hashids issued = registry.get("a");
+    String hash = issued.encode(7);
+    registry.invalidateAll();
+
+    assertEquals(0, registry.size());
+    assertEquals(7, issued.decode(hash)[0]);
+    assertNotSame(issued, registry.get("a"));
+  }
+
+  @Test
+  void rejectsNonPositiveMaximumSize() {
+    assertThrows(IllegalArgumentException.class, () -> new HashidsRegistry(0));
+  }
+}
@@ -15,38 +15,291 @@
  */
 package org.doodle.design.broker.frame;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.rsocket.ConnectionSetupPayload;
 import io.rsocket.Payload;
 import io.rsocket.metadata.WellKnownMimeType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Objects;
 import java.util.function.Function;
-import org.springframework.messaging.rsocket.MetadataExtractor;
 import org.springframework.messaging.rsocket.RSocketStrategies;
 import org.springframework.util.MimeType;
 
+/**
+ * 从 payload 元数据中提取 {@link BrokerFrame}
+ *
+ * <p>composite metadata 直接在 {@link ByteBuf} 上按条目遍历, 以字节比较找到 {@code
+ * message/doodle.broker.frame.v0} 条目, 再用 {@link CodedInputStream} 在 nioBuffer 上解析,
+ * 不经过 {@link MimeType} 解析, 中间 Map 与 DataBuffer 拷贝. 其它元数据类型的 setup payload 仍交给
+ * {@link RSocketStrategies#metadataExtractor()} 处理.
+ */
 public class BrokerFrameExtractor implements Function<Payload, BrokerFrame> {
-  private final Function<Payload, BrokerFrame> frameExtractor;
+  private static final String COMPOSITE_METADATA_MIME_TYPE =
+      WellKnownMimeType.MESSAGE_RSOCKET_COMPOSITE_METADATA.getString();
+  private static final String BROKER_FRAME_MIME_TYPE =
+      BrokerFrameMimeTypes.BROKER_FRAME_MIME_TYPE.toString();
+  private static final byte[] BROKER_FRAME_MIME_BYTES =
+      BROKER_FRAME_MIME_TYPE.getBytes(StandardCharsets.US_ASCII);
+
+  /** 条目首字节最高位为 1 表示 well-known mime id, 否则低 7 位为 mime 长度减一 */
+  private static final int WELL_KNOWN_MIME_FLAG = 0x80;
+
+  private static final int MIME_LENGTH_MASK = 0x7F;
+  private static final int CONTENT_LENGTH_BYTES = 3;
+
+  /** protobuf tag: BrokerFrame.address (2, LEN) 与 Address.shard_key (6, LEN) */
+  private static final int ADDRESS_TAG = 2 << 3 | 2;
+
+  private static final int SHARD_KEY_TAG = 6 << 3 | 2;
+  private static final int MAX_VARINT_BYTES = 10;
+
+  private final RSocketStrategies strategies;
 
   public BrokerFrameExtractor(RSocketStrategies strategies) {
-    this.frameExtractor =
-        (payload) -> {
-          MimeType mimeType =
-              MimeType.valueOf(
-                  (payload instanceof ConnectionSetupPayload setupPayload)
-                      ? setupPayload.metadataMimeType()
-                      : WellKnownMimeType.MESSAGE_RSOCKET_COMPOSITE_METADATA.toString());
-          MetadataExtractor metadataExtractor = strategies.metadataExtractor();
-          Map<String, Object> payloadMetadata = metadataExtractor.extract(payload, mimeType);
-          if (payloadMetadata.containsKey(BrokerFrameMimeTypes.BROKER_FRAME_METADATA_KEY)) {
-            return (BrokerFrame)
-                payloadMetadata.get(BrokerFrameMimeTypes.BROKER_FRAME_METADATA_KEY);
-          }
-          return null;
-        };
+    this.strategies = strategies;
   }
 
   @Override
   public BrokerFrame apply(Payload payload) {
-    return this.frameExtractor.apply(payload);
+    if (!payload.hasMetadata()) {
+      return null;
+    }
+    if (isGeneric(payload)) {
+      return extractGeneric(payload, ((ConnectionSetupPayload) payload).metadataMimeType());
+    }
+    ByteBuf frame = frameBytes(payload);
+    return Objects.nonNull(frame) ? parse(frame) : null;
+  }
+
+  /**
+   * broker frame 序列化内容, 与 payload 共享内存, 只在 payload 释放前有效
+   *
+   * @param payload 请求
+   * @return 没有 broker frame 或需要通用元数据解析时返回 null
+   */
+  public ByteBuf frameBytes(Payload payload) {
+    if (!payload.hasMetadata() || isGeneric(payload)) {
+      return null;
+    }
+    ByteBuf metadata = payload.metadata();
+    if (payload instanceof ConnectionSetupPayload setupPayload
+        && BROKER_FRAME_MIME_TYPE.equals(setupPayload.metadataMimeType())) {
+      return metadata.slice();
+    }
+    return findComposite(metadata);
+  }
+
+  /**
+   * 在 composite metadata 中查找并解析 broker frame 条目
+   *
+   * @param metadata composite metadata, 读写位置不会改变
+   * @return 找不到条目时返回 null
+   */
+  public static BrokerFrame extractComposite(ByteBuf metadata) {
+    ByteBuf frame = findComposite(metadata);
+    return Objects.nonNull(frame) ? parse(frame) : null;
+  }
+
+  /**
+   * 解析 broker frame 序列化内容
+   *
+   * @param frame {@link #frameBytes(Payload)} 返回的内容, 读写位置不会改变
+   * @return broker frame
+   */
+  public static BrokerFrame parse(ByteBuf frame) {
+    int index = frame.readerIndex();
+    int length = frame.readableBytes();
+    try {
+      CodedInputStream input =
+          frame.nioBufferCount() == 1
+              ? CodedInputStream.newInstance(frame.nioBuffer(index, length))
+              : CodedInputStream.newInstance(Arrays.asList(frame.nioBuffers(index, length)));
+      return BrokerFrame.parser().parseFrom(input);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalArgumentException("BrokerFrame 解析失败", e);
+    }
+  }
+
+  /**
+   * 在字节上去掉 Address 中的 shard_key 字段, 不解析 protobuf
+   *
+   * <p>按字段顺序序列化的 frame 去掉该字段后, 与清空 shard key 再序列化的结果相同, 可以直接作为路由缓存的键.
+   *
+   * @param frame {@link #frameBytes(Payload)} 返回的内容, 读写位置不会改变
+   * @return 不是 Address frame, 没有 shard_key, 字段重复或无法按字节识别时返回 null
+   */
+  public static ShardedFrame stripShardKey(ByteBuf frame) {
+    int index = frame.readerIndex();
+    int end = frame.writerIndex();
+    if (index >= end || frame.getUnsignedByte(index) != ADDRESS_TAG) {
+      return null;
+    }
+    long length = readVarint(frame, index + 1, end);
+    if (length < 0) {
+      return null;
+    }
+    int start = index + 1 + (int) length;
+    if ((length >>> 32) != end - start) {
+      return null;
+    }
+    int shardKeyStart = -1;
+    int shardKeyEnd = -1;
+    int valueStart = -1;
+    int position = start;
+    while (position < end) {
+      long tag = readVarint(frame, position, end);
+      if (tag < 0) {
+        return null;
+      }
+      int fieldStart = position;
+      position += (int) tag;
+      switch ((int) (tag >>> 32) & 7) {
+        case 0 -> position = skipVarint(frame, position, end);
+        case 1 -> position += 8;
+        case 2 -> {
+          long fieldLength = readVarint(frame, position, end);
+          if (fieldLength < 0) {
+            return null;
+          }
+          position += (int) fieldLength;
+          if ((tag >>> 32) == SHARD_KEY_TAG) {
+            valueStart = position;
+          }
+          position += (int) (fieldLength >>> 32);
+        }
+        case 5 -> position += 4;
+        default -> {
+          return null;
+        }
+      }
+      if (position < 0 || position > end) {
+        return null;
+      }
+      if ((tag >>> 32) == SHARD_KEY_TAG) {
+        if (shardKeyStart >= 0) {
+          return null;
+        }
+        shardKeyStart = fieldStart;
+        shardKeyEnd = position;
+      }
+    }
+    if (shardKeyStart < 0) {
+      return null;
+    }
+    int contentLength = end - start - (shardKeyEnd - shardKeyStart);
+    ByteBuf shared = Unpooled.buffer(1 + MAX_VARINT_BYTES + contentLength);
+    shared.writeByte(ADDRESS_TAG);
+    writeVarint(shared, contentLength);
+    shared.writeBytes(frame, start, shardKeyStart - start);
+    shared.writeBytes(frame, shardKeyEnd, end - shardKeyEnd);
+    String shardKey = frame.toString(valueStart, shardKeyEnd - valueStart, StandardCharsets.UTF_8);
+    return new ShardedFrame(shared, shardKey);
+  }
+
+  /**
+   * 读取不超过 int 范围的 varint
+   *
+   * @return 高 32 位为数值, 低 32 位为占用字节数, 越界或超出范围时返回 -1
+   */
+  private static long readVarint(ByteBuf buffer, int index, int end) {
+    long value = 0;
+    for (int i = index, shift = 0; i < end && shift < 35; i++, shift += 7) {
+      int b = buffer.getByte(i);
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value > Integer.MAX_VALUE ? -1 : value << 32 | (i - index + 1);
+      }
+    }
+    return -1;
+  }
+
+  /** 跳过任意长度的 varint, 越界时返回 -1 */
+  private static int skipVarint(ByteBuf buffer, int index, int end) {
+    for (int i = index; i < end && i - index < MAX_VARINT_BYTES; i++) {
+      if ((buffer.getByte(i) & 0x80) == 0) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private static void writeVarint(ByteBuf buffer, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer.writeByte(value);
+  }
+
+  private static ByteBuf findComposite(ByteBuf metadata) {
+    int index = metadata.readerIndex();
+    int end = metadata.writerIndex();
+    while (index < end) {
+      int mimeHeader = metadata.getUnsignedByte(index++);
+      boolean matched = false;
+      if ((mimeHeader & WELL_KNOWN_MIME_FLAG) == 0) {
+        int mimeLength = (mimeHeader & MIME_LENGTH_MASK) + 1;
+        checkBounds(index, mimeLength, end);
+        matched = isBrokerFrameMimeType(metadata, index, mimeLength);
+        index += mimeLength;
+      }
+      checkBounds(index, CONTENT_LENGTH_BYTES, end);
+      int contentLength = metadata.getUnsignedMedium(index);
+      index += CONTENT_LENGTH_BYTES;
+      checkBounds(index, contentLength, end);
+      if (matched) {
+        return metadata.slice(index, contentLength);
+      }
+      index += contentLength;
+    }
+    return null;
   }
+
+  private static boolean isBrokerFrameMimeType(ByteBuf metadata, int index, int length) {
+    if (length != BROKER_FRAME_MIME_BYTES.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (metadata.getByte(index + i) != BROKER_FRAME_MIME_BYTES[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void checkBounds(int index, int length, int end) {
+    if (length > end - index) {
+      throw new IllegalArgumentException("composite metadata 条目长度超出范围");
+    }
+  }
+
+  /** setup payload 使用 composite 与 broker frame 以外的元数据类型 */
+  private static boolean isGeneric(Payload payload) {
+    if (payload instanceof ConnectionSetupPayload setupPayload) {
+      String mimeType = setupPayload.metadataMimeType();
+      return !BROKER_FRAME_MIME_TYPE.equals(mimeType)
+          && !COMPOSITE_METADATA_MIME_TYPE.equals(mimeType);
+    }
+    return false;
+  }
+
+  private BrokerFrame extractGeneric(Payload payload, String mimeType) {
+    Map<String, Object> payloadMetadata =
+        strategies.metadataExtractor().extract(payload, MimeType.valueOf(mimeType));
+    Object frame = payloadMetadata.get(BrokerFrameMimeTypes.BROKER_FRAME_METADATA_KEY);
+    return Objects.nonNull(frame) ? (BrokerFrame) frame : null;
+  }
+
+  /**
+   * 去掉 shard_key 字段的 frame
+   *
+   * @param frame 去掉 shard_key 后的序列化 BrokerFrame, 独立的堆内存
+   * @param shardKey 原 frame 中的 shard key
+   */
+  public record ShardedFrame(ByteBuf frame, String shardKey) {}
 }
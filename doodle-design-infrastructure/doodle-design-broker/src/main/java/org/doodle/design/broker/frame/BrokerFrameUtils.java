@@ -15,6 +15,8 @@
  */
 package org.doodle.design.broker.frame;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
 import lombok.experimental.UtilityClass;
 
@@ -47,6 +49,41 @@ public final class BrokerFrameUtils {
     return BrokerFrame.newBuilder().setSetup(setup).build();
   }
 
+  /**
+   * 创建 setup 协议
+   *
+   * @param tags 路由索引 tag 键值对
+   * @param multiTags 路由索引多值 tag
+   * @param routeId 路由唯一ID
+   * @return
+   */
+  public static BrokerFrame setup(
+      Map<String, String> tags,
+      Map<String, ? extends Collection<String>> multiTags,
+      String routeId) {
+    Tags.Builder builder = Tags.newBuilder().putAllTag(tags);
+    for (Map.Entry<String, ? extends Collection<String>> tag : multiTags.entrySet()) {
+      builder.putMultiTag(tag.getKey(), TagValues.newBuilder().addAllValue(tag.getValue()).build());
+    }
+    RouteSetup.Builder setup =
+        RouteSetup.newBuilder()
+            .setRouteId(UUID.newBuilder().setId(routeId).build())
+            .setTags(builder);
+    return BrokerFrame.newBuilder().setSetup(setup).build();
+  }
+
+  /**
+   * broker 之间互联使用的 peer 协议
+   *
+   * @param brokerId broker 唯一ID
+   * @return
+   */
+  public static BrokerFrame peer(String brokerId) {
+    BrokerPeer.Builder peer =
+        BrokerPeer.newBuilder().setBrokerId(UUID.newBuilder().setId(brokerId));
+    return BrokerFrame.newBuilder().setPeer(peer).build();
+  }
+
   /**
    * UNICAST address 协议, 交集 查询
    *
@@ -68,6 +105,57 @@ public final class BrokerFrameUtils {
     return address(tags, queryType, RoutingType.UNICAST);
   }
 
+  /**
+   * UNICAST address 协议, 交集 查询
+   *
+   * @param tags 目标服务路由索引 tag 键值对
+   * @param loadBalance 多个路由匹配时的选择策略
+   * @return
+   */
+  public static BrokerFrame unicast(Map<String, String> tags, LoadBalance loadBalance) {
+    Address.Builder address =
+        Address.newBuilder()
+            .setQueryType(QueryType.AND)
+            .setTags(Tags.newBuilder().putAllTag(tags))
+            .setRoutingType(RoutingType.UNICAST)
+            .setLoadBalance(loadBalance);
+    return BrokerFrame.newBuilder().setAddress(address).build();
+  }
+
+  /**
+   * UNICAST address 协议, 使用路由表达式查询
+   *
+   * @param expression 目标服务路由表达式
+   * @param loadBalance 多个路由匹配时的选择策略
+   * @return
+   */
+  public static BrokerFrame unicast(TagExpression expression, LoadBalance loadBalance) {
+    Address.Builder address =
+        Address.newBuilder()
+            .setExpression(expression)
+            .setRoutingType(RoutingType.UNICAST)
+            .setLoadBalance(loadBalance);
+    return BrokerFrame.newBuilder().setAddress(address).build();
+  }
+
+  /**
+   * UNICAST address 协议, 按 shard key 一致性哈希选择路由, 交集 查询
+   *
+   * @param tags 目标服务路由索引 tag 键值对
+   * @param shardKey 例如角色ID, 相同的 shard key 落在同一个路由
+   * @return
+   */
+  public static BrokerFrame consistentHash(Map<String, String> tags, String shardKey) {
+    Address.Builder address =
+        Address.newBuilder()
+            .setQueryType(QueryType.AND)
+            .setTags(Tags.newBuilder().putAllTag(tags))
+            .setRoutingType(RoutingType.UNICAST)
+            .setLoadBalance(LoadBalance.CONSISTENT_HASH)
+            .setShardKey(shardKey);
+    return BrokerFrame.newBuilder().setAddress(address).build();
+  }
+
   /**
    * MULTICAST address 协议, 交集 查询
    *
@@ -89,6 +177,23 @@ public final class BrokerFrameUtils {
     return address(tags, queryType, RoutingType.MULTICAST);
   }
 
+  /**
+   * MULTICAST address 协议, 交集 查询, 指定扇出并发、分批与单目标超时
+   *
+   * @param tags 目标服务路由索引 tag 键值对
+   * @param options 扇出选项, 未设置的字段使用默认值
+   * @return
+   */
+  public static BrokerFrame multicast(Map<String, String> tags, MulticastOptions options) {
+    Address.Builder address =
+        Address.newBuilder()
+            .setQueryType(QueryType.AND)
+            .setTags(Tags.newBuilder().putAllTag(tags))
+            .setRoutingType(RoutingType.MULTICAST)
+            .setMulticast(options);
+    return BrokerFrame.newBuilder().setAddress(address).build();
+  }
+
   /**
    * address 协议
    *
@@ -106,4 +211,66 @@ public final class BrokerFrameUtils {
             .setRoutingType(routingType);
     return BrokerFrame.newBuilder().setAddress(address).build();
   }
+
+  /**
+   * address 协议, 使用路由表达式查询
+   *
+   * @param expression 目标服务路由表达式
+   * @param routingType 请求路由类型
+   * @return
+   */
+  public static BrokerFrame address(TagExpression expression, RoutingType routingType) {
+    Address.Builder address =
+        Address.newBuilder().setExpression(expression).setRoutingType(routingType);
+    return BrokerFrame.newBuilder().setAddress(address).build();
+  }
+
+  /**
+   * tag 取值属于 values 之一
+   *
+   * @param key tag 键
+   * @param values tag 取值
+   * @return
+   */
+  public static TagExpression match(String key, String... values) {
+    return TagExpression.newBuilder()
+        .setMatch(TagMatch.newBuilder().setKey(key).addAllValue(Arrays.asList(values)))
+        .build();
+  }
+
+  /**
+   * tag 取值以 prefix 开头
+   *
+   * @param key tag 键
+   * @param prefix tag 取值前缀
+   * @return
+   */
+  public static TagExpression prefix(String key, String prefix) {
+    return TagExpression.newBuilder()
+        .setPrefix(TagPrefix.newBuilder().setKey(key).setPrefix(prefix))
+        .build();
+  }
+
+  /**
+   * 不满足表达式
+   *
+   * @param expression 路由表达式
+   * @return
+   */
+  public static TagExpression not(TagExpression expression) {
+    return TagExpression.newBuilder().setNot(expression).build();
+  }
+
+  /**
+   * 表达式集合运算
+   *
+   * @param op 集合运算类型, AND_NOT 为第一个操作数减去其余操作数
+   * @param operands 路由表达式
+   * @return
+   */
+  public static TagExpression compound(LogicalOp op, TagExpression... operands) {
+    return TagExpression.newBuilder()
+        .setCompound(TagCompound.newBuilder().setOp(op).addAllOperand(Arrays.asList(operands)))
+        .build();
+  }
 }
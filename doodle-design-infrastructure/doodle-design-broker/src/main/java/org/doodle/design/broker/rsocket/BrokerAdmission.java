@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.Payload;
+import io.rsocket.RSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.doodle.design.broker.frame.Tags;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * 按调用方 {@link org.doodle.design.broker.frame.RouteSetup} tag 做准入控制
+ *
+ * <p>限制按 tag key 配置, 对该 key 的每个取值 (例如每个 server_id) 分别计数, 也可以为单个取值单独配置. 调用方同时命中多个限制时
+ * 全部满足才放行. 超出限制的请求立即以 {@link BrokerRejectedException} 拒绝, 不排队. 限制可在运行期修改, 已建立的连接在下一个请求生效.
+ *
+ * <p>没有在途请求且令牌已回满的计数与新建的等价, 计数数量超过上次清理后的两倍 (至少 {@value #SWEEP_THRESHOLD}) 时移除,
+ * 也可以通过 {@link #evictIdle()} 定期清理.
+ */
+public class BrokerAdmission {
+  static final int SWEEP_THRESHOLD = 1024;
+
+  private static final Resolved UNRESOLVED = new Resolved(null, List.of());
+
+  private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+  private final AtomicInteger sweepAt = new AtomicInteger(SWEEP_THRESHOLD);
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder rejectedRate = new LongAdder();
+  private final LongAdder rejectedConcurrency = new LongAdder();
+  private volatile Rules rules = new Rules(0, Map.of(), Map.of());
+
+  /**
+   * 为 tag key 的每个取值设置限制
+   *
+   * @param tagKey 调用方 tag key, 例如 server_id
+   * @param limit 每个取值各自的限制
+   */
+  public synchronized void limit(String tagKey, Limit limit) {
+    Map<String, Limit> byKey = new HashMap<>(rules.byKey());
+    byKey.put(tagKey, limit);
+    rules = new Rules(rules.version() + 1, Map.copyOf(byKey), rules.byTag());
+  }
+
+  /**
+   * 为单个 tag 取值设置限制, 优先于 {@link #limit(String, Limit)}
+   *
+   * @param tagKey 调用方 tag key
+   * @param tagValue tag 取值
+   * @param limit 限制
+   */
+  public synchronized void limit(String tagKey, String tagValue, Limit limit) {
+    Map<String, Limit> byTag = new HashMap<>(rules.byTag());
+    byTag.put(tenant(tagKey, tagValue), limit);
+    rules = new Rules(rules.version() + 1, rules.byKey(), Map.copyOf(byTag));
+  }
+
+  public synchronized void unlimit(String tagKey) {
+    Map<String, Limit> byKey = new HashMap<>(rules.byKey());
+    byKey.remove(tagKey);
+    rules = new Rules(rules.version() + 1, Map.copyOf(byKey), rules.byTag());
+  }
+
+  public synchronized void unlimit(String tagKey, String tagValue) {
+    Map<String, Limit> byTag = new HashMap<>(rules.byTag());
+    byTag.remove(tenant(tagKey, tagValue));
+    rules = new Rules(rules.version() + 1, rules.byKey(), Map.copyOf(byTag));
+  }
+
+  /**
+   * 为连接的 routing RSocket 加上准入控制
+   *
+   * @param callerTags 调用方 SETUP 中的 tag
+   * @param responder 返回给连接的 RSocket
+   * @return 先检查限制再转发的 RSocket
+   */
+  public RSocket guard(Tags callerTags, RSocket responder) {
+    return new AdmissionRSocket(new Guard(callerTags.getTagMap()), responder);
+  }
+
+  /**
+   * 准入统计
+   *
+   * @return 放行与拒绝次数
+   */
+  public AdmissionStats stats() {
+    return new AdmissionStats(
+        admitted.sum(), rejectedRate.sum(), rejectedConcurrency.sum(), tenants.size());
+  }
+
+  /**
+   * 移除没有在途请求且令牌已回满的调用方计数
+   *
+   * @return 移除的数量
+   */
+  public int evictIdle() {
+    int evicted = 0;
+    for (Tenant tenant : tenants.values()) {
+      if (tenant.tryEvict() && tenants.remove(tenant.name, tenant)) {
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  private Tenant tenant(String name) {
+    Tenant tenant = tenants.get(name);
+    if (Objects.nonNull(tenant)) {
+      return tenant;
+    }
+    tenant = tenants.computeIfAbsent(name, Tenant::new);
+    int at = sweepAt.get();
+    // 同一时间只有一个线程清理
+    if (tenants.size() >= at && sweepAt.compareAndSet(at, Integer.MAX_VALUE)) {
+      evictIdle();
+      sweepAt.set(Math.max(SWEEP_THRESHOLD, tenants.size() * 2));
+    }
+    return tenant;
+  }
+
+  private static String tenant(String tagKey, String tagValue) {
+    return tagKey + "=" + tagValue;
+  }
+
+  /**
+   * 准入限制, 为 0 的字段表示不限制
+   *
+   * @param permitsPerSecond 每秒请求数
+   * @param burst 允许的突发请求数, 至少为 1
+   * @param maxInFlight 最多在途请求数
+   */
+  public record Limit(double permitsPerSecond, int burst, int maxInFlight) {
+
+    public static Limit rate(double permitsPerSecond, int burst) {
+      return new Limit(permitsPerSecond, burst, 0);
+    }
+
+    public static Limit concurrency(int maxInFlight) {
+      return new Limit(0, 0, maxInFlight);
+    }
+  }
+
+  /**
+   * 准入统计
+   *
+   * @param admitted 放行的请求次数
+   * @param rejectedRate 超出速率被拒绝的次数
+   * @param rejectedConcurrency 超出在途数量被拒绝的次数
+   * @param tenants 计数中的调用方 tag 取值数量
+   */
+  public record AdmissionStats(
+      long admitted, long rejectedRate, long rejectedConcurrency, int tenants) {}
+
+  /** 限制快照, 修改时整体替换, 版本递增 */
+  private record Rules(long version, Map<String, Limit> byKey, Map<String, Limit> byTag) {}
+
+  /** 按某个限制快照解析出的命中结果 */
+  private record Resolved(Rules rules, List<Bound> bounds) {}
+
+  /** 命中的调用方 tag 取值及其限制 */
+  private record Bound(Tenant tenant, Limit limit) {}
+
+  /**
+   * 速率参数
+   *
+   * @param version 来源限制快照的版本
+   * @param interval 令牌间隔纳秒数, 为 0 表示不限速
+   * @param tolerance 允许提前的纳秒数, 对应突发请求数
+   */
+  private record Rate(long version, long interval, long tolerance) {
+
+    static Rate of(long version, Limit limit) {
+      if (limit.permitsPerSecond() <= 0) {
+        return new Rate(version, 0, 0);
+      }
+      long interval = (long) (1_000_000_000L / limit.permitsPerSecond());
+      return new Rate(version, interval, interval * Math.max(1, limit.burst()));
+    }
+
+    boolean sameAs(Rate other) {
+      return interval == other.interval && tolerance == other.tolerance;
+    }
+  }
+
+  /**
+   * 单个调用方 tag 取值的计数, 同一取值的所有连接共享
+   *
+   * <p>速率按 GCRA 计算, 与令牌桶等价: 只保存理论到达时间, 一次 CAS 完成取令牌. 只接受更新版本的限制快照, 速率变化时重置到达时间,
+   * 按新限制重新允许突发; 持有旧快照的连接不会把速率改回去. 在途数量统计经过该取值的全部请求, 移除后置为负数, 持有它的连接重新解析.
+   */
+  private static final class Tenant {
+    private static final int EVICTED = Integer.MIN_VALUE / 2;
+
+    private final String name;
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile Rate rate;
+
+    Tenant(String name) {
+      this.name = name;
+    }
+
+    void configure(long version, Limit limit) {
+      Rate current = rate;
+      if (Objects.nonNull(current) && current.version() >= version) {
+        return;
+      }
+      synchronized (this) {
+        current = rate;
+        if (Objects.nonNull(current) && current.version() >= version) {
+          return;
+        }
+        Rate next = Rate.of(version, limit);
+        if (Objects.isNull(current) || !current.sameAs(next)) {
+          arrival.set(Long.MIN_VALUE);
+        }
+        rate = next;
+      }
+    }
+
+    /**
+     * 进入一个请求
+     *
+     * @return 包含该请求的在途数量, 不大于 0 表示已被移除
+     */
+    int enter() {
+      int count = inFlight.incrementAndGet();
+      if (count <= 0) {
+        inFlight.decrementAndGet();
+      }
+      return count;
+    }
+
+    void leave() {
+      inFlight.decrementAndGet();
+    }
+
+    boolean hasRate(long now) {
+      Rate current = rate;
+      return Objects.isNull(current)
+          || current.interval() == 0
+          || next(arrival.get(), now, current) - now <= current.tolerance();
+    }
+
+    boolean tryAcquireRate(long now) {
+      Rate current = rate;
+      if (Objects.isNull(current) || current.interval() == 0) {
+        return true;
+      }
+      for (; ; ) {
+        long previous = arrival.get();
+        long next = next(previous, now, current);
+        if (next - now > current.tolerance()) {
+          return false;
+        }
+        if (arrival.compareAndSet(previous, next)) {
+          return true;
+        }
+      }
+    }
+
+    /** 归还 {@link #tryAcquireRate(long)} 取到的令牌 */
+    void refundRate() {
+      Rate current = rate;
+      if (Objects.isNull(current) || current.interval() == 0) {
+        return;
+      }
+      for (; ; ) {
+        long previous = arrival.get();
+        if (previous == Long.MIN_VALUE
+            || arrival.compareAndSet(previous, previous - current.interval())) {
+          return;
+        }
+      }
+    }
+
+    /** 没有在途请求且令牌已回满时标记为移除 */
+    boolean tryEvict() {
+      if (!idle() || !inFlight.compareAndSet(0, EVICTED)) {
+        return false;
+      }
+      // 检查与标记之间完成的请求可能刚取过令牌
+      if (idle()) {
+        return true;
+      }
+      inFlight.addAndGet(-EVICTED);
+      return false;
+    }
+
+    private boolean idle() {
+      long current = arrival.get();
+      return current == Long.MIN_VALUE || current - System.nanoTime() <= 0;
+    }
+
+    private static long next(long arrival, long now, Rate rate) {
+      long start = arrival == Long.MIN_VALUE || arrival - now < 0 ? now : arrival;
+      return start + rate.interval();
+    }
+  }
+
+  /** 单个连接的准入检查, 限制快照变化时重新解析命中的 tag */
+  private final class Guard {
+    private final Map<String, String> callerTags;
+    private volatile Resolved resolved = UNRESOLVED;
+
+    Guard(Map<String, String> callerTags) {
+      this.callerTags = Map.copyOf(callerTags);
+    }
+
+    /**
+     * 取得全部命中限制的许可, 全部限制都有令牌时才取令牌
+     *
+     * @return 需要在请求结束时释放的许可
+     * @throws BrokerRejectedException 任一限制不满足
+     */
+    List<Bound> acquire() {
+      List<Bound> current = bounds();
+      for (int i = 0; i < current.size(); i++) {
+        Bound bound = current.get(i);
+        int inFlight = bound.tenant().enter();
+        if (inFlight <= 0) {
+          // 计数已被移除, 重新解析后从头开始
+          release(current, i);
+          resolved = UNRESOLVED;
+          current = bounds();
+          i = -1;
+          continue;
+        }
+        int maxInFlight = bound.limit().maxInFlight();
+        if (maxInFlight > 0 && inFlight > maxInFlight) {
+          release(current, i + 1);
+          rejectedConcurrency.increment();
+          throw new BrokerRejectedException(
+              BrokerRejectedException.Reason.CONCURRENCY, bound.tenant().name);
+        }
+      }
+      Bound limited = acquireRate(current);
+      if (Objects.nonNull(limited)) {
+        release(current);
+        rejectedRate.increment();
+        throw new BrokerRejectedException(
+            BrokerRejectedException.Reason.RATE, limited.tenant().name);
+      }
+      admitted.increment();
+      return current;
+    }
+
+    void release(List<Bound> acquired) {
+      release(acquired, acquired.size());
+    }
+
+    private void release(List<Bound> acquired, int count) {
+      for (int i = 0; i < count; i++) {
+        acquired.get(i).tenant().leave();
+      }
+    }
+
+    /** 先检查再取令牌, 取令牌时与其他请求竞争失败则归还已取的令牌, 返回没有令牌的限制 */
+    private Bound acquireRate(List<Bound> current) {
+      long now = System.nanoTime();
+      for (Bound bound : current) {
+        if (!bound.tenant().hasRate(now)) {
+          return bound;
+        }
+      }
+      for (int i = 0; i < current.size(); i++) {
+        if (!current.get(i).tenant().tryAcquireRate(now)) {
+          for (int j = 0; j < i; j++) {
+            current.get(j).tenant().refundRate();
+          }
+          return current.get(i);
+        }
+      }
+      return null;
+    }
+
+    /** 连接上的请求可能并发, 解析结果只是缓存, 重复解析不影响正确性 */
+    private List<Bound> bounds() {
+      Rules current = rules;
+      Resolved cached = resolved;
+      if (current == cached.rules()) {
+        return cached.bounds();
+      }
+      List<Bound> bounds = new ArrayList<>();
+      for (Map.Entry<String, String> tag : callerTags.entrySet()) {
+        String name = tenant(tag.getKey(), tag.getValue());
+        Limit limit = current.byTag().get(name);
+        if (Objects.isNull(limit)) {
+          limit = current.byKey().get(tag.getKey());
+        }
+        if (Objects.nonNull(limit)) {
+          Tenant tenant = tenant(name);
+          tenant.configure(current.version(), limit);
+          bounds.add(new Bound(tenant, limit));
+        }
+      }
+      resolved = new Resolved(current, List.copyOf(bounds));
+      return bounds;
+    }
+  }
+
+  /** 请求结束 (完成, 出错或取消) 时归还在途许可 */
+  private static final class AdmissionRSocket implements RSocket {
+    private final Guard guard;
+    private final RSocket delegate;
+
+    AdmissionRSocket(Guard guard, RSocket delegate) {
+      this.guard = guard;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Mono<Void> fireAndForget(Payload payload) {
+      return Mono.defer(
+          () -> {
+            List<Bound> acquired = acquire(payload);
+            return delegate.fireAndForget(payload).doFinally(signal -> guard.release(acquired));
+          });
+    }
+
+    @Override
+    public Mono<Payload> requestResponse(Payload payload) {
+      return Mono.defer(
+          () -> {
+            List<Bound> acquired = acquire(payload);
+            return delegate.requestResponse(payload).doFinally(signal -> guard.release(acquired));
+          });
+    }
+
+    @Override
+    public Flux<Payload> requestStream(Payload payload) {
+      return Flux.defer(
+          () -> {
+            List<Bound> acquired = acquire(payload);
+            return delegate.requestStream(payload).doFinally(signal -> guard.release(acquired));
+          });
+    }
+
+    @Override
+    public Flux<Payload> requestChannel(Publisher<Payload> payloads) {
+      return Flux.defer(
+          () -> {
+            List<Bound> acquired = acquire(payloads);
+            return delegate.requestChannel(payloads).doFinally(signal -> guard.release(acquired));
+          });
+    }
+
+    @Override
+    public Mono<Void> metadataPush(Payload payload) {
+      return Mono.defer(
+          () -> {
+            List<Bound> acquired = acquire(payload);
+            return delegate.metadataPush(payload).doFinally(signal -> guard.release(acquired));
+          });
+    }
+
+    @Override
+    public void dispose() {
+      delegate.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+      return delegate.isDisposed();
+    }
+
+    @Override
+    public Mono<Void> onClose() {
+      return delegate.onClose();
+    }
+
+    /** 被拒绝的请求由这里释放 payload */
+    private List<Bound> acquire(Payload payload) {
+      try {
+        return guard.acquire();
+      } catch (BrokerRejectedException e) {
+        payload.release();
+        throw e;
+      }
+    }
+
+    /** 被拒绝的 channel 不会交给目标, 订阅请求流并释放收到的 payload, 包括其中的第一个请求 */
+    private List<Bound> acquire(Publisher<Payload> payloads) {
+      try {
+        return guard.acquire();
+      } catch (BrokerRejectedException e) {
+        Flux.from(payloads).subscribe(Payload::release, error -> {});
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.rsocket.ConnectionSetupPayload;
+import io.rsocket.Payload;
+import io.rsocket.RSocket;
+import io.rsocket.SocketAcceptor;
+import io.rsocket.core.RSocketConnector;
+import io.rsocket.exceptions.RejectedSetupException;
+import io.rsocket.metadata.CompositeMetadataCodec;
+import io.rsocket.metadata.WellKnownMimeType;
+import io.rsocket.transport.ClientTransport;
+import io.rsocket.util.ByteBufPayload;
+import io.rsocket.util.RSocketProxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.doodle.design.broker.frame.BrokerFrame;
+import org.doodle.design.broker.frame.BrokerFrameExtractor;
+import org.doodle.design.broker.frame.BrokerFrameMimeTypes;
+import org.doodle.design.broker.frame.BrokerFrameUtils;
+import org.doodle.design.broker.frame.RouteDelta;
+import org.doodle.design.broker.frame.RouteSetup;
+import org.doodle.design.broker.frame.Tags;
+import org.doodle.design.broker.frame.UUID;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.context.Context;
+
+/**
+ * broker 集群互联, 相互同步 {@link RouteSetup} 增量并维护远端路由索引
+ *
+ * <p>两个 broker 之间只有一条连接, 双方各自通过这条连接订阅对方的路由增量: 先收到全部本地路由, 之后是每次注册与删除.
+ * 远端路由的值是到所属 broker 的连接, 并带上 {@link #BROKER_TAG}. 经由互联连接转发来的请求只在本地路由, 不会再次转发,
+ * MULTICAST 的 QUORUM 与 ALL 请求返回全部本地响应, 由发起方汇总.
+ *
+ * <p>本地路由变化来自 {@link BrokerSocketAcceptor#events()}, 需要在接受客户端连接之前创建. acceptor 的 routeTags
+ * 带上 {@link #BROKER_TAG} 后, 按 broker 定向的请求在对方 broker 的本地路由中也能匹配.
+ */
+@Slf4j
+public class BrokerFederation implements SocketAcceptor {
+  /** 远端路由上记录所属 broker 的 tag */
+  public static final String BROKER_TAG = "broker.id";
+
+  static final int SNAPSHOT_CHUNK = 1024;
+
+  private final String brokerId;
+  private final BrokerRSocketFactory localRoutingFactory;
+  private final BrokerRSocketIndex remoteIndex = new BrokerRSocketIndex();
+  private final Map<UUID, RouteSetup> localRoutes = new LinkedHashMap<>();
+  private final List<Sinks.Many<RouteDelta>> subscribers = new ArrayList<>();
+
+  /**
+   * @param brokerId 当前 broker 唯一ID
+   * @param localRoutingFactory 只检索本地路由的 routing RSocket, 处理其他 broker 转发来的请求
+   * @param localEvents 本地路由变化
+   */
+  public BrokerFederation(
+      String brokerId,
+      BrokerRSocketFactory localRoutingFactory,
+      Flux<BrokerRouteEvent> localEvents) {
+    this.brokerId = brokerId;
+    this.localRoutingFactory = localRoutingFactory;
+    localEvents.subscribe(this::onLocalEvent);
+  }
+
+  /**
+   * 其他 broker 同步来的路由, 版本可以与本地索引版本相加作为路由缓存版本
+   *
+   * @return 远端路由索引
+   */
+  public BrokerRSocketIndex remoteIndex() {
+    return remoteIndex;
+  }
+
+  /**
+   * UNICAST 检索, 本地没有目标时转发给其他 broker
+   *
+   * @param local 本地路由检索
+   * @return 组合检索
+   */
+  public BrokerRSocketQuery unicastQuery(BrokerRSocketQuery local) {
+    return FederatedBrokerRSocketQuery.unicast(local, new CombinedBrokerRSocketQuery(remoteIndex));
+  }
+
+  /**
+   * MULTICAST 检索, 每个持有目标的 broker 只转发一份
+   *
+   * @param local 本地路由检索
+   * @return 组合检索
+   */
+  public BrokerRSocketQuery multicastQuery(BrokerRSocketQuery local) {
+    return FederatedBrokerRSocketQuery.multicast(
+        local, new CombinedBrokerRSocketQuery(remoteIndex));
+  }
+
+  /**
+   * 连接另一个 broker 并相互同步路由
+   *
+   * @param transport 对方 broker 的互联地址
+   * @return 到对方 broker 的连接
+   */
+  public Mono<RSocket> connect(ClientTransport transport) {
+    return RSocketConnector.create()
+        .metadataMimeType(WellKnownMimeType.MESSAGE_RSOCKET_COMPOSITE_METADATA.getString())
+        .setupPayload(peerPayload())
+        .acceptor(SocketAcceptor.with(responder()))
+        .connect(transport)
+        .doOnNext(this::link);
+  }
+
+  /** 接受其他 broker 的互联连接 */
+  @Override
+  public Mono<RSocket> accept(ConnectionSetupPayload setup, RSocket sendingSocket) {
+    BrokerFrame frame;
+    try {
+      frame = setup.hasMetadata() ? peerFrame(setup) : null;
+    } catch (IllegalArgumentException e) {
+      frame = null;
+    }
+    if (Objects.isNull(frame)) {
+      return Mono.error(new RejectedSetupException("SETUP 缺少 BrokerPeer"));
+    }
+    log.info("接受 broker 互联: {}", frame.getPeer().getBrokerId().getId());
+    link(sendingSocket);
+    return Mono.just(responder());
+  }
+
+  private void link(RSocket peer) {
+    Set<UUID> routes = ConcurrentHashMap.newKeySet();
+    peer.requestStream(peerPayload())
+        .map(BrokerFederation::parseDelta)
+        .doFinally(signal -> unlink(peer, routes))
+        .subscribe(
+            delta -> apply(peer, delta, routes),
+            error -> log.warn("broker 路由同步中断", error));
+  }
+
+  private void apply(RSocket peer, RouteDelta delta, Set<UUID> routes) {
+    String owner = delta.getBrokerId().getId();
+    List<BrokerRouteEvent> updates =
+        new ArrayList<>(delta.getAddedCount() + delta.getRemovedCount());
+    for (RouteSetup setup : delta.getAddedList()) {
+      Tags tags = setup.getTags().toBuilder().putTag(BROKER_TAG, owner).build();
+      updates.add(BrokerRouteEvent.added(setup.getRouteId(), tags, peer));
+      routes.add(setup.getRouteId());
+    }
+    for (UUID removed : delta.getRemovedList()) {
+      updates.add(BrokerRouteEvent.removed(removed, Tags.getDefaultInstance(), peer));
+      routes.remove(removed);
+    }
+    remoteIndex.apply(updates);
+  }
+
+  /** 互联断开时删除该 broker 的全部路由, 同一路由已由新连接同步的不受影响 */
+  private void unlink(RSocket peer, Set<UUID> routes) {
+    List<BrokerRouteEvent> updates = new ArrayList<>(routes.size());
+    for (UUID routeId : routes) {
+      updates.add(BrokerRouteEvent.removed(routeId, Tags.getDefaultInstance(), peer));
+    }
+    remoteIndex.apply(updates);
+  }
+
+  private synchronized void onLocalEvent(BrokerRouteEvent event) {
+    RouteDelta.Builder delta = RouteDelta.newBuilder().setBrokerId(brokerId());
+    if (event.type() == BrokerRouteEvent.Type.ADDED) {
+      RouteSetup setup =
+          RouteSetup.newBuilder().setRouteId(event.routeId()).setTags(event.tags()).build();
+      localRoutes.put(event.routeId(), setup);
+      delta.addAdded(setup);
+    } else {
+      localRoutes.remove(event.routeId());
+      delta.addRemoved(event.routeId());
+    }
+    RouteDelta built = delta.build();
+    subscribers.removeIf(subscriber -> subscriber.tryEmitNext(built).isFailure());
+  }
+
+  /** 先发送全部本地路由, 之后发送增量; 快照与订阅在同一把锁内完成, 不会遗漏或重复 */
+  private Flux<RouteDelta> routeDeltas() {
+    return Flux.defer(
+        () -> {
+          Sinks.Many<RouteDelta> subscriber = Sinks.many().unicast().onBackpressureBuffer();
+          synchronized (this) {
+            List<RouteSetup> snapshot = new ArrayList<>(localRoutes.values());
+            for (int from = 0; from < snapshot.size(); from += SNAPSHOT_CHUNK) {
+              List<RouteSetup> chunk =
+                  snapshot.subList(from, Math.min(from + SNAPSHOT_CHUNK, snapshot.size()));
+              subscriber.tryEmitNext(
+                  RouteDelta.newBuilder().setBrokerId(brokerId()).addAllAdded(chunk).build());
+            }
+            subscribers.add(subscriber);
+          }
+          return subscriber.asFlux().doFinally(signal -> unsubscribe(subscriber));
+        });
+  }
+
+  private synchronized void unsubscribe(Sinks.Many<RouteDelta> subscriber) {
+    subscribers.remove(subscriber);
+  }
+
+  private UUID brokerId() {
+    return UUID.newBuilder().setId(brokerId).build();
+  }
+
+  private RSocket responder() {
+    return new PeerRSocket(localRoutingFactory.create());
+  }
+
+  private Payload peerPayload() {
+    ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+    CompositeByteBuf metadata = allocator.compositeBuffer();
+    CompositeMetadataCodec.encodeAndAddMetadata(
+        metadata,
+        allocator,
+        BrokerFrameMimeTypes.BROKER_FRAME_MIME_TYPE.toString(),
+        Unpooled.wrappedBuffer(BrokerFrameUtils.peer(brokerId).toByteArray()));
+    return ByteBufPayload.create(Unpooled.EMPTY_BUFFER, metadata);
+  }
+
+  private static BrokerFrame peerFrame(Payload payload) {
+    BrokerFrame frame = BrokerFrameExtractor.extractComposite(payload.sliceMetadata());
+    return Objects.nonNull(frame) && frame.hasPeer() ? frame : null;
+  }
+
+  private static RouteDelta parseDelta(Payload payload) {
+    try {
+      return RouteDelta.parseFrom(payload.getData());
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalArgumentException("RouteDelta 解析失败", e);
+    } finally {
+      payload.release();
+    }
+  }
+
+  /** 互联连接的响应端, 路由同步请求由本 broker 应答, 其余请求只在本地路由 */
+  private final class PeerRSocket extends RSocketProxy {
+
+    PeerRSocket(RSocket localRouting) {
+      super(localRouting);
+    }
+
+    @Override
+    public Mono<Payload> requestResponse(Payload payload) {
+      return super.requestResponse(payload)
+          .contextWrite(Context.of(MulticastBrokerRSocket.FORWARDED, Boolean.TRUE));
+    }
+
+    @Override
+    public Flux<Payload> requestStream(Payload payload) {
+      if (payload.hasMetadata() && Objects.nonNull(peerFrame(payload))) {
+        payload.release();
+        return routeDeltas().map(delta -> ByteBufPayload.create(delta.toByteArray()));
+      }
+      return super.requestStream(payload);
+    }
+  }
+}
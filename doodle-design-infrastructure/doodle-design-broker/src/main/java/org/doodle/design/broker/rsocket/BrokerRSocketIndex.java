@@ -15,18 +15,66 @@
  */
 package org.doodle.design.broker.rsocket;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.rsocket.RSocket;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import lombok.extern.slf4j.Slf4j;
 import org.doodle.design.bitmap.IndexedMap;
+import org.doodle.design.bitmap.KeyCodec;
+import org.doodle.design.bitmap.TagQuery;
 import org.doodle.design.broker.frame.Tags;
 import org.doodle.design.broker.frame.UUID;
 
 @Slf4j
 public class BrokerRSocketIndex implements IndexedMap<UUID, RSocket, Tags> {
+  private static final KeyCodec<UUID> UUID_CODEC =
+      new KeyCodec<>() {
+        @Override
+        public byte[] encode(UUID key) {
+          return key.toByteArray();
+        }
+
+        @Override
+        public UUID decode(byte[] bytes) {
+          try {
+            return UUID.parseFrom(bytes);
+          } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("索引快照中的 UUID 无法解析", e);
+          }
+        }
+      };
+
+  /** 每次检索都记录日志会拖慢吞吐, DEBUG 级别下按该比例抽样 */
+  private static final int QUERY_LOG_SAMPLE = 1024;
 
   private final BrokerRSocketIndexedMap indexedMap = new BrokerRSocketIndexedMap();
+  private final AtomicLong version = new AtomicLong();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  /** 写入与通知持有读锁, 可以并发; 注册监听器持有写锁, 回放期间不会漏掉或错序任何写入 */
+  private final ReadWriteLock listenerLock = new ReentrantReadWriteLock();
+  private final BrokerRoutingMetrics metrics;
+
+  public BrokerRSocketIndex() {
+    this(BrokerRoutingMetrics.NOOP);
+  }
+
+  /**
+   * @param metrics 记录检索耗时与结果数量
+   */
+  public BrokerRSocketIndex(BrokerRoutingMetrics metrics) {
+    this.metrics = metrics;
+  }
 
   @Override
   public RSocket get(UUID key) {
@@ -36,13 +84,130 @@ public class BrokerRSocketIndex implements IndexedMap<UUID, RSocket, Tags> {
   @Override
   public RSocket put(UUID key, RSocket value, Tags tags) {
     log.info("增加 RSocket UUID: {} Tags: {}", key, tags);
-    return this.indexedMap.put(key, value, tags.getTagMap());
+    listenerLock.readLock().lock();
+    try {
+      RSocket previous;
+      try {
+        previous =
+            this.indexedMap.put(key, value, tags.getTagMap(), BrokerTagQueries.multiTags(tags));
+      } finally {
+        this.version.incrementAndGet();
+      }
+      for (Listener listener : listeners) {
+        listener.onPut(key, value);
+      }
+      return previous;
+    } finally {
+      listenerLock.readLock().unlock();
+    }
   }
 
   @Override
   public RSocket remove(UUID key) {
     log.info("删除 RSocket UUID: {}", key);
-    return this.indexedMap.remove(key);
+    listenerLock.readLock().lock();
+    try {
+      RSocket previous;
+      try {
+        previous = this.indexedMap.remove(key);
+      } catch (RuntimeException e) {
+        this.version.incrementAndGet();
+        throw e;
+      }
+      if (Objects.isNull(previous)) {
+        return null;
+      }
+      this.version.incrementAndGet();
+      for (Listener listener : listeners) {
+        listener.onRemove(key, previous);
+      }
+      return previous;
+    } finally {
+      listenerLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * 仅当 UUID 当前绑定的仍是 value 时删除, 连接关闭时使用, 避免误删同一 UUID 重连后的新连接
+   *
+   * @param key 路由 UUID
+   * @param value 关闭的连接
+   * @return 是否删除
+   */
+  public boolean remove(UUID key, RSocket value) {
+    listenerLock.readLock().lock();
+    try {
+      boolean removed;
+      try {
+        removed = this.indexedMap.remove(key, value);
+      } catch (RuntimeException e) {
+        this.version.incrementAndGet();
+        throw e;
+      }
+      if (!removed) {
+        return false;
+      }
+      this.version.incrementAndGet();
+      log.info("删除 RSocket UUID: {}", key);
+      for (Listener listener : listeners) {
+        listener.onRemove(key, value);
+      }
+      return true;
+    } finally {
+      listenerLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * 按顺序批量增删路由, 整批只复制并发布一次快照, 之后按顺序通知监听器
+   *
+   * <p>删除只在 UUID 当前绑定的仍是事件中的连接时生效.
+   *
+   * @param updates 路由变化
+   * @return 实际生效的路由变化
+   */
+  public List<BrokerRouteEvent> apply(List<BrokerRouteEvent> updates) {
+    List<BrokerRouteEvent> applied = new ArrayList<>(updates.size());
+    listenerLock.readLock().lock();
+    try {
+      try {
+        this.indexedMap.write(
+            writer -> {
+              for (BrokerRouteEvent update : updates) {
+                if (update.type() == BrokerRouteEvent.Type.ADDED) {
+                  Tags tags = update.tags();
+                  writer.put(
+                      update.routeId(),
+                      update.rSocket(),
+                      tags.getTagMap(),
+                      BrokerTagQueries.multiTags(tags));
+                  applied.add(update);
+                } else if (writer.remove(update.routeId(), update.rSocket())) {
+                  applied.add(update);
+                }
+              }
+            });
+      } catch (RuntimeException e) {
+        this.version.incrementAndGet();
+        throw e;
+      }
+      if (!applied.isEmpty()) {
+        this.version.incrementAndGet();
+      }
+      log.info("批量更新路由 请求: {} 生效: {}", updates.size(), applied.size());
+      for (BrokerRouteEvent event : applied) {
+        for (Listener listener : listeners) {
+          if (event.type() == BrokerRouteEvent.Type.ADDED) {
+            listener.onPut(event.routeId(), event.rSocket());
+          } else {
+            listener.onRemove(event.routeId(), event.rSocket());
+          }
+        }
+      }
+      return applied;
+    } finally {
+      listenerLock.readLock().unlock();
+    }
   }
 
   @Override
@@ -57,7 +222,46 @@ public class BrokerRSocketIndex implements IndexedMap<UUID, RSocket, Tags> {
 
   @Override
   public void clear() {
-    this.indexedMap.clear();
+    listenerLock.readLock().lock();
+    try {
+      this.indexedMap.clear();
+      this.version.incrementAndGet();
+      for (Listener listener : listeners) {
+        listener.onClear();
+      }
+    } finally {
+      listenerLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * 注册路由变化监听器, 对已有的路由回放 {@link Listener#onPut(UUID, RSocket)}
+   *
+   * <p>回放与注册期间阻塞写入, 监听器看到的是回放时的快照加上之后的全部变化.
+   *
+   * @param listener 监听器
+   */
+  public void addListener(Listener listener) {
+    listenerLock.writeLock().lock();
+    try {
+      this.indexedMap.forEach(listener::onPut);
+      this.listeners.add(listener);
+    } finally {
+      listenerLock.writeLock().unlock();
+    }
+  }
+
+  public void removeListener(Listener listener) {
+    this.listeners.remove(listener);
+  }
+
+  /**
+   * 索引版本, 每次改变索引的写入后递增, 没有删除任何路由的删除不递增, 用于判断缓存的检索结果是否过期
+   *
+   * @return 当前版本
+   */
+  public long version() {
+    return this.version.get();
   }
 
   @Override
@@ -67,8 +271,93 @@ public class BrokerRSocketIndex implements IndexedMap<UUID, RSocket, Tags> {
 
   @Override
   public List<RSocket> query(Tags tags, QueryOps queryOps) {
+    long start = metrics != BrokerRoutingMetrics.NOOP ? System.nanoTime() : 0;
     List<RSocket> query = this.indexedMap.query(tags.getTagMap(), queryOps);
-    log.info("索引检索 TAG: {} 结果: {}", tags, query);
+    queried(start, query.size());
+    if (log.isDebugEnabled() && sampled()) {
+      log.debug("索引检索 TAG: {} 结果数量: {}", tags, query.size());
+    }
     return query;
   }
+
+  public List<RSocket> query(TagQuery tagQuery) {
+    long start = metrics != BrokerRoutingMetrics.NOOP ? System.nanoTime() : 0;
+    List<RSocket> query = this.indexedMap.query(tagQuery);
+    queried(start, query.size());
+    if (log.isDebugEnabled() && sampled()) {
+      log.debug("索引检索 表达式: {} 结果数量: {}", tagQuery, query.size());
+    }
+    return query;
+  }
+
+  private void queried(long start, int results) {
+    if (metrics != BrokerRoutingMetrics.NOOP) {
+      metrics.queried(System.nanoTime() - start, results);
+    }
+  }
+
+  private static boolean sampled() {
+    return ThreadLocalRandom.current().nextInt(QUERY_LOG_SAMPLE) == 0;
+  }
+
+  /**
+   * 保存路由索引快照, 重启后通过 {@link #load(Path)} 预热
+   *
+   * @param file 快照文件
+   * @throws IOException 写入失败
+   */
+  public void save(Path file) throws IOException {
+    this.indexedMap.writeSnapshot(file, UUID_CODEC);
+    log.info("保存索引快照: {} 数量: {}", file, size());
+  }
+
+  /**
+   * 加载路由索引快照, 预加载的路由在 RSocket 以相同 UUID 重新连接时绑定
+   *
+   * <p>快照替换全部路由, 监听器收到 {@link Listener#onClear()}, 预加载的路由在绑定时才回调 onPut.
+   *
+   * @param file 快照文件
+   * @return 预加载的路由数量
+   * @throws IOException 读取失败或文件格式版本不兼容
+   */
+  public int load(Path file) throws IOException {
+    int loaded;
+    listenerLock.readLock().lock();
+    try {
+      loaded = this.indexedMap.loadSnapshot(file, UUID_CODEC);
+      this.version.incrementAndGet();
+      for (Listener listener : listeners) {
+        listener.onClear();
+      }
+    } finally {
+      listenerLock.readLock().unlock();
+    }
+    log.info("加载索引快照: {} 数量: {}", file, loaded);
+    return loaded;
+  }
+
+  /**
+   * 移除快照中一直没有重新连接的路由
+   *
+   * @return 移除的路由数量
+   */
+  public int evictPending() {
+    int evicted = this.indexedMap.evictPending();
+    this.version.incrementAndGet();
+    log.info("移除未重连的快照路由 数量: {}", evicted);
+    return evicted;
+  }
+
+  /** 路由变化监听器, 在写入线程中于索引更新后同步回调 */
+  public interface Listener {
+
+    /** 新增路由或同一 UUID 重新连接 */
+    default void onPut(UUID key, RSocket rSocket) {}
+
+    /** 路由被删除 */
+    default void onRemove(UUID key, RSocket rSocket) {}
+
+    /** 索引被清空 */
+    default void onClear() {}
+  }
 }
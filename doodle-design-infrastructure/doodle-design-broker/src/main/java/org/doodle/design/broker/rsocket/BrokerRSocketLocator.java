@@ -16,11 +16,41 @@
 package org.doodle.design.broker.rsocket;
 
 import io.rsocket.RSocket;
+import java.util.List;
 import org.doodle.design.broker.frame.Address;
 import org.doodle.design.broker.frame.RoutingType;
 
 public interface BrokerRSocketLocator {
   boolean supports(RoutingType routingType);
 
-  RSocket locate(Address address);
+  default RSocket locate(Address address) {
+    return select(address, route(address));
+  }
+
+  /**
+   * 检索 address 对应的全部路由, 索引不变时结果可以复用
+   *
+   * @param address 路由地址
+   * @return 检索到的路由
+   */
+  List<RSocket> route(Address address);
+
+  /**
+   * 在检索结果中选出请求目标
+   *
+   * @param address 路由地址
+   * @param routes {@link #route(Address)} 的结果
+   * @return 请求目标
+   */
+  RSocket select(Address address, List<RSocket> routes);
+
+  /**
+   * 实际处理该路由类型的定位器, 路由缓存保存结果以跳过组合定位器的查找
+   *
+   * @param routingType 路由类型
+   * @return 不支持时返回 null
+   */
+  default BrokerRSocketLocator delegate(RoutingType routingType) {
+    return supports(routingType) ? this : null;
+  }
 }
@@ -17,11 +17,20 @@ package org.doodle.design.broker.rsocket;
 
 import io.rsocket.RSocket;
 import java.util.List;
+import org.doodle.design.broker.frame.Address;
 import org.doodle.design.broker.frame.QueryType;
+import org.doodle.design.broker.frame.TagExpression;
 import org.doodle.design.broker.frame.Tags;
 
-@FunctionalInterface
 public interface BrokerRSocketQuery {
 
   List<RSocket> query(Tags tags, QueryType queryType);
+
+  List<RSocket> query(TagExpression expression);
+
+  default List<RSocket> query(Address address) {
+    return address.hasExpression()
+        ? query(address.getExpression())
+        : query(address.getTags(), address.getQueryType());
+  }
 }
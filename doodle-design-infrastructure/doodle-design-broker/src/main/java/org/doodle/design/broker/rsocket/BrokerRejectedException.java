@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.exceptions.RejectedException;
+import lombok.Getter;
+
+/** 超出准入限制的请求被拒绝, 以 REJECTED 错误码返回给调用方, 可稍后重试 */
+@Getter
+public class BrokerRejectedException extends RejectedException {
+  /** 拒绝原因 */
+  private final Reason reason;
+  /** 触发限制的调用方 tag, 格式为 key=value */
+  private final String tenant;
+
+  public BrokerRejectedException(Reason reason, String tenant) {
+    super(reason.message + ": " + tenant);
+    this.reason = reason;
+    this.tenant = tenant;
+  }
+
+  /** 拒绝原因 */
+  public enum Reason {
+    RATE("超出请求速率限制"),
+    CONCURRENCY("超出在途请求数量限制");
+
+    private final String message;
+
+    Reason(String message) {
+      this.message = message;
+    }
+  }
+}
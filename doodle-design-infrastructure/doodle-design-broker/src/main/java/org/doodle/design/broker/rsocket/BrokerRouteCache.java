@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.rsocket.RSocket;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.doodle.design.broker.frame.Address;
+
+/**
+ * 以序列化的 broker frame 字节为键缓存路由检索结果
+ *
+ * <p>命中时只计算一次字节哈希, 不解析 protobuf, 不查找定位器, 也不查询位图索引. 每个结果记录检索前的索引版本,
+ * 索引写入后版本变化, 旧结果在下一次访问时重新检索.
+ */
+public class BrokerRouteCache {
+  public static final int DEFAULT_MAXIMUM_SIZE = 4096;
+  private static final int EVICTION_DIVISOR = 8;
+
+  private final LongSupplier version;
+  private final int maximumSize;
+  private final int evictionBatch;
+  private final Map<ByteBuf, Route> routes = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public BrokerRouteCache(BrokerRSocketIndex index) {
+    this(index, DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * @param index 路由索引, 版本变化时缓存失效
+   * @param maximumSize 最多缓存的地址数量
+   */
+  public BrokerRouteCache(BrokerRSocketIndex index, int maximumSize) {
+    this(index::version, maximumSize);
+  }
+
+  /**
+   * @param version 路由版本, 例如本地索引与 {@link BrokerFederation#remoteIndex()} 的版本之和
+   * @param maximumSize 最多缓存的地址数量
+   */
+  public BrokerRouteCache(LongSupplier version, int maximumSize) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be positive");
+    }
+    this.version = version;
+    this.maximumSize = maximumSize;
+    this.evictionBatch = Math.max(maximumSize / EVICTION_DIVISOR, 1);
+  }
+
+  /**
+   * 查找未过期的检索结果
+   *
+   * @param frame 序列化的 broker frame, ByteBuf 按内容比较
+   * @return 未命中或已过期时返回 null
+   */
+  public Route get(ByteBuf frame) {
+    Route route = routes.get(frame);
+    if (Objects.nonNull(route) && route.version() == version.getAsLong()) {
+      hits.increment();
+      return route;
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * 检索并缓存路由
+   *
+   * @param frame 序列化的 broker frame, 缓存保存一份拷贝
+   * @param address frame 中的路由地址
+   * @param locator 处理该路由类型的定位器
+   * @return 检索结果
+   */
+  public Route resolve(ByteBuf frame, Address address, BrokerRSocketLocator locator) {
+    // 先读版本, 检索期间索引发生变化时结果立即过期
+    long current = version.getAsLong();
+    Route route =
+        new Route(
+            current,
+            address,
+            locator,
+            locator.route(address),
+            BrokerRoutingMetrics.routeName(address));
+    if (routes.size() >= maximumSize) {
+      evict(current);
+    }
+    routes.put(Unpooled.copiedBuffer(frame), route);
+    return route;
+  }
+
+  /** 先移除过期的结果, 仍然已满时按遍历顺序移除一批, 不整体清空, 之后的一批写入不再触发遍历 */
+  private void evict(long current) {
+    routes.values().removeIf(cached -> cached.version() != current);
+    if (routes.size() < maximumSize) {
+      return;
+    }
+    Iterator<Route> iterator = routes.values().iterator();
+    for (int i = 0; i < evictionBatch && iterator.hasNext(); i++) {
+      iterator.next();
+      iterator.remove();
+    }
+  }
+
+  public void clear() {
+    routes.clear();
+  }
+
+  /**
+   * 路由缓存统计
+   *
+   * @return 命中次数与缓存条目数量
+   */
+  public RouteCacheStats stats() {
+    return new RouteCacheStats(hits.sum(), misses.sum(), routes.size());
+  }
+
+  /**
+   * 缓存的检索结果
+   *
+   * @param version 检索前的索引版本
+   * @param address 路由地址
+   * @param locator 处理该路由类型的定位器
+   * @param routes 检索到的路由
+   * @param name 埋点使用的路由名称
+   */
+  public record Route(
+      long version,
+      Address address,
+      BrokerRSocketLocator locator,
+      List<RSocket> routes,
+      String name) {
+
+    /** 在缓存的检索结果中选出请求目标 */
+    public RSocket select() {
+      return locator.select(address, routes);
+    }
+
+    /**
+     * 在缓存的检索结果中按请求自己的地址选出目标, 用于只有 shard key 不同的地址
+     *
+     * @param requested 请求中的路由地址
+     * @return 请求目标
+     */
+    public RSocket select(Address requested) {
+      return locator.select(requested, routes);
+    }
+  }
+
+  /**
+   * 路由缓存统计
+   *
+   * <p>带 shard key 的请求以去掉 shard_key 字段的 frame 字节为键, 不会先按原始 frame 未命中一次.
+   *
+   * @param hits 命中次数
+   * @param misses 未命中或过期次数
+   * @param entries 缓存条目数量
+   */
+  public record RouteCacheStats(long hits, long misses, int entries) {
+
+    /** 缓存命中率 */
+    public double hitRatio() {
+      long total = hits + misses;
+      return total == 0 ? 0 : (double) hits / total;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.RSocket;
+import org.doodle.design.broker.frame.Tags;
+import org.doodle.design.broker.frame.UUID;
+
+/**
+ * 路由变化事件
+ *
+ * @param type 变化类型
+ * @param routeId 路由 UUID
+ * @param tags 路由 tag, 删除事件中为注册时的 tag
+ * @param rSocket 路由连接
+ */
+public record BrokerRouteEvent(Type type, UUID routeId, Tags tags, RSocket rSocket) {
+
+  public static BrokerRouteEvent added(UUID routeId, Tags tags, RSocket rSocket) {
+    return new BrokerRouteEvent(Type.ADDED, routeId, tags, rSocket);
+  }
+
+  public static BrokerRouteEvent removed(UUID routeId, Tags tags, RSocket rSocket) {
+    return new BrokerRouteEvent(Type.REMOVED, routeId, tags, rSocket);
+  }
+
+  public enum Type {
+    /** 新增路由或同一 UUID 重新连接 */
+    ADDED,
+    /** 路由连接关闭后删除 */
+    REMOVED
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import com.google.protobuf.TextFormat;
+import io.rsocket.frame.FrameType;
+import org.doodle.design.broker.frame.Address;
+
+/**
+ * broker 路由埋点, 所有回调都在请求线程中同步执行, 实现需要无锁且不阻塞
+ *
+ * <p>接口按 Micrometer 的度量类型划分: 次数与字节数对应 Counter, 目标数量对应 DistributionSummary, 耗时对应 Timer;
+ * route 为去掉 shard key 的地址, 地址中其他字段随请求变化时没有上限, 实现需要限制路由数量. 内置实现见 {@link
+ * BrokerRoutingStats}.
+ */
+public interface BrokerRoutingMetrics {
+  BrokerRoutingMetrics NOOP = new BrokerRoutingMetrics() {};
+
+  /**
+   * 请求已定位到目标
+   *
+   * @param interaction 交互类型
+   * @param route 路由名称
+   * @param targets 检索到的路由数量
+   * @param bytesIn 请求 data 与 metadata 字节数
+   */
+  default void routed(FrameType interaction, String route, int targets, long bytesIn) {}
+
+  /**
+   * 请求无法定位, 例如缺少地址或检索不到路由
+   *
+   * @param interaction 交互类型
+   * @param error 定位失败原因
+   */
+  default void unrouted(FrameType interaction, Throwable error) {}
+
+  /**
+   * 目标返回一个响应, requestStream 与 requestChannel 每个元素回调一次
+   *
+   * @param interaction 交互类型
+   * @param route 路由名称
+   * @param bytesOut 响应 data 与 metadata 字节数
+   */
+  default void responded(FrameType interaction, String route, long bytesOut) {}
+
+  /**
+   * 交互结束, requestResponse 为请求耗时, stream 与 channel 为整个流的持续时间, 取消时不回调
+   *
+   * @param interaction 交互类型
+   * @param route 路由名称
+   * @param latencyNanos 从转发到结束的纳秒数
+   * @param success 目标是否正常结束
+   */
+  default void completed(FrameType interaction, String route, long latencyNanos, boolean success) {}
+
+  /**
+   * 位图索引检索
+   *
+   * @param latencyNanos 检索纳秒数
+   * @param results 检索结果数量
+   */
+  default void queried(long latencyNanos, int results) {}
+
+  /**
+   * 路由名称, 去掉每个请求都不同的 shard key
+   *
+   * @param address 路由地址
+   * @return 单行文本形式的地址
+   */
+  static String routeName(Address address) {
+    Address shared =
+        address.getShardKey().isEmpty() ? address : address.toBuilder().clearShardKey().build();
+    return TextFormat.shortDebugString(shared);
+  }
+}
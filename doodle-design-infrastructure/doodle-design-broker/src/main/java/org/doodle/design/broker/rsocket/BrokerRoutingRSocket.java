@@ -15,8 +15,13 @@
  */
 package org.doodle.design.broker.rsocket;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.rsocket.Payload;
 import io.rsocket.RSocket;
+import io.rsocket.frame.FrameType;
+import java.util.List;
+import java.util.Objects;
 import lombok.AllArgsConstructor;
 import org.doodle.design.broker.frame.Address;
 import org.doodle.design.broker.frame.BrokerFrame;
@@ -29,37 +34,37 @@ import reactor.core.publisher.Mono;
 final class BrokerRoutingRSocket implements RSocket {
   private final BrokerRSocketLocator locator;
   private final BrokerFrameExtractor frameExtractor;
+  private final BrokerRouteCache routeCache;
+  private final BrokerRoutingMetrics metrics;
+  private final BrokerSingleFlight singleFlight;
 
   @Override
   public Mono<Void> fireAndForget(Payload payload) {
     try {
-      RSocket located = locate(payload);
-      return located.fireAndForget(payload);
+      Located located = locate(FrameType.REQUEST_FNF, payload);
+      return instrument(FrameType.REQUEST_FNF, located, located.target().fireAndForget(payload));
     } catch (Throwable t) {
-      payload.release();
-      return Mono.error(t);
+      return unrouted(FrameType.REQUEST_FNF, payload, t);
     }
   }
 
   @Override
   public Mono<Payload> requestResponse(Payload payload) {
     try {
-      RSocket located = locate(payload);
-      return located.requestResponse(payload);
+      Located located = locate(FrameType.REQUEST_RESPONSE, payload);
+      return instrument(FrameType.REQUEST_RESPONSE, located, requestResponse(located, payload));
     } catch (Throwable t) {
-      payload.release();
-      return Mono.error(t);
+      return unrouted(FrameType.REQUEST_RESPONSE, payload, t);
     }
   }
 
   @Override
   public Flux<Payload> requestStream(Payload payload) {
     try {
-      RSocket located = locate(payload);
-      return located.requestStream(payload);
+      Located located = locate(FrameType.REQUEST_STREAM, payload);
+      return instrument(FrameType.REQUEST_STREAM, located, located.target().requestStream(payload));
     } catch (Throwable t) {
-      payload.release();
-      return Flux.error(t);
+      return Flux.from(unrouted(FrameType.REQUEST_STREAM, payload, t));
     }
   }
 
@@ -71,11 +76,11 @@ final class BrokerRoutingRSocket implements RSocket {
               if (first.hasValue()) {
                 Payload payload = first.get();
                 try {
-                  RSocket located = locate(payload);
-                  return located.requestChannel(flux);
+                  Located located = locate(FrameType.REQUEST_CHANNEL, payload);
+                  return instrument(
+                      FrameType.REQUEST_CHANNEL, located, located.target().requestChannel(flux));
                 } catch (Throwable t) {
-                  payload.release();
-                  return Flux.error(t);
+                  return Flux.from(unrouted(FrameType.REQUEST_CHANNEL, payload, t));
                 }
               }
               return flux;
@@ -85,24 +90,148 @@ final class BrokerRoutingRSocket implements RSocket {
   @Override
   public Mono<Void> metadataPush(Payload payload) {
     try {
-      RSocket located = locate(payload);
-      return located.metadataPush(payload);
+      Located located = locate(FrameType.METADATA_PUSH, payload);
+      return instrument(FrameType.METADATA_PUSH, located, located.target().metadataPush(payload));
     } catch (Throwable t) {
-      payload.release();
-      return Mono.error(t);
+      return unrouted(FrameType.METADATA_PUSH, payload, t);
     }
   }
 
-  private RSocket locate(Payload payload) {
-    BrokerFrame brokerFrame = frameExtractor.apply(payload);
-    if (brokerFrame.getKindCase() != BrokerFrame.KindCase.ADDRESS) {
+  /** 启用合并的路由与相同的在途请求共享一次上游调用 */
+  private Mono<Payload> requestResponse(Located located, Payload payload) {
+    if (Objects.nonNull(singleFlight) && singleFlight.matches(located.address())) {
+      ByteBuf frame = frameExtractor.frameBytes(payload);
+      if (Objects.nonNull(frame)) {
+        return singleFlight.requestResponse(frame, payload, located.target()::requestResponse);
+      }
+    }
+    return located.target().requestResponse(payload);
+  }
+
+  /** 定位目标并记录转发, 请求字节数在转发前读取, 转发后 payload 可能已释放 */
+  private Located locate(FrameType interaction, Payload payload) {
+    Located located = locate(payload);
+    if (metrics != BrokerRoutingMetrics.NOOP) {
+      metrics.routed(interaction, located.route(), located.targets(), size(payload));
+    }
+    return located;
+  }
+
+  private Located locate(Payload payload) {
+    ByteBuf frame = Objects.nonNull(routeCache) ? frameExtractor.frameBytes(payload) : null;
+    if (Objects.isNull(frame)) {
+      Address address = address(frameExtractor.apply(payload));
+      BrokerRSocketLocator delegate = delegate(address);
+      List<RSocket> routes = delegate.route(address);
+      String name =
+          metrics != BrokerRoutingMetrics.NOOP ? BrokerRoutingMetrics.routeName(address) : null;
+      return new Located(delegate.select(address, routes), address, name, routes.size());
+    }
+    BrokerFrameExtractor.ShardedFrame sharded = BrokerFrameExtractor.stripShardKey(frame);
+    if (Objects.nonNull(sharded)) {
+      // 每个请求的 shard key 不同, 以去掉 shard_key 字段的 frame 字节为键复用检索结果
+      BrokerRouteCache.Route route = routeCache.get(sharded.frame());
+      if (Objects.isNull(route)) {
+        Address shared = address(BrokerFrameExtractor.parse(sharded.frame()));
+        route = routeCache.resolve(sharded.frame(), shared, delegate(shared));
+      }
+      Address address = route.address().toBuilder().setShardKey(sharded.shardKey()).build();
+      return new Located(route.select(address), address, route.name(), route.routes().size());
+    }
+    BrokerRouteCache.Route route = routeCache.get(frame);
+    if (Objects.nonNull(route)) {
+      return new Located(route.select(), route.address(), route.name(), route.routes().size());
+    }
+    Address address = address(BrokerFrameExtractor.parse(frame));
+    if (address.getShardKey().isEmpty()) {
+      route = routeCache.resolve(frame, address, delegate(address));
+      return new Located(route.select(), route.address(), route.name(), route.routes().size());
+    }
+    // 字节上无法剥离 shard_key, 例如字段重复, 解析后重新序列化去掉 shard key 的地址
+    Address shared = address.toBuilder().clearShardKey().build();
+    ByteBuf sharedFrame =
+        Unpooled.wrappedBuffer(BrokerFrame.newBuilder().setAddress(shared).build().toByteArray());
+    route = routeCache.get(sharedFrame);
+    if (Objects.isNull(route)) {
+      route = routeCache.resolve(sharedFrame, shared, delegate(shared));
+    }
+    return new Located(route.select(address), address, route.name(), route.routes().size());
+  }
+
+  private <T> Mono<T> instrument(FrameType interaction, Located located, Mono<T> forwarded) {
+    if (metrics == BrokerRoutingMetrics.NOOP) {
+      return forwarded;
+    }
+    String route = located.route();
+    return Mono.defer(
+        () -> {
+          long start = System.nanoTime();
+          return forwarded
+              .doOnSuccess(
+                  response -> {
+                    if (response instanceof Payload payload) {
+                      metrics.responded(interaction, route, size(payload));
+                    }
+                    metrics.completed(interaction, route, System.nanoTime() - start, true);
+                  })
+              .doOnError(
+                  error ->
+                      metrics.completed(interaction, route, System.nanoTime() - start, false));
+        });
+  }
+
+  private Flux<Payload> instrument(
+      FrameType interaction, Located located, Flux<Payload> forwarded) {
+    if (metrics == BrokerRoutingMetrics.NOOP) {
+      return forwarded;
+    }
+    String route = located.route();
+    return Flux.defer(
+        () -> {
+          long start = System.nanoTime();
+          return forwarded
+              .doOnNext(payload -> metrics.responded(interaction, route, size(payload)))
+              .doOnComplete(
+                  () -> metrics.completed(interaction, route, System.nanoTime() - start, true))
+              .doOnError(
+                  error ->
+                      metrics.completed(interaction, route, System.nanoTime() - start, false));
+        });
+  }
+
+  private <T> Mono<T> unrouted(FrameType interaction, Payload payload, Throwable error) {
+    payload.release();
+    metrics.unrouted(interaction, error);
+    return Mono.error(error);
+  }
+
+  private static long size(Payload payload) {
+    long size = payload.data().readableBytes();
+    return payload.hasMetadata() ? size + payload.metadata().readableBytes() : size;
+  }
+
+  private static Address address(BrokerFrame brokerFrame) {
+    if (Objects.isNull(brokerFrame) || brokerFrame.getKindCase() != BrokerFrame.KindCase.ADDRESS) {
       throw new IllegalStateException("必须传入 Address 参数");
     }
-    Address address = brokerFrame.getAddress();
+    return brokerFrame.getAddress();
+  }
 
-    if (!locator.supports(address.getRoutingType())) {
+  private BrokerRSocketLocator delegate(Address address) {
+    BrokerRSocketLocator delegate = locator.delegate(address.getRoutingType());
+    if (Objects.isNull(delegate)) {
       throw new IllegalStateException("找不到对应路由类型的 RSocketLocator: " + address.getRoutingType());
     }
-    return locator.locate(address);
+    return delegate;
   }
+
+  /**
+   * 定位结果
+   *
+   * @param target 请求目标
+   * @param address 路由地址
+   * @param route 路由名称, 未启用埋点时可能为 null
+   * @param targets 检索到的路由数量
+   */
+  private record Located(RSocket target, Address address, String route, int targets) {}
 }
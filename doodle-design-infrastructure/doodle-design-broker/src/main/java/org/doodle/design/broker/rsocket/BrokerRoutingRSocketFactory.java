@@ -23,9 +23,35 @@ import org.doodle.design.broker.frame.BrokerFrameExtractor;
 public class BrokerRoutingRSocketFactory implements BrokerRSocketFactory {
   private final BrokerRSocketLocator locator;
   private final BrokerFrameExtractor frameExtractor;
+  /** 所有连接共享的路由缓存, null 表示不缓存 */
+  private final BrokerRouteCache routeCache;
+  /** 路由埋点, 默认 {@link BrokerRoutingMetrics#NOOP} 时不增加任何开销 */
+  private final BrokerRoutingMetrics metrics;
+  /** requestResponse 合并, null 表示不合并 */
+  private final BrokerSingleFlight singleFlight;
+
+  public BrokerRoutingRSocketFactory(
+      BrokerRSocketLocator locator, BrokerFrameExtractor frameExtractor) {
+    this(locator, frameExtractor, null);
+  }
+
+  public BrokerRoutingRSocketFactory(
+      BrokerRSocketLocator locator,
+      BrokerFrameExtractor frameExtractor,
+      BrokerRouteCache routeCache) {
+    this(locator, frameExtractor, routeCache, BrokerRoutingMetrics.NOOP);
+  }
+
+  public BrokerRoutingRSocketFactory(
+      BrokerRSocketLocator locator,
+      BrokerFrameExtractor frameExtractor,
+      BrokerRouteCache routeCache,
+      BrokerRoutingMetrics metrics) {
+    this(locator, frameExtractor, routeCache, metrics, null);
+  }
 
   @Override
   public RSocket create() {
-    return new BrokerRoutingRSocket(locator, frameExtractor);
+    return new BrokerRoutingRSocket(locator, frameExtractor, routeCache, metrics, singleFlight);
   }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.frame.FrameType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 内存中的 {@link BrokerRoutingMetrics} 实现, 按交互类型与路由分别统计
+ *
+ * <p>每个路由都带一个耗时直方图, 最多统计 maximumRoutes 个路由, 之后出现的新路由按交互类型合并计入 {@link
+ * #OVERFLOW_ROUTE}. 统计是累计值, 不淘汰已有路由, 避免导出的计数回退.
+ */
+public class BrokerRoutingStats implements BrokerRoutingMetrics {
+  public static final int DEFAULT_MAXIMUM_ROUTES = 1024;
+
+  /** 超出上限的路由合并后的名称 */
+  public static final String OVERFLOW_ROUTE = "<overflow>";
+
+  private final int maximumRoutes;
+  private final AtomicInteger routeCount = new AtomicInteger();
+  private final Map<RouteKey, RouteCounters> routes = new ConcurrentHashMap<>();
+  private final Map<FrameType, LongAdder> unrouted = new ConcurrentHashMap<>();
+  private final LatencyHistogram queryLatency = new LatencyHistogram();
+  private final LongAdder queryResults = new LongAdder();
+
+  public BrokerRoutingStats() {
+    this(DEFAULT_MAXIMUM_ROUTES);
+  }
+
+  /**
+   * @param maximumRoutes 最多单独统计的路由数量, 不含合并的溢出路由
+   */
+  public BrokerRoutingStats(int maximumRoutes) {
+    if (maximumRoutes <= 0) {
+      throw new IllegalArgumentException("maximumRoutes must be positive");
+    }
+    this.maximumRoutes = maximumRoutes;
+  }
+
+  @Override
+  public void routed(FrameType interaction, String route, int targets, long bytesIn) {
+    RouteCounters counters = counters(interaction, route);
+    counters.requests.increment();
+    counters.targets.add(targets);
+    counters.bytesIn.add(bytesIn);
+  }
+
+  @Override
+  public void unrouted(FrameType interaction, Throwable error) {
+    unrouted.computeIfAbsent(interaction, ignored -> new LongAdder()).increment();
+  }
+
+  @Override
+  public void responded(FrameType interaction, String route, long bytesOut) {
+    RouteCounters counters = counters(interaction, route);
+    counters.responses.increment();
+    counters.bytesOut.add(bytesOut);
+  }
+
+  @Override
+  public void completed(FrameType interaction, String route, long latencyNanos, boolean success) {
+    RouteCounters counters = counters(interaction, route);
+    counters.latency.record(latencyNanos);
+    if (!success) {
+      counters.errors.increment();
+    }
+  }
+
+  @Override
+  public void queried(long latencyNanos, int results) {
+    queryLatency.record(latencyNanos);
+    queryResults.add(results);
+  }
+
+  /**
+   * 各路由的统计快照
+   *
+   * @return 按交互类型与路由区分的统计
+   */
+  public List<RouteSnapshot> routes() {
+    List<RouteSnapshot> snapshots = new ArrayList<>(routes.size());
+    routes.forEach((key, counters) -> snapshots.add(counters.snapshot(key)));
+    return snapshots;
+  }
+
+  /**
+   * 无法定位的请求数量
+   *
+   * @param interaction 交互类型
+   * @return 请求数量
+   */
+  public long unrouted(FrameType interaction) {
+    LongAdder count = unrouted.get(interaction);
+    return Objects.isNull(count) ? 0 : count.sum();
+  }
+
+  /**
+   * 索引检索统计快照
+   *
+   * @return 检索耗时与结果总数
+   */
+  public QuerySnapshot queries() {
+    return new QuerySnapshot(queryLatency.snapshot(), queryResults.sum());
+  }
+
+  private RouteCounters counters(FrameType interaction, String route) {
+    RouteKey key = new RouteKey(interaction, route);
+    RouteCounters counters = routes.get(key);
+    if (Objects.isNull(counters)) {
+      // 超出上限时映射函数返回 null, 不写入
+      counters = routes.computeIfAbsent(key, ignored -> reserve() ? new RouteCounters() : null);
+    }
+    if (Objects.isNull(counters)) {
+      counters =
+          routes.computeIfAbsent(
+              new RouteKey(interaction, OVERFLOW_ROUTE), ignored -> new RouteCounters());
+    }
+    return counters;
+  }
+
+  private boolean reserve() {
+    return routeCount.getAndUpdate(count -> count < maximumRoutes ? count + 1 : count)
+        < maximumRoutes;
+  }
+
+  private record RouteKey(FrameType interaction, String route) {}
+
+  private static final class RouteCounters {
+    final LongAdder requests = new LongAdder();
+    final LongAdder responses = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder targets = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    RouteSnapshot snapshot(RouteKey key) {
+      return new RouteSnapshot(
+          key.interaction(),
+          key.route(),
+          requests.sum(),
+          responses.sum(),
+          errors.sum(),
+          targets.sum(),
+          bytesIn.sum(),
+          bytesOut.sum(),
+          latency.snapshot());
+    }
+  }
+
+  /**
+   * 单个路由的统计
+   *
+   * @param interaction 交互类型
+   * @param route 路由名称
+   * @param requests 转发次数
+   * @param responses 响应元素数量
+   * @param errors 目标返回错误的次数
+   * @param targets 检索到的路由数量之和, 除以 requests 为平均目标数量
+   * @param bytesIn 请求字节数
+   * @param bytesOut 响应字节数
+   * @param latency 交互耗时
+   */
+  public record RouteSnapshot(
+      FrameType interaction,
+      String route,
+      long requests,
+      long responses,
+      long errors,
+      long targets,
+      long bytesIn,
+      long bytesOut,
+      LatencyHistogram.Snapshot latency) {}
+
+  /**
+   * 索引检索统计
+   *
+   * @param latency 检索耗时
+   * @param results 检索结果总数
+   */
+  public record QuerySnapshot(LatencyHistogram.Snapshot latency, long results) {}
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.rsocket.Payload;
+import io.rsocket.util.EmptyPayload;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.doodle.design.broker.frame.Address;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/**
+ * requestResponse 合并: 路由 frame 与 data 完全相同的并发请求只向上游转发一次, 响应 retain 后分发给所有等待者
+ *
+ * <p>按地址 tag 选择启用的路由, tag 取值以 {@code *} 结尾时按前缀匹配. 使用表达式地址的请求不合并. 上游完成前
+ * 相同的请求都加入同一次调用; 全部等待者取消后取消上游请求, 之后相同的请求重新发起.
+ */
+public class BrokerSingleFlight {
+  private static final String WILDCARD = "*";
+  private static final Payload CLOSED = EmptyPayload.INSTANCE;
+
+  private final Map<String, String> tagPatterns;
+  private final Map<ByteBuf, Flight> flights = new ConcurrentHashMap<>();
+  private final LongAdder leaders = new LongAdder();
+  private final LongAdder followers = new LongAdder();
+
+  /**
+   * @param tagPatterns 启用合并的路由 tag, 地址需要包含全部 tag
+   */
+  public BrokerSingleFlight(Map<String, String> tagPatterns) {
+    if (tagPatterns.isEmpty()) {
+      throw new IllegalArgumentException("合并路由 tag 不能为空");
+    }
+    this.tagPatterns = Map.copyOf(tagPatterns);
+  }
+
+  /**
+   * 地址是否启用合并
+   *
+   * @param address 路由地址
+   * @return 全部 tag 都匹配时返回 true
+   */
+  public boolean matches(Address address) {
+    if (address.hasExpression()) {
+      return false;
+    }
+    Map<String, String> tags = address.getTags().getTagMap();
+    for (Map.Entry<String, String> pattern : tagPatterns.entrySet()) {
+      String value = tags.get(pattern.getKey());
+      if (Objects.isNull(value) || !matches(pattern.getValue(), value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 合并相同的请求, 跟随者的请求 payload 在加入时释放
+   *
+   * @param frame 请求中的 broker frame 字节
+   * @param payload 请求
+   * @param upstream 实际转发请求
+   * @return 响应, 每个等待者各持有一份引用
+   */
+  Mono<Payload> requestResponse(
+      ByteBuf frame, Payload payload, Function<Payload, Mono<Payload>> upstream) {
+    ByteBuf key = key(frame, payload.sliceData());
+    return Mono.defer(
+        () -> {
+          AtomicReference<Payload> owner = new AtomicReference<>();
+          return Mono.<Payload>create(sink -> join(key, payload, upstream, new Waiter(sink, owner)))
+              .<Payload>handle(
+                  (response, sink) -> {
+                    if (owner.compareAndSet(response, null)) {
+                      sink.next(response);
+                    }
+                  })
+              .doFinally(
+                  signal -> {
+                    Payload left = owner.getAndSet(CLOSED);
+                    if (Objects.nonNull(left)) {
+                      left.release();
+                    }
+                  });
+        });
+  }
+
+  private void join(
+      ByteBuf key, Payload payload, Function<Payload, Mono<Payload>> upstream, Waiter waiter) {
+    for (; ; ) {
+      Flight flight = flights.get(key);
+      if (Objects.isNull(flight)) {
+        Flight created = new Flight(key);
+        if (Objects.isNull(flights.putIfAbsent(key, created))) {
+          created.join(waiter);
+          leaders.increment();
+          Mono<Payload> response;
+          try {
+            response = upstream.apply(payload);
+          } catch (Throwable t) {
+            if (payload.refCnt() > 0) {
+              payload.release();
+            }
+            created.hookOnError(t);
+            return;
+          }
+          response.subscribe(created);
+          return;
+        }
+      } else if (flight.join(waiter)) {
+        followers.increment();
+        payload.release();
+        return;
+      }
+    }
+  }
+
+  /**
+   * 合并统计
+   *
+   * @return 上游请求次数与被合并的请求次数
+   */
+  public SingleFlightStats stats() {
+    return new SingleFlightStats(leaders.sum(), followers.sum(), flights.size());
+  }
+
+  private static boolean matches(String pattern, String value) {
+    return pattern.endsWith(WILDCARD)
+        ? value.startsWith(pattern.substring(0, pattern.length() - WILDCARD.length()))
+        : pattern.equals(value);
+  }
+
+  /** frame 长度 + frame + data, 加长度前缀避免不同切分拼出相同的字节 */
+  private static ByteBuf key(ByteBuf frame, ByteBuf data) {
+    ByteBuf key = Unpooled.buffer(Integer.BYTES + frame.readableBytes() + data.readableBytes());
+    key.writeInt(frame.readableBytes());
+    key.writeBytes(frame, frame.readerIndex(), frame.readableBytes());
+    key.writeBytes(data, data.readerIndex(), data.readableBytes());
+    return key;
+  }
+
+  /**
+   * 等待者, 响应先交给 owner 再通知 sink. 取消与分发竞争时 {@link MonoSink#success(Object)} 可能经
+   * onNextDropped 丢弃响应, 由 owner 保证释放
+   */
+  private record Waiter(MonoSink<Payload> sink, AtomicReference<Payload> owner) {
+
+    void success(Payload response) {
+      Payload retained = response.retain();
+      if (owner.compareAndSet(null, retained)) {
+        sink.success(retained);
+      } else {
+        retained.release();
+      }
+    }
+  }
+
+  /** 一次上游请求及其等待者, 全部等待者取消后取消上游请求 */
+  private final class Flight extends BaseSubscriber<Payload> {
+    private final ByteBuf key;
+    private final List<Waiter> waiters = new ArrayList<>();
+    private boolean done;
+
+    Flight(ByteBuf key) {
+      this.key = key;
+    }
+
+    /** 已完成的请求不再接收等待者, 调用方重新发起 */
+    synchronized boolean join(Waiter waiter) {
+      if (done) {
+        return false;
+      }
+      waiters.add(waiter);
+      waiter.sink().onCancel(() -> leave(waiter));
+      return true;
+    }
+
+    void leave(Waiter waiter) {
+      synchronized (this) {
+        if (!waiters.remove(waiter) || !waiters.isEmpty() || done) {
+          return;
+        }
+        done = true;
+      }
+      flights.remove(key, this);
+      cancel();
+    }
+
+    @Override
+    protected void hookOnNext(Payload response) {
+      for (Waiter waiter : finish()) {
+        waiter.success(response);
+      }
+      response.release();
+    }
+
+    @Override
+    protected void hookOnError(Throwable error) {
+      for (Waiter waiter : finish()) {
+        waiter.sink().error(error);
+      }
+    }
+
+    @Override
+    protected void hookOnComplete() {
+      for (Waiter waiter : finish()) {
+        waiter.sink().success();
+      }
+    }
+
+    /** 先从表中移除再分发, 之后到达的相同请求发起新的上游请求 */
+    private List<Waiter> finish() {
+      flights.remove(key, this);
+      synchronized (this) {
+        if (done) {
+          return List.of();
+        }
+        done = true;
+        return new ArrayList<>(waiters);
+      }
+    }
+  }
+
+  /**
+   * 合并统计
+   *
+   * @param leaders 实际转发到上游的请求次数
+   * @param followers 被合并的请求次数
+   * @param inFlight 进行中的上游请求数量
+   */
+  public record SingleFlightStats(long leaders, long followers, int inFlight) {}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.ConnectionSetupPayload;
+import io.rsocket.RSocket;
+import io.rsocket.SocketAcceptor;
+import io.rsocket.exceptions.RejectedSetupException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.doodle.design.broker.frame.BrokerFrame;
+import org.doodle.design.broker.frame.BrokerFrameExtractor;
+import org.doodle.design.broker.frame.RouteSetup;
+import org.doodle.design.broker.frame.Tags;
+import org.doodle.design.broker.frame.UUID;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+/**
+ * 按 SETUP 中的 {@link RouteSetup} 注册连接, 连接关闭时删除
+ *
+ * <p>注册与删除先排队, 由一个线程把排队的变化合并为一批写入索引, 连接风暴时每批只复制一次索引快照; 因此 accept 返回时注册可能尚未生效.
+ */
+@Slf4j
+public class BrokerSocketAcceptor implements SocketAcceptor {
+  static final int EVENT_BUFFER_SIZE = 8192;
+
+  private final BrokerRSocketIndex index;
+  private final BrokerFrameExtractor frameExtractor;
+  private final BrokerRSocketFactory rSocketFactory;
+  private final Map<String, String> routeTags;
+  private final BrokerAdmission admission;
+  private final Queue<BrokerRouteEvent> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger wip = new AtomicInteger();
+  private final Sinks.Many<BrokerRouteEvent> events = Sinks.many().multicast().directBestEffort();
+
+  public BrokerSocketAcceptor(
+      BrokerRSocketIndex index,
+      BrokerFrameExtractor frameExtractor,
+      BrokerRSocketFactory rSocketFactory) {
+    this(index, frameExtractor, rSocketFactory, Map.of());
+  }
+
+  /**
+   * @param index 本地路由索引
+   * @param frameExtractor SETUP 中的 broker frame 提取
+   * @param rSocketFactory 返回给连接的 routing RSocket
+   * @param routeTags 追加到每个路由的 tag, 例如集群模式下的 {@link BrokerFederation#BROKER_TAG}
+   */
+  public BrokerSocketAcceptor(
+      BrokerRSocketIndex index,
+      BrokerFrameExtractor frameExtractor,
+      BrokerRSocketFactory rSocketFactory,
+      Map<String, String> routeTags) {
+    this(index, frameExtractor, rSocketFactory, routeTags, null);
+  }
+
+  /**
+   * @param index 本地路由索引
+   * @param frameExtractor SETUP 中的 broker frame 提取
+   * @param rSocketFactory 返回给连接的 routing RSocket
+   * @param routeTags 追加到每个路由的 tag
+   * @param admission 按调用方 SETUP tag 做准入控制, null 表示不限制
+   */
+  public BrokerSocketAcceptor(
+      BrokerRSocketIndex index,
+      BrokerFrameExtractor frameExtractor,
+      BrokerRSocketFactory rSocketFactory,
+      Map<String, String> routeTags,
+      BrokerAdmission admission) {
+    this.index = index;
+    this.frameExtractor = frameExtractor;
+    this.rSocketFactory = rSocketFactory;
+    this.routeTags = Map.copyOf(routeTags);
+    this.admission = admission;
+  }
+
+  @Override
+  public Mono<RSocket> accept(ConnectionSetupPayload setup, RSocket sendingSocket) {
+    BrokerFrame frame = frameExtractor.apply(setup);
+    if (Objects.isNull(frame)
+        || !frame.hasSetup()
+        || frame.getSetup().getRouteId().getId().isEmpty()) {
+      return Mono.error(new RejectedSetupException("SETUP 缺少 RouteSetup 或路由 UUID"));
+    }
+    UUID routeId = frame.getSetup().getRouteId();
+    Tags callerTags = frame.getSetup().getTags();
+    Tags tags = callerTags;
+    if (!routeTags.isEmpty()) {
+      tags = tags.toBuilder().putAllTag(routeTags).build();
+    }
+    submit(BrokerRouteEvent.added(routeId, tags, sendingSocket));
+    Tags registered = tags;
+    sendingSocket
+        .onClose()
+        .doFinally(signal -> submit(BrokerRouteEvent.removed(routeId, registered, sendingSocket)))
+        .subscribe();
+    RSocket responder = rSocketFactory.create();
+    return Mono.just(
+        Objects.isNull(admission) ? responder : admission.guard(callerTags, responder));
+  }
+
+  /**
+   * 生效的路由变化, 只包含订阅之后的变化, 需要已有路由时先通过 {@link BrokerRSocketIndex#addListener} 回放
+   *
+   * <p>每个订阅者各自缓冲最多 {@value #EVENT_BUFFER_SIZE} 个未消费的事件, 不会拖慢写入线程. 缓冲溢出后交付完已缓冲的事件,
+   * 事件流以 {@link Exceptions#isOverflow(Throwable) overflow} 错误结束, 订阅方先重新订阅再回放索引即可恢复, 事件可能重复但不会丢失.
+   *
+   * @return 路由变化事件流
+   */
+  public Flux<BrokerRouteEvent> events() {
+    return events.asFlux().onBackpressureBuffer(EVENT_BUFFER_SIZE);
+  }
+
+  private void submit(BrokerRouteEvent update) {
+    pending.offer(update);
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      List<BrokerRouteEvent> batch = new ArrayList<>();
+      for (BrokerRouteEvent next; Objects.nonNull(next = pending.poll()); ) {
+        batch.add(next);
+      }
+      if (!batch.isEmpty()) {
+        publish(batch);
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void publish(List<BrokerRouteEvent> batch) {
+    List<BrokerRouteEvent> applied;
+    try {
+      applied = index.apply(batch);
+    } catch (RuntimeException e) {
+      log.error("路由索引更新失败 数量: {}", batch.size(), e);
+      return;
+    }
+    for (BrokerRouteEvent event : applied) {
+      events.tryEmitNext(event);
+    }
+  }
+}
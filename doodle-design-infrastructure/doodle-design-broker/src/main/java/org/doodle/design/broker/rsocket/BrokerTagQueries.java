@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.experimental.UtilityClass;
+import org.doodle.design.bitmap.TagQuery;
+import org.doodle.design.broker.frame.TagCompound;
+import org.doodle.design.broker.frame.TagExpression;
+import org.doodle.design.broker.frame.TagValues;
+import org.doodle.design.broker.frame.Tags;
+
+/** Broker Protobuf tag 与位图索引查询之间的转换 */
+@UtilityClass
+public final class BrokerTagQueries {
+
+  /**
+   * 多值 tag 转换为索引写入参数
+   *
+   * @param tags 路由索引 tag
+   * @return tag 键对应的全部取值
+   */
+  public static Map<String, List<String>> multiTags(Tags tags) {
+    Map<String, List<String>> multiTags = new HashMap<>();
+    for (Map.Entry<String, TagValues> tag : tags.getMultiTagMap().entrySet()) {
+      multiTags.put(tag.getKey(), tag.getValue().getValueList());
+    }
+    return multiTags;
+  }
+
+  /**
+   * 路由表达式转换为位图索引查询
+   *
+   * @param expression 路由表达式
+   * @return 位图索引查询表达式
+   */
+  public static TagQuery toTagQuery(TagExpression expression) {
+    switch (expression.getKindCase()) {
+      case MATCH:
+        return TagQuery.in(expression.getMatch().getKey(), expression.getMatch().getValueList());
+      case PREFIX:
+        return TagQuery.prefix(expression.getPrefix().getKey(), expression.getPrefix().getPrefix());
+      case NOT:
+        return TagQuery.not(toTagQuery(expression.getNot()));
+      case COMPOUND:
+        TagCompound compound = expression.getCompound();
+        List<TagQuery> operands = new ArrayList<>(compound.getOperandCount());
+        for (TagExpression operand : compound.getOperandList()) {
+          operands.add(toTagQuery(operand));
+        }
+        return new TagQuery.Compound(toOp(compound), operands);
+      default:
+        throw new IllegalArgumentException("索引查询表达式不能为空");
+    }
+  }
+
+  private static TagQuery.Op toOp(TagCompound compound) {
+    switch (compound.getOp()) {
+      case LOGICAL_OR:
+        return TagQuery.Op.OR;
+      case LOGICAL_AND_NOT:
+        return TagQuery.Op.AND_NOT;
+      case LOGICAL_XOR:
+        return TagQuery.Op.XOR;
+      default:
+        return TagQuery.Op.AND;
+    }
+  }
+}
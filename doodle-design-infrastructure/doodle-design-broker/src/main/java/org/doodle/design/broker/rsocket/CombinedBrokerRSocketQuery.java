@@ -22,6 +22,7 @@ import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.doodle.design.bitmap.IndexedMap;
 import org.doodle.design.broker.frame.QueryType;
+import org.doodle.design.broker.frame.TagExpression;
 import org.doodle.design.broker.frame.Tags;
 import org.springframework.util.CollectionUtils;
 
@@ -42,4 +43,13 @@ public class CombinedBrokerRSocketQuery implements BrokerRSocketQuery {
             : IndexedMap.QueryOps.AND;
     return rSocketIndex.query(tags, queryOps);
   }
+
+  @Override
+  public List<RSocket> query(TagExpression expression) {
+    if (Objects.isNull(expression)
+        || expression.getKindCase() == TagExpression.KindCase.KIND_NOT_SET) {
+      throw new IllegalArgumentException("索引查询表达式不能为空");
+    }
+    return rSocketIndex.query(BrokerTagQueries.toTagQuery(expression));
+  }
 }
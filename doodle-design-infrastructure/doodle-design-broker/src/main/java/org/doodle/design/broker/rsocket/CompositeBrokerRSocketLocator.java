@@ -17,6 +17,7 @@ package org.doodle.design.broker.rsocket;
 
 import io.rsocket.RSocket;
 import java.util.List;
+import java.util.Objects;
 import lombok.AllArgsConstructor;
 import org.doodle.design.broker.frame.Address;
 import org.doodle.design.broker.frame.RoutingType;
@@ -37,11 +38,35 @@ public class CompositeBrokerRSocketLocator implements BrokerRSocketLocator {
 
   @Override
   public RSocket locate(Address address) {
+    return required(address.getRoutingType()).locate(address);
+  }
+
+  @Override
+  public List<RSocket> route(Address address) {
+    return required(address.getRoutingType()).route(address);
+  }
+
+  @Override
+  public RSocket select(Address address, List<RSocket> routes) {
+    return required(address.getRoutingType()).select(address, routes);
+  }
+
+  @Override
+  public BrokerRSocketLocator delegate(RoutingType routingType) {
     for (BrokerRSocketLocator locator : locators) {
-      if (locator.supports(address.getRoutingType())) {
-        return locator.locate(address);
+      BrokerRSocketLocator delegate = locator.delegate(routingType);
+      if (Objects.nonNull(delegate)) {
+        return delegate;
       }
     }
-    throw new IllegalStateException("找不到对应的 RSocketLocator: " + address.getRoutingType());
+    return null;
+  }
+
+  private BrokerRSocketLocator required(RoutingType routingType) {
+    BrokerRSocketLocator delegate = delegate(routingType);
+    if (Objects.isNull(delegate)) {
+      throw new IllegalStateException("找不到对应的 RSocketLocator: " + routingType);
+    }
+    return delegate;
   }
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.RSocket;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.doodle.design.broker.frame.Address;
+import org.doodle.design.broker.frame.UUID;
+
+/**
+ * 按 {@link Address#getShardKey()} 一致性哈希选择路由, 同一个 shard key 总是落在同一个 RSocket
+ *
+ * <p>每个路由按 UUID 放置若干虚拟节点, 同一 UUID 重新连接时位置不变. 哈希环按检索结果构建并缓存, 选择时二分查找 shard key
+ * 顺时针的第一个节点, 路由增减时只有约 1/N 的 shard key 改变目标. 索引变化后缓存的哈希环在下一次访问时重建.
+ *
+ * <p>检索结果中有不在本地索引中的路由时 (例如 {@link BrokerFederation} 同步来的远程路由) 不构建哈希环, 按 shard key
+ * 的哈希对结果数量取模, 结果不变时同一个 shard key 仍落在同一个目标.
+ */
+final class ConsistentHashLoadBalancer implements UnicastLoadBalancer, BrokerRSocketIndex.Listener {
+  static final int DEFAULT_VIRTUAL_NODES = 160;
+
+  /** 缓存的哈希环数量上限, 每个哈希环占用 检索结果数量 x 虚拟节点数 个节点 */
+  static final int MAXIMUM_RINGS = 256;
+
+  /** 缓存已满且都未过期时每次移除的哈希环数量 */
+  private static final int EVICTION_BATCH = MAXIMUM_RINGS / 8;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final int virtualNodes;
+  private final Map<UUID, RSocket> nodes = new ConcurrentHashMap<>();
+  private final Map<RSocket, long[]> points = new ConcurrentHashMap<>();
+  private final Map<List<RSocket>, Ring> rings = new ConcurrentHashMap<>();
+
+  /** 路由变化时递增, 哈希环记录构建前的版本 */
+  private final AtomicLong version = new AtomicLong();
+
+  ConsistentHashLoadBalancer(int virtualNodes) {
+    if (virtualNodes <= 0) {
+      throw new IllegalArgumentException("virtualNodes must be positive");
+    }
+    this.virtualNodes = virtualNodes;
+  }
+
+  @Override
+  public void onPut(UUID key, RSocket rSocket) {
+    RSocket previous = nodes.put(key, rSocket);
+    if (previous != rSocket) {
+      if (Objects.nonNull(previous)) {
+        points.remove(previous);
+      }
+      points.put(rSocket, points(key));
+      version.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void onRemove(UUID key, RSocket rSocket) {
+    if (nodes.remove(key, rSocket)) {
+      points.remove(rSocket);
+      version.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void onClear() {
+    nodes.clear();
+    points.clear();
+    rings.clear();
+    version.incrementAndGet();
+  }
+
+  @Override
+  public RSocket select(List<RSocket> routes) {
+    throw new IllegalArgumentException("一致性哈希路由必须传入 shard key");
+  }
+
+  @Override
+  public RSocket select(Address address, List<RSocket> routes) {
+    String shardKey = address.getShardKey();
+    if (shardKey.isEmpty()) {
+      return select(routes);
+    }
+    long hash = hash(shardKey);
+    RSocket selected = ring(routes).select(hash);
+    return Objects.nonNull(selected)
+        ? selected
+        : routes.get((int) Math.floorMod(hash, (long) routes.size()));
+  }
+
+  /** 按检索结果查找未过期的哈希环, 不存在时构建, 检索结果按内容比较 */
+  private Ring ring(List<RSocket> routes) {
+    long current = version.get();
+    Ring ring = rings.get(routes);
+    if (Objects.nonNull(ring) && ring.version() == current) {
+      return ring;
+    }
+    ring = build(current, routes);
+    if (rings.size() >= MAXIMUM_RINGS) {
+      evict(current);
+    }
+    rings.put(List.copyOf(routes), ring);
+    return ring;
+  }
+
+  /** 先移除过期的哈希环, 仍然已满时移除一批, 不整体清空 */
+  private void evict(long current) {
+    rings.values().removeIf(ring -> ring.version() != current);
+    if (rings.size() < MAXIMUM_RINGS) {
+      return;
+    }
+    Iterator<Ring> iterator = rings.values().iterator();
+    for (int i = 0; i < EVICTION_BATCH && iterator.hasNext(); i++) {
+      iterator.next();
+      iterator.remove();
+    }
+  }
+
+  private Ring build(long current, List<RSocket> routes) {
+    TreeMap<Long, RSocket> sorted = new TreeMap<>();
+    for (int i = 0; i < routes.size(); i++) {
+      RSocket rSocket = routes.get(i);
+      long[] owned = points.get(rSocket);
+      if (Objects.isNull(owned)) {
+        // 不在本地索引中, 退化为取模
+        return new Ring(current, new long[0], new RSocket[0]);
+      }
+      for (long point : owned) {
+        sorted.put(point, rSocket);
+      }
+    }
+    long[] ringPoints = new long[sorted.size()];
+    RSocket[] targets = new RSocket[sorted.size()];
+    int i = 0;
+    for (Map.Entry<Long, RSocket> entry : sorted.entrySet()) {
+      ringPoints[i] = entry.getKey();
+      targets[i++] = entry.getValue();
+    }
+    return new Ring(current, ringPoints, targets);
+  }
+
+  private long[] points(UUID key) {
+    long[] owned = new long[virtualNodes];
+    for (int i = 0; i < virtualNodes; i++) {
+      owned[i] = hash(key.getId() + '#' + i);
+    }
+    return owned;
+  }
+
+  /**
+   * 一组检索结果的哈希环
+   *
+   * @param version 构建前的路由版本
+   * @param points 有序的虚拟节点位置
+   * @param targets 与位置一一对应的路由
+   */
+  private record Ring(long version, long[] points, RSocket[] targets) {
+
+    /** 顺时针第一个节点, 哈希环为空时返回 null */
+    RSocket select(long hash) {
+      if (points.length == 0) {
+        return null;
+      }
+      int index = Arrays.binarySearch(points, hash);
+      if (index < 0) {
+        index = -index - 1;
+      }
+      return targets[index == points.length ? 0 : index];
+    }
+  }
+
+  /** FNV-1a 后再做一次 murmur3 fmix64, 让相近的字符串在环上分散 */
+  static long hash(String value) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.RSocket;
+import io.rsocket.util.RSocketProxy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import org.doodle.design.broker.frame.Address;
+import org.doodle.design.broker.frame.QueryType;
+import org.doodle.design.broker.frame.TagExpression;
+import org.doodle.design.broker.frame.Tags;
+
+/**
+ * 本地路由与其他 broker 同步来的路由的组合检索, 远端路由的值是到所属 broker 的连接
+ *
+ * <p>UNICAST 优先本地路由, 本地没有时转发给持有目标的 broker; MULTICAST 在本地路由之外, 每个持有目标的 broker 只转发一份,
+ * 按该 broker 上匹配的路由数量计入 QUORUM, 其响应由 {@link MulticastBrokerRSocket} 拆开汇总.
+ *
+ * <p>远端路由不在本地索引中, CONSISTENT_HASH 的哈希环不覆盖它们, 转发时回退为按哈希取模选择 broker.
+ */
+public class FederatedBrokerRSocketQuery implements BrokerRSocketQuery {
+  private final BrokerRSocketQuery local;
+  private final BrokerRSocketQuery remote;
+  private final boolean multicast;
+
+  private FederatedBrokerRSocketQuery(
+      BrokerRSocketQuery local, BrokerRSocketQuery remote, boolean multicast) {
+    this.local = local;
+    this.remote = remote;
+    this.multicast = multicast;
+  }
+
+  public static FederatedBrokerRSocketQuery unicast(
+      BrokerRSocketQuery local, BrokerRSocketQuery remote) {
+    return new FederatedBrokerRSocketQuery(local, remote, false);
+  }
+
+  public static FederatedBrokerRSocketQuery multicast(
+      BrokerRSocketQuery local, BrokerRSocketQuery remote) {
+    return new FederatedBrokerRSocketQuery(local, remote, true);
+  }
+
+  @Override
+  public List<RSocket> query(Tags tags, QueryType queryType) {
+    return combine(query -> query.query(tags, queryType));
+  }
+
+  @Override
+  public List<RSocket> query(TagExpression expression) {
+    return combine(query -> query.query(expression));
+  }
+
+  @Override
+  public List<RSocket> query(Address address) {
+    return combine(query -> query.query(address));
+  }
+
+  private List<RSocket> combine(Function<BrokerRSocketQuery, List<RSocket>> query) {
+    List<RSocket> found = query.apply(local);
+    if (!multicast && !found.isEmpty()) {
+      return found;
+    }
+    List<RSocket> forwarded = query.apply(remote);
+    if (forwarded.isEmpty()) {
+      return found;
+    }
+    if (!multicast) {
+      // 每个远端目标对应一项, ROUND_ROBIN 与 RANDOM 按目标数量加权选择 broker, FIRST 总是选择第一个,
+      // CONSISTENT_HASH 在这些项上取模
+      return forwarded;
+    }
+    Map<RSocket, Integer> targets = new IdentityHashMap<>();
+    for (RSocket peer : forwarded) {
+      targets.merge(peer, 1, Integer::sum);
+    }
+    List<RSocket> combined = new ArrayList<>(found.size() + targets.size());
+    combined.addAll(found);
+    for (RSocket peer : forwarded) {
+      Integer count = targets.remove(peer);
+      if (Objects.nonNull(count)) {
+        combined.add(new PeerTarget(peer, count));
+      }
+    }
+    return combined;
+  }
+
+  /** 转发到其他 broker 的 MULTICAST 目标, 记录该 broker 上匹配的路由数量 */
+  static final class PeerTarget extends RSocketProxy {
+    private final int targets;
+
+    PeerTarget(RSocket peer, int targets) {
+      super(peer);
+      this.targets = targets;
+    }
+
+    int targets() {
+      return targets;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.Payload;
+import io.rsocket.RSocket;
+import io.rsocket.util.RSocketProxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * power of two choices, 比较两个随机路由的处理中请求数
+ *
+ * <p>处理中请求数只统计经由本策略发出的请求, 在订阅时加一, 结束或取消时减一. 计数器在 RSocket 关闭后移除.
+ */
+final class LeastRequestsLoadBalancer implements UnicastLoadBalancer {
+  private final Map<RSocket, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+  @Override
+  public RSocket select(List<RSocket> routes) {
+    int size = routes.size();
+    RSocket selected;
+    if (size == 1) {
+      selected = routes.get(0);
+    } else {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int first = random.nextInt(size);
+      int second = random.nextInt(size - 1);
+      if (second >= first) {
+        second++;
+      }
+      RSocket a = routes.get(first);
+      RSocket b = routes.get(second);
+      selected = inFlight(a) <= inFlight(b) ? a : b;
+    }
+    return new InFlightRSocket(selected, counter(selected));
+  }
+
+  int inFlight(RSocket rSocket) {
+    AtomicInteger counter = inFlight.get(rSocket);
+    return Objects.isNull(counter) ? 0 : counter.get();
+  }
+
+  private AtomicInteger counter(RSocket rSocket) {
+    AtomicInteger counter = inFlight.get(rSocket);
+    if (Objects.nonNull(counter)) {
+      return counter;
+    }
+    AtomicInteger created = new AtomicInteger();
+    counter = inFlight.putIfAbsent(rSocket, created);
+    if (Objects.nonNull(counter)) {
+      return counter;
+    }
+    rSocket.onClose().doFinally(signal -> inFlight.remove(rSocket)).subscribe(v -> {}, e -> {});
+    return created;
+  }
+
+  private static final class InFlightRSocket extends RSocketProxy {
+    private final AtomicInteger counter;
+
+    InFlightRSocket(RSocket source, AtomicInteger counter) {
+      super(source);
+      this.counter = counter;
+    }
+
+    @Override
+    public Mono<Void> fireAndForget(Payload payload) {
+      return Mono.defer(
+          () -> {
+            counter.incrementAndGet();
+            return source.fireAndForget(payload).doFinally(signal -> counter.decrementAndGet());
+          });
+    }
+
+    @Override
+    public Mono<Payload> requestResponse(Payload payload) {
+      return Mono.defer(
+          () -> {
+            counter.incrementAndGet();
+            return source.requestResponse(payload).doFinally(signal -> counter.decrementAndGet());
+          });
+    }
+
+    @Override
+    public Flux<Payload> requestStream(Payload payload) {
+      return Flux.defer(
+          () -> {
+            counter.incrementAndGet();
+            return source.requestStream(payload).doFinally(signal -> counter.decrementAndGet());
+          });
+    }
+
+    @Override
+    public Flux<Payload> requestChannel(Publisher<Payload> payloads) {
+      return Flux.defer(
+          () -> {
+            counter.incrementAndGet();
+            return source.requestChannel(payloads).doFinally(signal -> counter.decrementAndGet());
+          });
+    }
+  }
+}
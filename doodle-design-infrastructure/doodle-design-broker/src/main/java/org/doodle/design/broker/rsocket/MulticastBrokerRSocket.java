@@ -17,22 +17,65 @@ package org.doodle.design.broker.rsocket;
 
 import io.rsocket.Payload;
 import io.rsocket.RSocket;
+import io.rsocket.util.EmptyPayload;
+import java.time.Duration;
 import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.Supplier;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.doodle.design.broker.frame.MulticastOptions;
+import org.doodle.design.broker.frame.MulticastResponse;
 import org.reactivestreams.Publisher;
 import org.springframework.util.CollectionUtils;
-import reactor.core.Disposable;
-import reactor.core.Disposables;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.concurrent.Queues;
 
+/**
+ * 向检索到的全部路由扇出请求
+ *
+ * <p>目标按 batch_size 分批, 同一批在一次订阅中依次发起, 同时在途的批次不超过 concurrency. 单个目标失败或超时只计入
+ * {@link MulticastResult#failed()}, 不会取消其他目标.
+ */
 @Slf4j
-@RequiredArgsConstructor
 public class MulticastBrokerRSocket implements RSocket {
+  static final int DEFAULT_CONCURRENCY = Queues.SMALL_BUFFER_SIZE;
+  private static final Payload CLOSED = EmptyPayload.INSTANCE;
+
+  /** 请求由其他 broker 转发而来, 由 {@link BrokerFederation} 写入 Reactor Context */
+  static final String FORWARDED = MulticastBrokerRSocket.class.getName() + ".forwarded";
+
   private final Supplier<List<? extends RSocket>> supplier;
+  private final int concurrency;
+  private final int batchSize;
+  private final Duration timeout;
+  private final MulticastResponse response;
+  private final int quorum;
+
+  public MulticastBrokerRSocket(Supplier<List<? extends RSocket>> supplier) {
+    this(supplier, MulticastOptions.getDefaultInstance());
+  }
+
+  /**
+   * @param supplier 路由检索
+   * @param options 扇出选项, 为 0 的字段使用默认值: 并发 {@value #DEFAULT_CONCURRENCY}, 每批 1 个目标, 不超时
+   */
+  public MulticastBrokerRSocket(
+      Supplier<List<? extends RSocket>> supplier, MulticastOptions options) {
+    this.supplier = supplier;
+    this.concurrency =
+        options.getConcurrency() > 0 ? options.getConcurrency() : DEFAULT_CONCURRENCY;
+    this.batchSize = Math.max(1, options.getBatchSize());
+    this.timeout =
+        options.getTimeoutMillis() > 0 ? Duration.ofMillis(options.getTimeoutMillis()) : null;
+    this.response = options.getResponse();
+    this.quorum = options.getQuorum();
+  }
 
   public Collection<? extends RSocket> query() {
     List<? extends RSocket> found = supplier.get();
@@ -42,54 +85,93 @@ public class MulticastBrokerRSocket implements RSocket {
     return found;
   }
 
+  /**
+   * 向全部路由发送 fireAndForget 并汇总投递结果
+   *
+   * @param payload 请求负载
+   * @return 投递结果
+   */
+  public Mono<MulticastResult> broadcast(Payload payload) {
+    return deliver(payload, RSocket::fireAndForget);
+  }
+
   @Override
   public Mono<Void> fireAndForget(Payload payload) {
-    Collection<? extends RSocket> rSockets = query();
-    if (rSockets.isEmpty()) {
-      payload.release();
-      return Mono.empty();
-    } else if (rSockets.size() > 1) {
-      payload.retain(rSockets.size() - 1);
-    }
-    return Flux.fromIterable(rSockets)
-        .flatMap(rSocket -> rSocket.fireAndForget(payload))
-        .ignoreElements();
+    return broadcast(payload).doOnNext(MulticastBrokerRSocket::logFailures).then();
   }
 
+  /**
+   * 按 {@link MulticastResponse} 汇总响应: FIRST_SUCCESS 返回首个成功响应, QUORUM 收齐前 quorum 个成功响应,
+   * ALL 收集全部成功响应; 后两者用 {@link MulticastPayloads} 合并为一个 payload. 达到条件后取消其余目标, 迟到或被丢弃的响应都会释放.
+   *
+   * <p>其他 broker 转发来的 QUORUM 与 ALL 请求按 ALL 收齐本地响应, 由发起方拆开后按目标逐个计数, 不会嵌套合并.
+   */
   @Override
   public Mono<Payload> requestResponse(Payload payload) {
     Collection<? extends RSocket> rSockets = query();
-    if (rSockets.isEmpty()) {
+    return Mono.deferContextual(
+        context -> {
+          boolean forwarded =
+              response != MulticastResponse.FIRST_SUCCESS && context.hasKey(FORWARDED);
+          return requestResponse(payload, rSockets, forwarded ? MulticastResponse.ALL : response);
+        });
+  }
+
+  private Mono<Payload> requestResponse(
+      Payload payload, Collection<? extends RSocket> rSockets, MulticastResponse response) {
+    int targets = targets(rSockets);
+    int required = required(response, targets);
+    if (required > targets) {
       payload.release();
-      return Mono.empty();
-    } else if (rSockets.size() > 1) {
-      payload.retain(rSockets.size() - 1);
+      return Mono.error(
+          new IllegalArgumentException(
+              "MULTICAST quorum " + required + " 大于目标数量 " + targets));
     }
-    return Mono.create(
-        sink -> {
-          Composite composite = Disposables.composite();
-          sink.onDispose(composite);
-          for (RSocket rSocket : rSockets) {
-            Disposable disposable =
-                rSocket
-                    .requestResponse(payload)
-                    .doOnCancel(() -> {})
-                    .subscribe(sink::success, sink::error, sink::success);
-            composite.add(disposable);
-          }
-        });
+    AtomicInteger failed = new AtomicInteger();
+    AtomicReference<Throwable> lastError = new AtomicReference<>();
+    Flux<Payload> responses =
+        fanOut(
+            rSockets,
+            rSocket -> {
+              Mono<Payload> sent =
+                  withResponseTimeout(Mono.defer(() -> rSocket.requestResponse(payload.retain())))
+                      .onErrorResume(
+                          error -> {
+                            lastError.set(error);
+                            return failed(rSocket, error, failed);
+                          });
+              if (response == MulticastResponse.FIRST_SUCCESS
+                  || !(rSocket instanceof FederatedBrokerRSocketQuery.PeerTarget)) {
+                return sent;
+              }
+              return sent.flatMapIterable(MulticastBrokerRSocket::split);
+            });
+    Mono<Payload> result =
+        switch (response) {
+          case QUORUM ->
+              responses.take(required).collectList().flatMap(found -> compose(found, required));
+          case ALL -> responses.collectList().flatMap(found -> compose(found, 1));
+          default -> responses.next();
+        };
+    return result
+        .switchIfEmpty(
+            Mono.defer(
+                () ->
+                    Mono.error(
+                        new IllegalStateException(
+                            "MULTICAST 成功响应不足 " + required + " 个, 失败 " + failed.get() + " 个",
+                            lastError.get()))))
+        .doFinally(signal -> payload.release())
+        .doOnDiscard(Payload.class, Payload::release);
   }
 
   @Override
   public Flux<Payload> requestStream(Payload payload) {
     Collection<? extends RSocket> rSockets = query();
-    if (rSockets.isEmpty()) {
-      payload.release();
-      return Flux.empty();
-    } else if (rSockets.size() > 1) {
-      payload.retain(rSockets.size() - 1);
-    }
-    return Flux.fromIterable(rSockets).flatMap(rSocket -> rSocket.requestStream(payload));
+    AtomicInteger failed = new AtomicInteger();
+    return fanOut(rSockets, rSocket -> stream(rSocket, payload, failed))
+        .doOnComplete(() -> logFailures(new MulticastResult(rSockets.size(), failed.get())))
+        .doFinally(signal -> payload.release());
   }
 
   @Override
@@ -101,17 +183,147 @@ public class MulticastBrokerRSocket implements RSocket {
       payloads = Flux.from(payloads).map(payload -> payload.retain(rSockets.size() - 1));
     }
     Publisher<Payload> _p = payloads;
-    return Flux.fromIterable(rSockets).flatMap(rSocket -> rSocket.requestChannel(_p));
+    return Flux.fromIterable(rSockets).flatMap(rSocket -> rSocket.requestChannel(_p), concurrency);
   }
 
   @Override
   public Mono<Void> metadataPush(Payload payload) {
+    return deliver(payload, RSocket::metadataPush)
+        .doOnNext(MulticastBrokerRSocket::logFailures)
+        .then();
+  }
+
+  /** 每个目标各自持有一份 payload 引用, 原始引用在扇出结束或取消时释放, 未发出的目标不会泄漏引用 */
+  private Mono<MulticastResult> deliver(
+      Payload payload, BiFunction<RSocket, Payload, Mono<Void>> send) {
     Collection<? extends RSocket> rSockets = query();
-    if (rSockets.size() > 1) {
-      payload.retain(rSockets.size() - 1);
+    AtomicInteger failed = new AtomicInteger();
+    return fanOut(
+            rSockets,
+            rSocket ->
+                withTimeout(Mono.defer(() -> send.apply(rSocket, payload.retain())))
+                    .onErrorResume(error -> failed(rSocket, error, failed)))
+        .then(Mono.fromSupplier(() -> new MulticastResult(rSockets.size(), failed.get())))
+        .doFinally(signal -> payload.release());
+  }
+
+  private <T> Flux<T> fanOut(
+      Collection<? extends RSocket> rSockets, Function<RSocket, Publisher<T>> send) {
+    if (batchSize == 1) {
+      return Flux.fromIterable(rSockets).flatMap(send, concurrency);
     }
     return Flux.fromIterable(rSockets)
-        .flatMap(rSocket -> rSocket.metadataPush(payload))
-        .ignoreElements();
+        .buffer(batchSize)
+        .flatMap(batch -> Flux.fromIterable(batch).flatMap(send, batch.size()), concurrency);
+  }
+
+  /** stream 的超时只约束首个元素, 之后按目标自身节奏推送 */
+  private Flux<Payload> stream(RSocket rSocket, Payload payload, AtomicInteger failed) {
+    Flux<Payload> stream = Flux.defer(() -> rSocket.requestStream(payload.retain()));
+    if (Objects.nonNull(timeout)) {
+      stream = stream.timeout(Mono.delay(timeout), ignored -> Mono.never());
+    }
+    return stream.onErrorResume(error -> failed(rSocket, error, failed));
+  }
+
+  /** 其他 broker 按其上匹配的路由数量计入目标数量 */
+  private static int targets(Collection<? extends RSocket> rSockets) {
+    int targets = 0;
+    for (RSocket rSocket : rSockets) {
+      targets +=
+          rSocket instanceof FederatedBrokerRSocketQuery.PeerTarget peer ? peer.targets() : 1;
+    }
+    return targets;
+  }
+
+  private int required(MulticastResponse response, int targets) {
+    if (response != MulticastResponse.QUORUM) {
+      return 1;
+    }
+    return quorum > 0 ? quorum : targets / 2 + 1;
+  }
+
+  /** 拆开其他 broker 返回的聚合响应 */
+  private static List<Payload> split(Payload composed) {
+    try {
+      return MulticastPayloads.split(composed);
+    } finally {
+      composed.release();
+    }
+  }
+
+  /** 成功响应不足时释放已收到的响应并返回空, 由调用方转为错误 */
+  private static Mono<Payload> compose(List<Payload> found, int required) {
+    if (found.size() < required) {
+      found.forEach(Payload::release);
+      return Mono.empty();
+    }
+    return Mono.just(MulticastPayloads.compose(found));
+  }
+
+  private <T> Mono<T> withTimeout(Mono<T> send) {
+    return Objects.isNull(timeout) ? send : send.timeout(timeout);
+  }
+
+  /**
+   * {@link Mono#timeout(Duration)} 用 onNextDropped 丢弃与超时竞争的响应, 不经过 discard 钩子. 响应先交给 owner, 从
+   * owner 取回才向下游发出, 结束时 owner 中剩余的和之后迟到的响应都会释放
+   */
+  private Mono<Payload> withResponseTimeout(Mono<Payload> send) {
+    if (Objects.isNull(timeout)) {
+      return send;
+    }
+    return Mono.defer(
+        () -> {
+          AtomicReference<Payload> owner = new AtomicReference<>();
+          return send.doOnNext(
+                  response -> {
+                    if (!owner.compareAndSet(null, response)) {
+                      response.release();
+                    }
+                  })
+              .timeout(timeout)
+              .<Payload>handle(
+                  (response, sink) -> {
+                    if (owner.compareAndSet(response, null)) {
+                      sink.next(response);
+                    }
+                  })
+              .doFinally(
+                  signal -> {
+                    Payload left = owner.getAndSet(CLOSED);
+                    if (Objects.nonNull(left)) {
+                      left.release();
+                    }
+                  });
+        });
+  }
+
+  private static <T> Mono<T> failed(RSocket rSocket, Throwable error, AtomicInteger failed) {
+    failed.incrementAndGet();
+    if (log.isDebugEnabled()) {
+      log.debug("MULTICAST 目标 {} 请求失败", rSocket, error);
+    }
+    return Mono.empty();
+  }
+
+  private static void logFailures(MulticastResult result) {
+    if (result.failed() > 0) {
+      log.warn("MULTICAST 扇出 {} 个目标, 失败 {} 个", result.targets(), result.failed());
+    }
+  }
+
+  /**
+   * 扇出投递结果
+   *
+   * @param targets 目标数量
+   * @param failed 失败或超时的目标数量
+   */
+  public record MulticastResult(int targets, int failed) {
+
+    /** 成功投递的目标数量 */
+    public int delivered() {
+      return targets - failed;
+    }
   }
 }
@@ -16,6 +16,7 @@
 package org.doodle.design.broker.rsocket;
 
 import io.rsocket.RSocket;
+import java.util.List;
 import lombok.AllArgsConstructor;
 import org.doodle.design.broker.frame.Address;
 import org.doodle.design.broker.frame.RoutingType;
@@ -31,6 +32,16 @@ public class MulticastBrokerRSocketLocator implements BrokerRSocketLocator {
 
   @Override
   public RSocket locate(Address address) {
-    return new MulticastBrokerRSocket(() -> query.query(address.getTags(), address.getQueryType()));
+    return new MulticastBrokerRSocket(() -> query.query(address), address.getMulticast());
+  }
+
+  @Override
+  public List<RSocket> route(Address address) {
+    return query.query(address);
+  }
+
+  @Override
+  public RSocket select(Address address, List<RSocket> routes) {
+    return new MulticastBrokerRSocket(() -> routes, address.getMulticast());
   }
 }
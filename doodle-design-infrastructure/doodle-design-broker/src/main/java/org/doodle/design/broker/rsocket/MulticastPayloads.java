@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.rsocket.Payload;
+import io.rsocket.util.ByteBufPayload;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.experimental.UtilityClass;
+
+/**
+ * MULTICAST 聚合响应编解码
+ *
+ * <p>每个响应依次编码为 [metadata 长度][data 长度][metadata][data], 长度为 4 字节, 没有 metadata 时长度为 -1.
+ */
+@UtilityClass
+public class MulticastPayloads {
+  private static final int NO_METADATA = -1;
+
+  /**
+   * 把多个响应合并为一个 payload, 零拷贝引用原响应内容, 调用后原响应均已释放
+   *
+   * @param payloads 目标响应
+   * @return 聚合响应
+   */
+  public static Payload compose(List<Payload> payloads) {
+    ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+    CompositeByteBuf data = allocator.compositeBuffer(Math.max(1, payloads.size() * 3));
+    try {
+      for (Payload payload : payloads) {
+        ByteBuf content = payload.sliceData();
+        ByteBuf header = allocator.buffer(Integer.BYTES * 2);
+        if (payload.hasMetadata()) {
+          ByteBuf metadata = payload.sliceMetadata();
+          header.writeInt(metadata.readableBytes()).writeInt(content.readableBytes());
+          data.addComponents(true, header, metadata.retain(), content.retain());
+        } else {
+          header.writeInt(NO_METADATA).writeInt(content.readableBytes());
+          data.addComponents(true, header, content.retain());
+        }
+      }
+      return ByteBufPayload.create(data);
+    } catch (RuntimeException e) {
+      data.release();
+      throw e;
+    } finally {
+      payloads.forEach(Payload::release);
+    }
+  }
+
+  /**
+   * 拆分聚合响应, 返回的每个 payload 都需要调用方释放, 原聚合响应仍由调用方释放
+   *
+   * @param payload 聚合响应
+   * @return 目标响应
+   */
+  public static List<Payload> split(Payload payload) {
+    ByteBuf data = payload.sliceData();
+    List<Payload> payloads = new ArrayList<>();
+    try {
+      while (data.isReadable()) {
+        int metadataLength = data.readInt();
+        int dataLength = data.readInt();
+        ByteBuf metadata =
+            metadataLength == NO_METADATA ? null : data.readRetainedSlice(metadataLength);
+        payloads.add(ByteBufPayload.create(data.readRetainedSlice(dataLength), metadata));
+      }
+      return payloads;
+    } catch (RuntimeException e) {
+      payloads.forEach(Payload::release);
+      throw e;
+    }
+  }
+}
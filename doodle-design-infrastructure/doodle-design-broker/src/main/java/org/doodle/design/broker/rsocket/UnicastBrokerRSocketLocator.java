@@ -16,15 +16,40 @@
 package org.doodle.design.broker.rsocket;
 
 import io.rsocket.RSocket;
+import java.util.EnumMap;
 import java.util.List;
-import lombok.AllArgsConstructor;
+import java.util.Map;
+import java.util.Objects;
 import org.doodle.design.broker.frame.Address;
+import org.doodle.design.broker.frame.LoadBalance;
 import org.doodle.design.broker.frame.RoutingType;
 import org.springframework.util.CollectionUtils;
 
-@AllArgsConstructor
+/** UNICAST 路由, 按 {@link Address#getLoadBalance()} 在匹配的路由中选择一个 */
 public class UnicastBrokerRSocketLocator implements BrokerRSocketLocator {
   private final BrokerRSocketQuery query;
+  private final Map<LoadBalance, UnicastLoadBalancer> loadBalancers;
+
+  public UnicastBrokerRSocketLocator(BrokerRSocketQuery query) {
+    this(query, Map.of());
+  }
+
+  /**
+   * @param query 路由检索
+   * @param loadBalancers 覆盖默认实现的选择策略, {@link LoadBalance#CONSISTENT_HASH} 依赖路由索引,
+   *     需要通过 {@link UnicastLoadBalancer#consistentHash(BrokerRSocketIndex)} 传入
+   */
+  public UnicastBrokerRSocketLocator(
+      BrokerRSocketQuery query, Map<LoadBalance, UnicastLoadBalancer> loadBalancers) {
+    this.query = query;
+    this.loadBalancers = new EnumMap<>(LoadBalance.class);
+    this.loadBalancers.put(LoadBalance.FIRST, UnicastLoadBalancer.first());
+    this.loadBalancers.put(LoadBalance.ROUND_ROBIN, UnicastLoadBalancer.roundRobin());
+    this.loadBalancers.put(LoadBalance.RANDOM, UnicastLoadBalancer.random());
+    this.loadBalancers.put(LoadBalance.LEAST_REQUESTS, UnicastLoadBalancer.leastRequests());
+    this.loadBalancers.put(LoadBalance.WEIGHTED, UnicastLoadBalancer.weighted());
+    this.loadBalancers.putAll(loadBalancers);
+  }
 
   @Override
   public boolean supports(RoutingType routingType) {
@@ -32,11 +57,27 @@ public class UnicastBrokerRSocketLocator implements BrokerRSocketLocator {
   }
 
   @Override
-  public RSocket locate(Address address) {
-    List<RSocket> found = query.query(address.getTags(), address.getQueryType());
-    if (CollectionUtils.isEmpty(found)) {
+  public List<RSocket> route(Address address) {
+    return query.query(address);
+  }
+
+  @Override
+  public RSocket select(Address address, List<RSocket> routes) {
+    if (CollectionUtils.isEmpty(routes)) {
       throw new IllegalArgumentException("检索不到路由");
     }
-    return found.get(0);
+    if (routes.size() == 1) {
+      return routes.get(0);
+    }
+    LoadBalance loadBalance = address.getLoadBalance();
+    UnicastLoadBalancer loadBalancer = loadBalancers.get(loadBalance);
+    if (Objects.isNull(loadBalancer)) {
+      // 新版本客户端的未知策略按 FIRST 处理
+      if (loadBalance != LoadBalance.UNRECOGNIZED) {
+        throw new IllegalStateException("未配置 UNICAST 选择策略: " + loadBalance);
+      }
+      loadBalancer = loadBalancers.get(LoadBalance.FIRST);
+    }
+    return loadBalancer.select(address, routes);
   }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.rsocket.RSocket;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.doodle.design.broker.frame.Address;
+
+/** UNICAST 路由在多个匹配的 RSocket 中选择请求目标 */
+@FunctionalInterface
+public interface UnicastLoadBalancer {
+
+  /**
+   * 选择请求目标
+   *
+   * @param routes 检索到的路由, 不为空
+   * @return 请求目标
+   */
+  RSocket select(List<RSocket> routes);
+
+  /**
+   * 按路由地址选择请求目标, 默认忽略地址
+   *
+   * @param address 路由地址
+   * @param routes 检索到的路由, 不为空
+   * @return 请求目标
+   */
+  default RSocket select(Address address, List<RSocket> routes) {
+    return select(routes);
+  }
+
+  /** 总是选择内部索引最小的路由 */
+  static UnicastLoadBalancer first() {
+    return routes -> routes.get(0);
+  }
+
+  /** 轮询, 所有地址共享一个计数器 */
+  static UnicastLoadBalancer roundRobin() {
+    AtomicInteger next = new AtomicInteger();
+    return routes -> routes.get(Math.floorMod(next.getAndIncrement(), routes.size()));
+  }
+
+  static UnicastLoadBalancer random() {
+    return routes -> routes.get(ThreadLocalRandom.current().nextInt(routes.size()));
+  }
+
+  /** 随机取两个路由, 选择处理中请求较少的一个 */
+  static UnicastLoadBalancer leastRequests() {
+    return new LeastRequestsLoadBalancer();
+  }
+
+  /**
+   * 按 {@link Address#getShardKey()} 一致性哈希, 哈希环随索引变化增量更新
+   *
+   * @param index 路由索引, 注册监听器并回放已有路由
+   */
+  static UnicastLoadBalancer consistentHash(BrokerRSocketIndex index) {
+    return consistentHash(index, ConsistentHashLoadBalancer.DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * 按 {@link Address#getShardKey()} 一致性哈希, 哈希环随索引变化增量更新
+   *
+   * @param index 路由索引, 注册监听器并回放已有路由
+   * @param virtualNodes 每个路由的虚拟节点数量
+   */
+  static UnicastLoadBalancer consistentHash(BrokerRSocketIndex index, int virtualNodes) {
+    ConsistentHashLoadBalancer loadBalancer = new ConsistentHashLoadBalancer(virtualNodes);
+    index.addListener(loadBalancer);
+    return loadBalancer;
+  }
+
+  /** 按 {@link RSocket#availability()} 加权随机, 全部不可用时退化为随机 */
+  static UnicastLoadBalancer weighted() {
+    return routes -> {
+      int size = routes.size();
+      if (size == 1) {
+        return routes.get(0);
+      }
+      double total = 0;
+      for (int i = 0; i < size; i++) {
+        total += Math.max(routes.get(i).availability(), 0);
+      }
+      if (total <= 0) {
+        return routes.get(ThreadLocalRandom.current().nextInt(size));
+      }
+      double point = ThreadLocalRandom.current().nextDouble(total);
+      for (int i = 0; i < size; i++) {
+        point -= Math.max(routes.get(i).availability(), 0);
+        if (point < 0) {
+          return routes.get(i);
+        }
+      }
+      return routes.get(size - 1);
+    };
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.rsocket.Payload;
+import io.rsocket.RSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.doodle.design.broker.frame.Tags;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+/** {@link BrokerAdmission} 的令牌, 限制修改与计数清理测试, 速率足够慢, 测试期间不会补充令牌 */
+class BrokerAdmissionTest {
+  private static final double SLOW = 0.001;
+
+  private final TrackedBuffers buffers = new TrackedBuffers();
+  private final List<Sinks.One<Payload>> pending = new CopyOnWriteArrayList<>();
+
+  @Test
+  void rejectionByOneBoundKeepsTokensOfOthers() {
+    // 调用方 tag 的遍历顺序不确定, 两个方向各验证一次
+    assertTokensKept("a", "b");
+    assertTokensKept("b", "a");
+    buffers.assertReleased();
+  }
+
+  private void assertTokensKept(String exhausted, String kept) {
+    BrokerAdmission admission = new BrokerAdmission();
+    admission.limit("a", BrokerAdmission.Limit.rate(SLOW, 3));
+    admission.limit("b", BrokerAdmission.Limit.rate(SLOW, 3));
+    RSocket both = guard(admission, Map.of("a", "1", "b", "1"));
+
+    assertEquals(3, fireAndForget(guard(admission, Map.of(exhausted, "1")), 3));
+    assertEquals(0, fireAndForget(both, 10));
+    assertEquals(3, fireAndForget(guard(admission, Map.of(kept, "1")), 10));
+    assertEquals(17, admission.stats().rejectedRate());
+  }
+
+  @Test
+  void unchangedRateKeepsTokens() {
+    BrokerAdmission admission = new BrokerAdmission();
+    admission.limit("server_id", BrokerAdmission.Limit.rate(SLOW, 2));
+    RSocket rSocket = guard(admission, Map.of("server_id", "s1"));
+    assertEquals(2, fireAndForget(rSocket, 5));
+
+    // 相同的速率与只修改在途数量都不重新允许突发
+    admission.limit("server_id", BrokerAdmission.Limit.rate(SLOW, 2));
+    assertEquals(0, fireAndForget(rSocket, 5));
+    admission.limit("server_id", "s1", new BrokerAdmission.Limit(SLOW, 2, 10));
+    assertEquals(0, fireAndForget(guard(admission, Map.of("server_id", "s1")), 5));
+    assertEquals(0, fireAndForget(rSocket, 5));
+
+    admission.limit("server_id", "s1", BrokerAdmission.Limit.rate(SLOW, 4));
+    assertEquals(4, fireAndForget(rSocket, 5));
+    buffers.assertReleased();
+  }
+
+  @Test
+  void idleTenantsAreEvicted() {
+    BrokerAdmission admission = new BrokerAdmission();
+    admission.limit("server_id", BrokerAdmission.Limit.concurrency(1));
+    admission.limit("zone", BrokerAdmission.Limit.rate(SLOW, 1));
+    RSocket busy = guard(admission, Map.of("server_id", "busy"));
+    RSocket limited = guard(admission, Map.of("zone", "z1"));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(1, fireAndForget(guard(admission, Map.of("server_id", "idle-" + i)), 1));
+    }
+    busy.requestResponse(buffers.payload("q")).subscribe(Payload::release);
+    assertEquals(1, fireAndForget(limited, 1));
+
+    // 在途请求与未回满的令牌都保留
+    assertEquals(10, admission.evictIdle());
+    assertEquals(2, admission.stats().tenants());
+    assertEquals(0, fireAndForget(limited, 1));
+
+    respondAll();
+    assertEquals(1, admission.evictIdle());
+    // 持有被移除计数的连接重新解析, 限制仍然生效
+    busy.requestResponse(buffers.payload("q")).subscribe(Payload::release);
+    assertThrows(
+        BrokerRejectedException.class, () -> busy.requestResponse(buffers.payload("q")).block());
+    assertEquals(2, admission.stats().tenants());
+    respondAll();
+    buffers.assertReleased();
+  }
+
+  @Test
+  void rejectedChannelReleasesPayloads() {
+    BrokerAdmission admission = new BrokerAdmission();
+    admission.limit("server_id", BrokerAdmission.Limit.rate(SLOW, 1));
+    RSocket rSocket = guard(admission, Map.of("server_id", "s1"));
+    assertEquals(1, fireAndForget(rSocket, 1));
+
+    Flux<Payload> payloads = Flux.just(buffers.payload("first"), buffers.payload("second"));
+    assertThrows(
+        BrokerRejectedException.class, () -> rSocket.requestChannel(payloads).blockLast());
+    buffers.assertReleased();
+  }
+
+  @Test
+  void tenantsAreSweptWhenTheyGrow() {
+    BrokerAdmission admission = new BrokerAdmission();
+    admission.limit("server_id", BrokerAdmission.Limit.concurrency(1));
+    for (int i = 0; i < BrokerAdmission.SWEEP_THRESHOLD * 5; i++) {
+      assertEquals(1, fireAndForget(guard(admission, Map.of("server_id", "s" + i)), 1));
+    }
+    assertTrue(admission.stats().tenants() <= BrokerAdmission.SWEEP_THRESHOLD * 2);
+    buffers.assertReleased();
+  }
+
+  private RSocket guard(BrokerAdmission admission, Map<String, String> tags) {
+    return admission.guard(Tags.newBuilder().putAllTag(tags).build(), new Target());
+  }
+
+  /** 返回放行的请求数量 */
+  private int fireAndForget(RSocket rSocket, int requests) {
+    int admitted = 0;
+    for (int i = 0; i < requests; i++) {
+      try {
+        rSocket.fireAndForget(buffers.payload("q")).block();
+        admitted++;
+      } catch (BrokerRejectedException e) {
+        // 被拒绝的请求由准入控制释放
+      }
+    }
+    return admitted;
+  }
+
+  private void respondAll() {
+    for (Sinks.One<Payload> sink : pending) {
+      sink.tryEmitValue(buffers.payload("r"));
+    }
+    pending.clear();
+  }
+
+  /** 目标按 RSocket 约定释放收到的请求 */
+  private final class Target implements RSocket {
+
+    @Override
+    public Mono<Void> fireAndForget(Payload payload) {
+      payload.release();
+      return Mono.empty();
+    }
+
+    @Override
+    public Mono<Payload> requestResponse(Payload payload) {
+      payload.release();
+      Sinks.One<Payload> sink = Sinks.one();
+      pending.add(sink);
+      return sink.asMono();
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.rsocket.Closeable;
+import io.rsocket.Payload;
+import io.rsocket.RSocket;
+import io.rsocket.SocketAcceptor;
+import io.rsocket.core.RSocketConnector;
+import io.rsocket.core.RSocketServer;
+import io.rsocket.exceptions.ApplicationErrorException;
+import io.rsocket.metadata.CompositeMetadataCodec;
+import io.rsocket.metadata.WellKnownMimeType;
+import io.rsocket.transport.ClientTransport;
+import io.rsocket.transport.netty.client.TcpClientTransport;
+import io.rsocket.transport.netty.server.CloseableChannel;
+import io.rsocket.transport.netty.server.TcpServerTransport;
+import io.rsocket.util.ByteBufPayload;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.doodle.design.broker.frame.BrokerFrame;
+import org.doodle.design.broker.frame.BrokerFrameExtractor;
+import org.doodle.design.broker.frame.BrokerFrameMimeTypes;
+import org.doodle.design.broker.frame.BrokerFrameUtils;
+import org.doodle.design.broker.frame.MulticastOptions;
+import org.doodle.design.broker.frame.MulticastResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+/** 三个 broker 在本机 TCP 上互联, 验证转发, 源端汇总与转发请求不再转发 */
+class BrokerFederationTest {
+  private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+  private final List<Closeable> closeables = new ArrayList<>();
+  private final Map<String, AtomicInteger> received = new ConcurrentHashMap<>();
+  private Broker a;
+  private Broker b;
+  private Broker c;
+
+  @BeforeEach
+  void setUp() {
+    a = new Broker("A");
+    b = new Broker("B");
+    c = new Broker("C");
+    link(a, b);
+    link(a, c);
+    link(b, c);
+    server(a, "a0", "z1");
+    server(b, "b0", "z1");
+    server(b, "b1", "z3");
+    server(c, "c0", "z1");
+    server(c, "c1", "z2");
+    await(() -> a.remoteRoutes() == 4 && b.remoteRoutes() == 3 && c.remoteRoutes() == 3);
+  }
+
+  @AfterEach
+  void tearDown() {
+    closeables.forEach(Closeable::dispose);
+  }
+
+  @Test
+  void unicastIsForwardedToOwningBroker() {
+    RSocket client = client(a);
+
+    assertEquals("c1", requestResponse(client, BrokerFrameUtils.unicast(Map.of("zone", "z2"))));
+    // 本地有匹配路由时不转发
+    assertEquals("a0", requestResponse(client, BrokerFrameUtils.unicast(Map.of("zone", "z1"))));
+    assertEquals(
+        "b0",
+        requestResponse(
+            client,
+            BrokerFrameUtils.unicast(Map.of("zone", "z1", BrokerFederation.BROKER_TAG, "B"))));
+  }
+
+  @Test
+  void allAggregatesEveryRemoteTargetAtOrigin() {
+    RSocket client = client(a);
+
+    Payload response = client.requestResponse(multicast(MulticastResponse.ALL, 0)).block(TIMEOUT);
+    // 远端 broker 的组合响应被拆开汇总, 不嵌套在源端的组合响应中
+    assertEquals(List.of("a0", "b0", "b1", "c0", "c1"), splitAndRelease(response));
+  }
+
+  @Test
+  void quorumCountsRemoteTargetsAtOrigin() {
+    RSocket client = client(a);
+
+    // 按 broker 计数时只有 3 个目标, 5 的 QUORUM 会被拒绝
+    Payload response =
+        client.requestResponse(multicast(MulticastResponse.QUORUM, 5)).block(TIMEOUT);
+    assertEquals(List.of("a0", "b0", "b1", "c0", "c1"), splitAndRelease(response));
+
+    assertThrows(
+        ApplicationErrorException.class,
+        () -> client.requestResponse(multicast(MulticastResponse.QUORUM, 6)).block(TIMEOUT));
+  }
+
+  @Test
+  void fireAndForgetReachesEveryTargetOnce() {
+    RSocket client = client(a);
+
+    client
+        .fireAndForget(payload("all", BrokerFrameUtils.multicast(Map.of("kind", "game"))))
+        .block(TIMEOUT);
+    await(() -> received.values().stream().mapToInt(AtomicInteger::get).sum() >= 5);
+    for (String name : List.of("a0", "b0", "b1", "c0", "c1")) {
+      assertEquals(1, received.get(name).get(), name);
+    }
+  }
+
+  @Test
+  void forwardedRequestIsOnlyRoutedLocally() {
+    // 直接在 B 的互联连接上发送转发请求, 目标只在 C 上, B 只在本地路由而不再转发给 C
+    Broker d = new Broker("D");
+    RSocket peer = d.federation.connect(b.peerTransport).block(TIMEOUT);
+    closeables.add(peer);
+
+    assertThrows(
+        ApplicationErrorException.class,
+        () -> requestResponse(peer, BrokerFrameUtils.unicast(Map.of("zone", "z2"))));
+    assertEquals("b0", requestResponse(peer, BrokerFrameUtils.unicast(Map.of("zone", "z1"))));
+    assertEquals(Set.of("b0"), received.keySet());
+  }
+
+  private void link(Broker from, Broker to) {
+    closeables.add(from.federation.connect(to.peerTransport).block(TIMEOUT));
+  }
+
+  private void server(Broker broker, String name, String zone) {
+    RSocket handler =
+        new RSocket() {
+          @Override
+          public Mono<Payload> requestResponse(Payload payload) {
+            payload.release();
+            received.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+            return Mono.just(ByteBufPayload.create(name));
+          }
+
+          @Override
+          public Mono<Void> fireAndForget(Payload payload) {
+            payload.release();
+            received.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+            return Mono.empty();
+          }
+        };
+    BrokerFrame setup = BrokerFrameUtils.setup(Map.of("zone", zone, "kind", "game"), name);
+    connect(broker, setup, SocketAcceptor.with(handler));
+  }
+
+  private RSocket client(Broker broker) {
+    BrokerFrame setup = BrokerFrameUtils.setup(Map.of("kind", "client"), "client-" + broker.id);
+    return connect(broker, setup, SocketAcceptor.with(new RSocket() {}));
+  }
+
+  private RSocket connect(Broker broker, BrokerFrame setup, SocketAcceptor acceptor) {
+    RSocket rSocket =
+        RSocketConnector.create()
+            .metadataMimeType(WellKnownMimeType.MESSAGE_RSOCKET_COMPOSITE_METADATA.getString())
+            .setupPayload(payload("", setup))
+            .acceptor(acceptor)
+            .connect(broker.clientTransport)
+            .block(TIMEOUT);
+    closeables.add(rSocket);
+    return rSocket;
+  }
+
+  private Payload multicast(MulticastResponse response, int quorum) {
+    MulticastOptions options =
+        MulticastOptions.newBuilder().setResponse(response).setQuorum(quorum).build();
+    return payload("hi", BrokerFrameUtils.multicast(Map.of("kind", "game"), options));
+  }
+
+  private static String requestResponse(RSocket rSocket, BrokerFrame frame) {
+    Payload response = rSocket.requestResponse(payload("hi", frame)).block(TIMEOUT);
+    try {
+      return response.getDataUtf8();
+    } finally {
+      response.release();
+    }
+  }
+
+  private static Payload payload(String data, BrokerFrame frame) {
+    ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+    CompositeByteBuf metadata = allocator.compositeBuffer();
+    CompositeMetadataCodec.encodeAndAddMetadata(
+        metadata,
+        allocator,
+        BrokerFrameMimeTypes.BROKER_FRAME_MIME_TYPE.toString(),
+        Unpooled.wrappedBuffer(frame.toByteArray()));
+    return ByteBufPayload.create(Unpooled.copiedBuffer(data.getBytes()), metadata);
+  }
+
+  private static List<String> splitAndRelease(Payload response) {
+    List<String> found = new ArrayList<>();
+    for (Payload payload : MulticastPayloads.split(response)) {
+      found.add(payload.getDataUtf8());
+      payload.release();
+    }
+    response.release();
+    found.sort(null);
+    return found;
+  }
+
+  private static void await(BooleanSupplier condition) {
+    long deadline = System.nanoTime() + TIMEOUT.toNanos();
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "等待超时");
+      Thread.onSpinWait();
+    }
+  }
+
+  /** 一个 broker: 客户端端口与互联端口, 本地路由之外组合其他 broker 同步来的路由 */
+  private final class Broker {
+    private final String id;
+    private final BrokerRSocketIndex index = new BrokerRSocketIndex();
+    private final BrokerFederation federation;
+    private final ClientTransport clientTransport;
+    private final ClientTransport peerTransport;
+
+    Broker(String id) {
+      this.id = id;
+      CombinedBrokerRSocketQuery local = new CombinedBrokerRSocketQuery(index);
+      BrokerRoutingRSocketFactory localRouting =
+          new BrokerRoutingRSocketFactory(locator(local, local), new BrokerFrameExtractor(null));
+      BrokerRSocketFactory[] routing = new BrokerRSocketFactory[1];
+      BrokerSocketAcceptor acceptor =
+          new BrokerSocketAcceptor(
+              index,
+              new BrokerFrameExtractor(null),
+              () -> routing[0].create(),
+              Map.of(BrokerFederation.BROKER_TAG, id));
+      this.federation = new BrokerFederation(id, localRouting, acceptor.events());
+      BrokerRouteCache routeCache =
+          new BrokerRouteCache(() -> index.version() + federation.remoteIndex().version(), 64);
+      routing[0] =
+          new BrokerRoutingRSocketFactory(
+              locator(federation.unicastQuery(local), federation.multicastQuery(local)),
+              new BrokerFrameExtractor(null),
+              routeCache);
+      this.clientTransport = bind(acceptor);
+      this.peerTransport = bind(federation);
+    }
+
+    int remoteRoutes() {
+      return federation.remoteIndex().size();
+    }
+
+    private ClientTransport bind(SocketAcceptor acceptor) {
+      CloseableChannel channel =
+          RSocketServer.create(acceptor)
+              .bind(TcpServerTransport.create("localhost", 0))
+              .block(TIMEOUT);
+      closeables.add(channel);
+      return TcpClientTransport.create(channel.address());
+    }
+
+    private BrokerRSocketLocator locator(BrokerRSocketQuery unicast, BrokerRSocketQuery multicast) {
+      return new CompositeBrokerRSocketLocator(
+          List.of(
+              new UnicastBrokerRSocketLocator(unicast),
+              new MulticastBrokerRSocketLocator(multicast)));
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.rsocket.RSocket;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import org.doodle.design.broker.frame.Address;
+import org.doodle.design.broker.frame.RoutingType;
+import org.junit.jupiter.api.Test;
+
+/** {@link BrokerRouteCache} 已满时的淘汰 */
+class BrokerRouteCacheTest {
+  private static final int MAXIMUM_SIZE = 64;
+  private static final BrokerRSocketLocator LOCATOR =
+      new BrokerRSocketLocator() {
+        @Override
+        public boolean supports(RoutingType routingType) {
+          return true;
+        }
+
+        @Override
+        public List<RSocket> route(Address address) {
+          return List.of();
+        }
+
+        @Override
+        public RSocket select(Address address, List<RSocket> routes) {
+          return null;
+        }
+      };
+
+  private final AtomicLong version = new AtomicLong();
+  private final BrokerRouteCache cache = new BrokerRouteCache(version::get, MAXIMUM_SIZE);
+
+  @Test
+  void fullCacheEvictsBatchInsteadOfClearing() {
+    for (int i = 0; i <= MAXIMUM_SIZE; i++) {
+      cache.resolve(frame(i), Address.getDefaultInstance(), LOCATOR);
+    }
+
+    int kept = 0;
+    for (int i = 0; i < MAXIMUM_SIZE; i++) {
+      if (Objects.nonNull(cache.get(frame(i)))) {
+        kept++;
+      }
+    }
+    assertEquals(MAXIMUM_SIZE - MAXIMUM_SIZE / 8, kept);
+    assertNotNull(cache.get(frame(MAXIMUM_SIZE)));
+    assertTrue(cache.stats().entries() <= MAXIMUM_SIZE);
+  }
+
+  @Test
+  void staleRoutesAreEvictedFirst() {
+    for (int i = 0; i < MAXIMUM_SIZE; i++) {
+      cache.resolve(frame(i), Address.getDefaultInstance(), LOCATOR);
+    }
+    version.incrementAndGet();
+    assertNull(cache.get(frame(0)));
+
+    cache.resolve(frame(MAXIMUM_SIZE), Address.getDefaultInstance(), LOCATOR);
+    assertEquals(1, cache.stats().entries());
+  }
+
+  private static ByteBuf frame(int i) {
+    return Unpooled.copyInt(i);
+  }
+}
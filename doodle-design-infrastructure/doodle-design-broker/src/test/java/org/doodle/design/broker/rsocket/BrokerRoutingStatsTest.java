@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.rsocket.frame.FrameType;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.doodle.design.broker.rsocket.BrokerRoutingStats.RouteSnapshot;
+import org.junit.jupiter.api.Test;
+
+class BrokerRoutingStatsTest {
+
+  @Test
+  void routesBeyondLimitAreMerged() {
+    BrokerRoutingStats stats = new BrokerRoutingStats(2);
+    for (int i = 0; i < 10; i++) {
+      stats.routed(FrameType.REQUEST_RESPONSE, "route-" + i, 1, 10);
+      stats.completed(FrameType.REQUEST_RESPONSE, "route-" + i, 100, true);
+    }
+    stats.routed(FrameType.REQUEST_RESPONSE, "route-0", 1, 10);
+    stats.routed(FrameType.REQUEST_STREAM, "route-9", 1, 10);
+
+    Map<String, RouteSnapshot> requestResponse =
+        stats.routes().stream()
+            .filter(snapshot -> snapshot.interaction() == FrameType.REQUEST_RESPONSE)
+            .collect(Collectors.toMap(RouteSnapshot::route, Function.identity()));
+    assertEquals(3, requestResponse.size());
+    assertEquals(2, requestResponse.get("route-0").requests());
+    assertEquals(1, requestResponse.get("route-1").requests());
+    RouteSnapshot overflow =
+        requestResponse.get(BrokerRoutingStats.OVERFLOW_ROUTE);
+    assertEquals(8, overflow.requests());
+    assertEquals(80, overflow.bytesIn());
+    assertEquals(8, overflow.latency().count());
+    assertEquals(4, stats.routes().size());
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.rsocket.Payload;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Mono;
+
+/** {@link BrokerSingleFlight#requestResponse(ByteBuf, Payload, Function)} 的合并, 取消与引用泄漏测试 */
+class BrokerSingleFlightTest {
+  private static final ByteBuf FRAME = Unpooled.copiedBuffer("frame", StandardCharsets.UTF_8);
+
+  private final TrackedBuffers buffers = new TrackedBuffers();
+  private final BrokerSingleFlight singleFlight = new BrokerSingleFlight(Map.of("svc", "*"));
+  private final List<Subscriber<? super Payload>> pending = new CopyOnWriteArrayList<>();
+  private final AtomicInteger calls = new AtomicInteger();
+  private final AtomicInteger cancels = new AtomicInteger();
+
+  @Test
+  void identicalRequestsShareOneUpstreamCall() {
+    List<String> received = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      singleFlight
+          .requestResponse(FRAME, buffers.payload("q"), this::upstream)
+          .subscribe(response -> received.add(dataAndRelease(response)));
+    }
+    singleFlight
+        .requestResponse(FRAME, buffers.payload("other"), this::upstream)
+        .subscribe(response -> received.add(dataAndRelease(response)));
+
+    assertEquals(2, calls.get());
+    assertEquals(new BrokerSingleFlight.SingleFlightStats(2, 2, 2), singleFlight.stats());
+    respondAll();
+    assertEquals(List.of("r", "r", "r", "r"), received);
+    assertEquals(0, singleFlight.stats().inFlight());
+    buffers.assertReleased();
+  }
+
+  @Test
+  void upstreamIsCancelledOnlyAfterLastWaiterLeaves() {
+    Disposable first = releasing(singleFlight.requestResponse(FRAME, request(), this::upstream));
+    Disposable second = releasing(singleFlight.requestResponse(FRAME, request(), this::upstream));
+
+    first.dispose();
+    assertEquals(0, cancels.get());
+    second.dispose();
+    assertEquals(1, cancels.get());
+    assertEquals(0, singleFlight.stats().inFlight());
+
+    // 被取消的上游不再阻塞相同的请求
+    List<String> received = new CopyOnWriteArrayList<>();
+    singleFlight
+        .requestResponse(FRAME, request(), this::upstream)
+        .subscribe(response -> received.add(dataAndRelease(response)));
+    assertEquals(2, calls.get());
+    respondAll();
+    assertEquals(List.of("r"), received);
+    buffers.assertReleased();
+  }
+
+  @Test
+  void throwingUpstreamFailsWaitersAndReleasesRequest() {
+    Mono<Payload> response =
+        singleFlight.requestResponse(
+            FRAME,
+            request(),
+            payload -> {
+              throw new IllegalStateException("upstream");
+            });
+
+    assertThrows(IllegalStateException.class, response::block);
+    assertEquals(0, singleFlight.stats().inFlight());
+    singleFlight
+        .requestResponse(FRAME, request(), this::upstream)
+        .subscribe(BrokerSingleFlightTest::dataAndRelease);
+    assertEquals(1, calls.get());
+    respondAll();
+    buffers.assertReleased();
+  }
+
+  @Test
+  void upstreamErrorIsDeliveredToEveryWaiter() {
+    List<Throwable> errors = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      singleFlight
+          .requestResponse(FRAME, request(), this::upstream)
+          .subscribe(BrokerSingleFlightTest::dataAndRelease, errors::add);
+    }
+    pending.forEach(subscriber -> subscriber.onError(new IllegalStateException("upstream")));
+
+    assertEquals(3, errors.size());
+    assertEquals(0, singleFlight.stats().inFlight());
+    buffers.assertReleased();
+  }
+
+  @Test
+  void cancelRacingResponseReleasesEveryCopy() throws Exception {
+    for (int round = 0; round < 500; round++) {
+      List<Disposable> waiters = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        waiters.add(releasing(singleFlight.requestResponse(FRAME, request(), this::upstream)));
+      }
+      CompletableFuture<Void> cancel =
+          CompletableFuture.runAsync(() -> waiters.forEach(Disposable::dispose));
+      respondAll();
+      cancel.get();
+    }
+    assertEquals(0, singleFlight.stats().inFlight());
+    assertTrue(calls.get() >= 500);
+    buffers.assertReleased();
+  }
+
+  private Payload request() {
+    return buffers.payload("q");
+  }
+
+  /** 上游按 RSocket 约定释放请求, 忽略取消信号, 由 {@link #respondAll()} 响应 */
+  private Mono<Payload> upstream(Payload payload) {
+    payload.release();
+    calls.incrementAndGet();
+    return Mono.fromDirect(
+        subscriber -> {
+          subscriber.onSubscribe(
+              new Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {
+                  cancels.incrementAndGet();
+                }
+              });
+          pending.add(subscriber);
+        });
+  }
+
+  /** 被取消的上游也会响应, 模拟与取消竞争的响应 */
+  private void respondAll() {
+    for (Subscriber<? super Payload> subscriber : pending) {
+      subscriber.onNext(buffers.payload("r"));
+      subscriber.onComplete();
+    }
+    pending.clear();
+  }
+
+  private static String dataAndRelease(Payload response) {
+    String data = response.getDataUtf8();
+    response.release();
+    return data;
+  }
+
+  /** 像 RSocket responder 一样释放取消后仍到达的响应 */
+  private static Disposable releasing(Mono<Payload> response) {
+    return response.subscribeWith(
+        new BaseSubscriber<>() {
+          @Override
+          protected void hookOnNext(Payload payload) {
+            payload.release();
+          }
+
+          @Override
+          protected void hookOnError(Throwable throwable) {}
+        });
+  }
+}
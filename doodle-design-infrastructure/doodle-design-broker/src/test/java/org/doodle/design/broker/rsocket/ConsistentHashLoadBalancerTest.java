@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.rsocket.RSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.doodle.design.broker.frame.Address;
+import org.doodle.design.broker.frame.Tags;
+import org.doodle.design.broker.frame.UUID;
+import org.junit.jupiter.api.Test;
+
+/** 按检索结果构建的哈希环与在全部路由上顺时针查找的结果一致 */
+class ConsistentHashLoadBalancerTest {
+  private static final int VIRTUAL_NODES = 16;
+
+  private final BrokerRSocketIndex index = new BrokerRSocketIndex();
+  private final ConsistentHashLoadBalancer loadBalancer =
+      (ConsistentHashLoadBalancer) UnicastLoadBalancer.consistentHash(index, VIRTUAL_NODES);
+  private final List<UUID> ids = new ArrayList<>();
+  private final List<RSocket> rSockets = new ArrayList<>();
+
+  @Test
+  void selectsFirstMatchingNodeClockwise() {
+    for (int i = 0; i < 20; i++) {
+      put("r" + i);
+    }
+    List<RSocket> all = List.copyOf(rSockets);
+    List<RSocket> slice = List.of(rSockets.get(3), rSockets.get(7), rSockets.get(11));
+    for (int key = 0; key < 500; key++) {
+      Address address = address("user-" + key);
+      assertSame(reference(address, all), loadBalancer.select(address, all));
+      assertSame(reference(address, slice), loadBalancer.select(address, slice));
+      // 内容相同的新列表命中同一个哈希环
+      assertSame(reference(address, slice), loadBalancer.select(address, new ArrayList<>(slice)));
+    }
+  }
+
+  @Test
+  void removedRouteOnlyMovesItsOwnKeys() {
+    for (int i = 0; i < 10; i++) {
+      put("r" + i);
+    }
+    List<RSocket> before = List.copyOf(rSockets);
+    List<RSocket> selected = new ArrayList<>();
+    for (int key = 0; key < 1000; key++) {
+      selected.add(loadBalancer.select(address("user-" + key), before));
+    }
+    RSocket removed = rSockets.get(4);
+    index.remove(ids.get(4));
+    List<RSocket> after = new ArrayList<>(before);
+    after.remove(removed);
+    for (int key = 0; key < 1000; key++) {
+      RSocket target = loadBalancer.select(address("user-" + key), after);
+      if (selected.get(key) != removed) {
+        assertSame(selected.get(key), target);
+      }
+    }
+  }
+
+  @Test
+  void routesOutsideIndexFallBackToModulo() {
+    put("r0");
+    put("r1");
+    RSocket remote = new RSocket() {};
+    List<RSocket> routes = List.of(rSockets.get(0), remote, rSockets.get(1));
+    for (int key = 0; key < 100; key++) {
+      Address address = address("user-" + key);
+      long hash = ConsistentHashLoadBalancer.hash(address.getShardKey());
+      assertSame(routes.get((int) Math.floorMod(hash, 3L)), loadBalancer.select(address, routes));
+    }
+  }
+
+  @Test
+  void reconnectKeepsRingPosition() {
+    put("r0");
+    put("r1");
+    put("r2");
+    List<RSocket> routes = List.copyOf(rSockets);
+    Address address = address("user-1");
+    int owner = routes.indexOf(loadBalancer.select(address, routes));
+
+    RSocket reconnected = new RSocket() {};
+    index.put(ids.get(owner), reconnected, Tags.getDefaultInstance());
+    List<RSocket> current = new ArrayList<>(routes);
+    current.set(owner, reconnected);
+    assertSame(reconnected, loadBalancer.select(address, current));
+    assertEquals(3, index.size());
+  }
+
+  private void put(String id) {
+    UUID uuid = UUID.newBuilder().setId(id).build();
+    RSocket rSocket = new RSocket() {};
+    index.put(uuid, rSocket, Tags.getDefaultInstance());
+    ids.add(uuid);
+    rSockets.add(rSocket);
+  }
+
+  /** 全部路由的虚拟节点放在一个环上, 顺时针找到第一个属于检索结果的路由 */
+  private RSocket reference(Address address, List<RSocket> routes) {
+    TreeMap<Long, RSocket> ring = new TreeMap<>();
+    for (int i = 0; i < ids.size(); i++) {
+      for (int node = 0; node < VIRTUAL_NODES; node++) {
+        ring.put(ConsistentHashLoadBalancer.hash(ids.get(i).getId() + '#' + node), rSockets.get(i));
+      }
+    }
+    long hash = ConsistentHashLoadBalancer.hash(address.getShardKey());
+    for (Map.Entry<Long, RSocket> entry : ring.tailMap(hash, true).entrySet()) {
+      if (routes.contains(entry.getValue())) {
+        return entry.getValue();
+      }
+    }
+    for (Map.Entry<Long, RSocket> entry : ring.entrySet()) {
+      if (routes.contains(entry.getValue())) {
+        return entry.getValue();
+      }
+    }
+    throw new AssertionError("检索结果不在哈希环上");
+  }
+
+  private static Address address(String shardKey) {
+    return Address.newBuilder().setShardKey(shardKey).build();
+  }
+}
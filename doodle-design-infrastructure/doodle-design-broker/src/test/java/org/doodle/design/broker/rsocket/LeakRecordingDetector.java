@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import io.netty.util.ResourceLeakDetector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 记录 Netty 报告的泄漏, 供测试断言
+ *
+ * <p>Netty 只在第一次创建 ResourceLeakDetector 前读取 {@value #PROPERTY}, 由 surefire 的
+ * systemPropertyVariables 设置, 保证先于任何 ByteBuf 生效.
+ */
+public class LeakRecordingDetector<T> extends ResourceLeakDetector<T> {
+  static final String PROPERTY = "io.netty.customResourceLeakDetector";
+
+  private static final Queue<String> LEAKS = new ConcurrentLinkedQueue<>();
+  private static volatile boolean installed;
+
+  public LeakRecordingDetector(Class<?> resourceType, int samplingInterval) {
+    super(resourceType, samplingInterval);
+    installed = true;
+  }
+
+  static boolean installed() {
+    return installed;
+  }
+
+  /** 取出并清空已报告的泄漏 */
+  static List<String> drain() {
+    List<String> leaks = new ArrayList<>();
+    for (String leak = LEAKS.poll(); Objects.nonNull(leak); leak = LEAKS.poll()) {
+      leaks.add(leak);
+    }
+    return leaks;
+  }
+
+  /** 不依赖日志级别, 总是检查泄漏 */
+  @Override
+  protected boolean needReport() {
+    return true;
+  }
+
+  @Override
+  protected void reportTracedLeak(String resourceType, String records) {
+    LEAKS.add(resourceType + records);
+    super.reportTracedLeak(resourceType, records);
+  }
+
+  @Override
+  protected void reportUntracedLeak(String resourceType) {
+    LEAKS.add(resourceType);
+    super.reportUntracedLeak(resourceType);
+  }
+}
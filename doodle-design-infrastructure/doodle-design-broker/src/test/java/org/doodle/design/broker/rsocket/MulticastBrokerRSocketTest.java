@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.rsocket.Payload;
+import io.rsocket.RSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import org.doodle.design.broker.frame.MulticastOptions;
+import org.doodle.design.broker.frame.MulticastResponse;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+/**
+ * {@link MulticastBrokerRSocket#requestResponse(Payload)} 的引用泄漏测试
+ *
+ * <p>请求与目标响应都来自 {@link TrackedBuffers}, 每个用例结束时要求全部 ByteBuf 已释放, 包括被取消, 超时, 迟到和失败的目标.
+ */
+class MulticastBrokerRSocketTest {
+  private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+  private final TrackedBuffers buffers = new TrackedBuffers();
+  private final List<Subscriber<? super Payload>> pending = new CopyOnWriteArrayList<>();
+
+  @Test
+  void firstSuccessReleasesRequestAndLateResponses() {
+    MulticastBrokerRSocket multicast =
+        multicast(options(MulticastResponse.FIRST_SUCCESS), failure(), success("a"), late());
+
+    Payload response = multicast.requestResponse(request()).block(TIMEOUT);
+    assertEquals("a", response.getDataUtf8());
+    response.release();
+    completePending();
+
+    buffers.assertReleased();
+  }
+
+  @Test
+  void firstSuccessFailsWhenEveryTargetFails() {
+    MulticastBrokerRSocket multicast =
+        multicast(options(MulticastResponse.FIRST_SUCCESS), failure(), failure());
+
+    assertThrows(
+        IllegalStateException.class, () -> multicast.requestResponse(request()).block(TIMEOUT));
+    buffers.assertReleased();
+  }
+
+  @Test
+  void quorumComposesRequiredResponses() {
+    MulticastBrokerRSocket multicast =
+        multicast(
+            options(MulticastResponse.QUORUM).setQuorum(2),
+            success("a", "ma"),
+            failure(),
+            success("b"),
+            success("c"),
+            late());
+
+    Payload response = multicast.requestResponse(request()).block(TIMEOUT);
+    assertEquals(List.of("a:ma", "b:"), splitAndRelease(response));
+    completePending();
+
+    buffers.assertReleased();
+  }
+
+  @Test
+  void quorumShortOfResponsesReleasesReceivedResponses() {
+    MulticastBrokerRSocket multicast =
+        multicast(
+            options(MulticastResponse.QUORUM).setQuorum(2),
+            success("a"),
+            failure(),
+            failure());
+
+    assertThrows(
+        IllegalStateException.class, () -> multicast.requestResponse(request()).block(TIMEOUT));
+    buffers.assertReleased();
+  }
+
+  @Test
+  void quorumLargerThanTargetsReleasesRequest() {
+    MulticastBrokerRSocket multicast =
+        multicast(
+            options(MulticastResponse.QUORUM).setQuorum(3), success("a"), success("b"));
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> multicast.requestResponse(request()).block(TIMEOUT));
+    buffers.assertReleased();
+  }
+
+  @Test
+  void allWaitsForLateTargets() throws Exception {
+    MulticastBrokerRSocket multicast =
+        multicast(options(MulticastResponse.ALL), success("a"), failure(), late());
+
+    CompletableFuture<Payload> response = multicast.requestResponse(request()).toFuture();
+    completePending();
+    Payload composed = response.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    assertEquals(List.of("a:", "late:"), splitAndRelease(composed));
+
+    buffers.assertReleased();
+  }
+
+  @Test
+  void allDropsTimedOutTargets() {
+    MulticastBrokerRSocket multicast =
+        multicast(
+            options(MulticastResponse.ALL).setTimeoutMillis(50),
+            success("a"),
+            never(),
+            late());
+
+    Payload response = multicast.requestResponse(request()).block(TIMEOUT);
+    assertEquals(List.of("a:"), splitAndRelease(response));
+    completePending();
+
+    buffers.assertReleased();
+  }
+
+  @Test
+  void firstSuccessCancelReleasesLateResponses() {
+    cancelAndCompletePending(
+        multicast(options(MulticastResponse.FIRST_SUCCESS), failure(), late(), never()));
+    buffers.assertReleased();
+  }
+
+  @Test
+  void quorumCancelReleasesBufferedAndLateResponses() {
+    cancelAndCompletePending(
+        multicast(
+            options(MulticastResponse.QUORUM).setQuorum(3),
+            success("a"),
+            failure(),
+            success("b"),
+            late(),
+            never()));
+    buffers.assertReleased();
+  }
+
+  @Test
+  void allCancelReleasesBufferedAndLateResponses() {
+    cancelAndCompletePending(
+        multicast(
+            options(MulticastResponse.ALL),
+            success("a"),
+            failure(),
+            success("b"),
+            late(),
+            never()));
+    buffers.assertReleased();
+  }
+
+  @Test
+  void quorumCountsEveryTargetBehindPeer() {
+    MulticastOptions.Builder options = options(MulticastResponse.QUORUM);
+    RSocket peer = peer(options, success("p1"), failure(), success("p2"), success("p3"));
+    MulticastBrokerRSocket multicast =
+        multicast(
+            options,
+            success("a"),
+            new FederatedBrokerRSocketQuery.PeerTarget(peer, 4));
+
+    Payload response = multicast.requestResponse(request()).block(TIMEOUT);
+    assertEquals(List.of("a:", "p1:", "p2:"), splitAndRelease(response));
+
+    buffers.assertReleased();
+  }
+
+  @Test
+  void quorumIsCountedAtOriginNotAtPeer() {
+    MulticastOptions.Builder options = options(MulticastResponse.QUORUM).setQuorum(3);
+    RSocket peer = peer(options, success("p1"), failure(), success("p2"));
+    MulticastBrokerRSocket multicast =
+        multicast(options, success("a"), new FederatedBrokerRSocketQuery.PeerTarget(peer, 3));
+
+    Payload response = multicast.requestResponse(request()).block(TIMEOUT);
+    assertEquals(List.of("a:", "p1:", "p2:"), splitAndRelease(response));
+
+    buffers.assertReleased();
+  }
+
+  @Test
+  void allFlattensPeerResponses() {
+    MulticastOptions.Builder options = options(MulticastResponse.ALL);
+    RSocket peer = peer(options, success("p1", "m1"), failure(), success("p2"));
+    MulticastBrokerRSocket multicast =
+        multicast(
+            options,
+            success("a"),
+            new FederatedBrokerRSocketQuery.PeerTarget(peer, 3),
+            new FederatedBrokerRSocketQuery.PeerTarget(peer(options, failure()), 1));
+
+    Payload response = multicast.requestResponse(request()).block(TIMEOUT);
+    assertEquals(List.of("a:", "p1:m1", "p2:"), splitAndRelease(response));
+
+    buffers.assertReleased();
+  }
+
+  @Test
+  void cancelReleasesPeerResponses() {
+    MulticastOptions.Builder options = options(MulticastResponse.ALL);
+    RSocket peer = peer(options, success("p1"), late());
+    cancelAndCompletePending(
+        multicast(
+            options,
+            success("a"),
+            new FederatedBrokerRSocketQuery.PeerTarget(peer, 2)));
+    buffers.assertReleased();
+  }
+
+  @Test
+  void concurrentResponsesAndCancelDoNotLeak() {
+    Random random = new Random(20);
+    for (int round = 0; round < 300; round++) {
+      MulticastOptions.Builder options =
+          options(MulticastResponse.forNumber(random.nextInt(3))).setQuorum(2);
+      if (random.nextBoolean()) {
+        options.setTimeoutMillis(1 + random.nextInt(5));
+      }
+      MulticastBrokerRSocket multicast =
+          multicast(
+              options,
+              async("a", random.nextInt(200)),
+              random.nextBoolean() ? failure() : async("b", random.nextInt(200)),
+              async("c", random.nextInt(200)));
+      Disposable subscription = releasing(multicast.requestResponse(request()));
+      if (random.nextBoolean()) {
+        LockSupport.parkNanos(random.nextInt(200_000));
+        subscription.dispose();
+      }
+    }
+
+    buffers.assertReleased();
+  }
+
+  private MulticastBrokerRSocket multicast(MulticastOptions.Builder options, RSocket... targets) {
+    List<RSocket> routes = List.of(targets);
+    return new MulticastBrokerRSocket(() -> routes, options.build());
+  }
+
+  private static MulticastOptions.Builder options(MulticastResponse response) {
+    return MulticastOptions.newBuilder().setResponse(response);
+  }
+
+  private Payload request() {
+    return buffers.payload("request", "metadata");
+  }
+
+  private RSocket success(String data) {
+    return target(() -> Mono.fromSupplier(() -> buffers.payload(data)));
+  }
+
+  private RSocket success(String data, String metadata) {
+    return target(() -> Mono.fromSupplier(() -> buffers.payload(data, metadata)));
+  }
+
+  private RSocket failure() {
+    return target(() -> Mono.error(new IllegalStateException("目标失败")));
+  }
+
+  private RSocket never() {
+    return target(Mono::never);
+  }
+
+  /** 忽略取消信号, 由 {@link #completePending()} 在请求结束或取消后才响应 */
+  private RSocket late() {
+    return target(
+        () ->
+            Mono.fromDirect(
+                subscriber -> {
+                  subscriber.onSubscribe(Operators.emptySubscription());
+                  pending.add(subscriber);
+                }));
+  }
+
+  /** 在其他线程上延迟响应, 与超时, 取消和汇总竞争 */
+  private RSocket async(String data, int delayMicros) {
+    return target(
+        () ->
+            Mono.delay(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(delayMicros)))
+                .map(ignored -> buffers.payload(data)));
+  }
+
+  /** 模拟其他 broker: 按同一个 frame 中的选项在本地路由中扇出, 请求带有转发标记 */
+  private RSocket peer(MulticastOptions.Builder options, RSocket... targets) {
+    MulticastBrokerRSocket local = multicast(options, targets);
+    return new RSocket() {
+      @Override
+      public Mono<Payload> requestResponse(Payload payload) {
+        return local
+            .requestResponse(payload)
+            .contextWrite(Context.of(MulticastBrokerRSocket.FORWARDED, Boolean.TRUE));
+      }
+    };
+  }
+
+  private void cancelAndCompletePending(MulticastBrokerRSocket multicast) {
+    releasing(multicast.requestResponse(request())).dispose();
+    completePending();
+  }
+
+  private void completePending() {
+    for (Subscriber<? super Payload> subscriber : pending) {
+      subscriber.onNext(buffers.payload("late"));
+      subscriber.onComplete();
+    }
+    pending.clear();
+  }
+
+  /** 像 RSocket responder 一样释放取消后仍到达的响应, lambda 订阅者在 dispose 之后会直接丢弃 onNext */
+  private static Disposable releasing(Mono<Payload> response) {
+    return response.subscribeWith(
+        new BaseSubscriber<>() {
+          @Override
+          protected void hookOnNext(Payload payload) {
+            payload.release();
+          }
+
+          @Override
+          protected void hookOnError(Throwable throwable) {}
+        });
+  }
+
+  /** 拆分并释放聚合响应, 返回 "data:metadata" 列表 */
+  private static List<String> splitAndRelease(Payload response) {
+    List<String> found = new ArrayList<>();
+    for (Payload payload : MulticastPayloads.split(response)) {
+      String metadata = payload.hasMetadata() ? payload.getMetadataUtf8() : "";
+      found.add(payload.getDataUtf8() + ":" + metadata);
+      payload.release();
+    }
+    response.release();
+    return found;
+  }
+
+  /** 目标按 RSocket 约定释放收到的请求 */
+  private static RSocket target(Supplier<Mono<Payload>> response) {
+    return new RSocket() {
+      @Override
+      public Mono<Payload> requestResponse(Payload payload) {
+        payload.release();
+        return response.get();
+      }
+    };
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.rsocket.Payload;
+import io.rsocket.util.ByteBufPayload;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import org.junit.jupiter.api.Test;
+
+/** {@link MulticastPayloads} 的编解码与引用泄漏测试 */
+class MulticastPayloadsTest {
+  private final TrackedBuffers buffers = new TrackedBuffers();
+
+  @Test
+  void composeAndSplitRoundTrip() {
+    Payload composed =
+        MulticastPayloads.compose(
+            new ArrayList<>(
+                List.of(
+                    buffers.payload("a", "ma"),
+                    buffers.payload(""),
+                    buffers.payload("c", ""),
+                    buffers.payload("数据"))));
+
+    List<Payload> split = MulticastPayloads.split(composed);
+    assertEquals(4, split.size());
+    assertPayload(split.get(0), "a", "ma");
+    assertPayload(split.get(1), "", null);
+    assertPayload(split.get(2), "c", "");
+    assertPayload(split.get(3), "数据", null);
+
+    split.forEach(Payload::release);
+    composed.release();
+    buffers.assertReleased();
+  }
+
+  @Test
+  void splitPartsOutliveComposedPayload() {
+    Payload composed =
+        MulticastPayloads.compose(
+            new ArrayList<>(List.of(buffers.payload("a", "ma"), buffers.payload("b"))));
+    List<Payload> split = MulticastPayloads.split(composed);
+    composed.release();
+
+    assertPayload(split.get(0), "a", "ma");
+    assertPayload(split.get(1), "b", null);
+    split.forEach(Payload::release);
+    buffers.assertReleased();
+  }
+
+  @Test
+  void composeEmptyList() {
+    Payload composed = MulticastPayloads.compose(new ArrayList<>());
+    assertTrue(MulticastPayloads.split(composed).isEmpty());
+    composed.release();
+  }
+
+  @Test
+  void splitTruncatedPayloadReleasesSplitParts() {
+    Payload composed =
+        MulticastPayloads.compose(
+            new ArrayList<>(List.of(buffers.payload("a", "ma"), buffers.payload("bb"))));
+    ByteBuf data = composed.sliceData();
+    Payload truncated =
+        ByteBufPayload.create(data.retainedSlice(data.readerIndex(), data.readableBytes() - 1));
+    composed.release();
+
+    assertThrows(IndexOutOfBoundsException.class, () -> MulticastPayloads.split(truncated));
+    truncated.release();
+    buffers.assertReleased();
+  }
+
+  private static void assertPayload(Payload payload, String data, String metadata) {
+    assertEquals(data, payload.getDataUtf8());
+    if (Objects.isNull(metadata)) {
+      assertFalse(payload.hasMetadata());
+    } else {
+      assertTrue(payload.hasMetadata());
+      assertEquals(metadata, payload.getMetadataUtf8());
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022-present Doodle. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.doodle.design.broker.rsocket;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ResourceLeakDetector;
+import io.rsocket.Payload;
+import io.rsocket.util.ByteBufPayload;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 记录测试中创建的全部 ByteBuf, 用于检查引用泄漏
+ *
+ * <p>ByteBufPayload 本身会被回收复用, 只检查其持有的非池化 ByteBuf 的引用计数. 被测代码内部分配的 ByteBuf 不在记录中,
+ * 由 PARANOID 级别的 {@link LeakRecordingDetector} 在 GC 后报告.
+ */
+final class TrackedBuffers {
+  private static final long SETTLE_MILLIS = 5_000;
+  private static final int GC_ROUNDS = 3;
+
+  static {
+    ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+  }
+
+  private final List<ByteBuf> buffers = new CopyOnWriteArrayList<>();
+
+  ByteBuf buffer(String content) {
+    ByteBuf buffer = Unpooled.copiedBuffer(content, StandardCharsets.UTF_8);
+    buffers.add(buffer);
+    return buffer;
+  }
+
+  Payload payload(String data) {
+    return ByteBufPayload.create(buffer(data));
+  }
+
+  Payload payload(String data, String metadata) {
+    return ByteBufPayload.create(buffer(data), buffer(metadata));
+  }
+
+  /** 等待异步目标结束后检查, 超时仍有未释放的 ByteBuf 则失败 */
+  void assertReleased() {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+    while (leaked() > 0 && System.nanoTime() < deadline) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    int leaked = leaked();
+    if (leaked > 0) {
+      fail(leaked + " / " + buffers.size() + " 个 ByteBuf 未释放: " + describeLeaks());
+    }
+    assertNoReportedLeaks();
+  }
+
+  /** GC 后分配新的 ByteBuf 触发泄漏检查, Netty 报告了任何泄漏则失败 */
+  private static void assertNoReportedLeaks() {
+    assertTrue(
+        LeakRecordingDetector.installed(),
+        "需要系统属性 " + LeakRecordingDetector.PROPERTY + "=" + LeakRecordingDetector.class.getName());
+    for (int round = 0; round < GC_ROUNDS; round++) {
+      System.gc();
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+      ByteBufAllocator.DEFAULT.buffer(1).release();
+    }
+    List<String> leaks = LeakRecordingDetector.drain();
+    if (!leaks.isEmpty()) {
+      fail("Netty 报告了 " + leaks.size() + " 处 ByteBuf 泄漏: " + leaks);
+    }
+  }
+
+  private int leaked() {
+    int leaked = 0;
+    for (ByteBuf buffer : buffers) {
+      if (buffer.refCnt() != 0) {
+        leaked++;
+      }
+    }
+    return leaked;
+  }
+
+  private String describeLeaks() {
+    StringBuilder leaks = new StringBuilder();
+    for (ByteBuf buffer : buffers) {
+      if (buffer.refCnt() != 0) {
+        leaks.append(buffer.toString(StandardCharsets.UTF_8)).append("(refCnt=");
+        leaks.append(buffer.refCnt()).append(") ");
+      }
+    }
+    return leaks.toString();
+  }
+}